@@ -0,0 +1,301 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk;
+
+import com.snapyr.sdk.internal.Private;
+import com.snapyr.sdk.services.ServiceFacade;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock free ring of pre-allocated event slots, which hands the calls of the public API
+ * from the threads that make them to the analytics executor. Track and screen calls are copied
+ * into slots as they are; any other call is published as a {@link #TASK} to run in its place.
+ *
+ * <p>Publishing an event claims a slot with a single compare-and-set, copies the call's arguments
+ * into it and marks it published; nothing is allocated. The executor is only given a task when the
+ * ring goes from idle to busy, and that task drains every event published until the ring is empty
+ * again. Slots are claimed as in Dmitry Vyukov's bounded MPMC queue, with per slot sequence
+ * numbers, so any number of threads can publish while the analytics thread consumes.
+ *
+ * <p>Events are consumed in the order they were published. When every slot is taken, events wait
+ * in an unbounded overflow queue instead, and keep doing so until it's empty again, so they are
+ * still consumed after the ones in the ring. Tasks submitted to the executor after an event is
+ * published run after it has been consumed, as long as the executor runs its tasks in order on a
+ * single thread.
+ */
+class EventRing {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    static final int TRACK = 0;
+    static final int SCREEN = 1;
+    /** Runs the {@link Runnable} published with {@link #publish(Runnable)}. */
+    static final int TASK = 2;
+
+    /** Receives events on the analytics executor. */
+    interface Consumer {
+        /**
+         * Called once per event, in publish order. {@code category} is only set for screen
+         * events, and {@code name} is the event name of track events. Shouldn't throw.
+         */
+        void onEvent(
+                int kind,
+                String category,
+                String name,
+                Properties properties,
+                Options options,
+                long timestampNanos);
+    }
+
+    private final Slot[] slots;
+    /**
+     * Per slot sequence numbers. A slot is free for the claim at position {@code p} when its
+     * sequence is {@code p}, and published when its sequence is {@code p + 1}.
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+    /** The next position to claim. */
+    private final AtomicLong tail = new AtomicLong();
+    /** The next position to consume. Only touched by the drain that holds {@link #draining}. */
+    private long head;
+    /** Whether a drain is scheduled or running. */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /** Events published while the ring was full, or after others that were. */
+    private final ConcurrentLinkedQueue<Slot> overflow = new ConcurrentLinkedQueue<>();
+
+    private final ExecutorService executor;
+    private final Consumer consumer;
+    private final Runnable drain =
+            new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+
+    /** {@code capacity} is rounded up to a power of two. */
+    EventRing(int capacity, ExecutorService executor, Consumer consumer) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than zero.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.consumer = consumer;
+    }
+
+    /** Publishes a track or screen event, and schedules a drain if none is pending. */
+    void publish(
+            int kind,
+            String category,
+            String name,
+            Properties properties,
+            Options options,
+            long timestampNanos) {
+        publish(kind, category, name, properties, options, timestampNanos, null);
+    }
+
+    /**
+     * Publishes {@code task} to run on the analytics executor once the events published before it
+     * have been consumed, and schedules a drain if none is pending.
+     */
+    void publish(Runnable task) {
+        publish(TASK, null, null, null, null, 0, task);
+    }
+
+    private void publish(
+            int kind,
+            String category,
+            String name,
+            Properties properties,
+            Options options,
+            long timestampNanos,
+            Runnable task) {
+        long position = overflow.isEmpty() ? claim() : -1;
+        if (position == -1) {
+            Slot slot = new Slot();
+            slot.set(kind, category, name, properties, options, timestampNanos, task);
+            overflow.add(slot);
+        } else {
+            int index = (int) position & mask;
+            slots[index].set(kind, category, name, properties, options, timestampNanos, task);
+            sequences.set(index, position + 1);
+        }
+
+        if (draining.compareAndSet(false, true)) {
+            executor.submit(drain);
+        }
+    }
+
+    /** Claims the next slot and returns its position, or -1 if every slot is taken. */
+    private long claim() {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                // The slot still holds the event from a lap ago, so the ring is full.
+                return -1;
+            }
+            // Otherwise another thread claimed this position first; try the next one.
+        }
+    }
+
+    /** Consumes published events until the ring is empty. */
+    @Private
+    void drain() {
+        try {
+            do {
+                // Events in the ring were published before those that overflowed it.
+                while (poll() || pollOverflow()) {
+                    // Keep consuming.
+                }
+                draining.set(false);
+                // An event published before the flag was cleared didn't schedule a drain of its
+                // own, so it has to be consumed here, before any task submitted after it.
+            } while ((hasPublished() || !overflow.isEmpty())
+                    && draining.compareAndSet(false, true));
+        } catch (RuntimeException e) {
+            // Don't leave the ring stuck; the next publish schedules a drain for the rest.
+            draining.set(false);
+            throw e;
+        }
+    }
+
+    private boolean hasPublished() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /** Consumes the event at the head of the ring, if it has been published. */
+    private boolean poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return false;
+        }
+        Slot slot = slots[index];
+        int kind = slot.kind;
+        String category = slot.category;
+        String name = slot.name;
+        Properties properties = slot.properties;
+        Options options = slot.options;
+        long timestampNanos = slot.timestampNanos;
+        Runnable task = slot.task;
+        slot.clear();
+        // Free the slot for the claim one lap from now.
+        sequences.set(index, head + slots.length);
+        head++;
+        consume(kind, category, name, properties, options, timestampNanos, task);
+        return true;
+    }
+
+    /** Consumes the oldest event that overflowed the ring, if any. */
+    private boolean pollOverflow() {
+        Slot slot = overflow.poll();
+        if (slot == null) {
+            return false;
+        }
+        consume(
+                slot.kind,
+                slot.category,
+                slot.name,
+                slot.properties,
+                slot.options,
+                slot.timestampNanos,
+                slot.task);
+        return true;
+    }
+
+    private void consume(
+            int kind,
+            String category,
+            String name,
+            Properties properties,
+            Options options,
+            long timestampNanos,
+            Runnable task) {
+        if (kind != TASK) {
+            consumer.onEvent(kind, category, name, properties, options, timestampNanos);
+            return;
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // As if it had been submitted to the executor, where it wouldn't stop later tasks.
+            ServiceFacade.getLogger().error(e, "Could not run task %s.", task);
+        }
+    }
+
+    private static final class Slot {
+        int kind;
+        String category;
+        String name;
+        Properties properties;
+        Options options;
+        long timestampNanos;
+        Runnable task;
+
+        void set(
+                int kind,
+                String category,
+                String name,
+                Properties properties,
+                Options options,
+                long timestampNanos,
+                Runnable task) {
+            this.kind = kind;
+            this.category = category;
+            this.name = name;
+            this.properties = properties;
+            this.options = options;
+            this.timestampNanos = timestampNanos;
+            this.task = task;
+        }
+
+        /** Drops references, so consumed events can be collected. */
+        void clear() {
+            category = null;
+            name = null;
+            properties = null;
+            options = null;
+            task = null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk;
+
+import static java.util.Collections.unmodifiableMap;
+
+import com.snapyr.sdk.internal.Private;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops track events before any work is done to send them, so a code path that tracks an event
+ * thousands of times can't flood the queue. Two limits apply, both set through {@link
+ * Snapyr.Builder} and overridable by {@link ProjectSettings#throttle()}:
+ *
+ * <pre> <code>
+ *   "throttle": {
+ *     "sampleRate": 0.5,
+ *     "maxEvents": 60,
+ *     "periodSeconds": 60,
+ *     "events": { "Scrolled": 10 }
+ *   }
+ * </code> </pre>
+ *
+ * <ul>
+ *   <li>Only a fraction {@code sampleRate} of users track events. Users are picked by their
+ *       anonymous ID, so a user either sends all of their events or none of them.
+ *   <li>Each event name may be tracked up to {@code maxEvents} times per period, or as many times
+ *       as {@code events} says for that name. Names are limited with a token bucket each, so
+ *       bursts of up to that many events pass as long as the average rate is below the limit.
+ * </ul>
+ *
+ * Events the SDK tracks by itself are never dropped. Events dropped by a rate limit are counted,
+ * and reported with a {@link #SUMMARY_EVENT} at most once per {@link #SUMMARY_INTERVAL_MILLIS}.
+ */
+class EventThrottle {
+    /** The event that reports how many events were dropped. */
+    static final String SUMMARY_EVENT = "snapyr.hidden.eventsDropped";
+    /** How long dropped events are counted before they are reported. */
+    @Private static final long SUMMARY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /** Upper bound on the event names buckets and drop counts are kept for. */
+    @Private static final int MAX_EVENT_NAMES = 256;
+    /** Events the SDK tracks by itself. */
+    private static final String SDK_EVENT_PREFIX = "snapyr.";
+
+    private final Limits defaults;
+    private volatile Limits limits;
+    /** Buckets by event name, the least recently used first. */
+    private final Map<String, Bucket> buckets =
+            new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                    return size() > MAX_EVENT_NAMES;
+                }
+            };
+    /** Events dropped since the last summary, by event name. */
+    private final Map<String, Integer> dropped = new LinkedHashMap<>();
+    /** Events dropped since the last summary, including those not in {@link #dropped}. */
+    private int droppedCount;
+    /** When the first event since the last summary was dropped. */
+    private long firstDropMillis;
+    /** The anonymous ID and sample rate {@link #sampled} was last worked out for. */
+    private String sampledId;
+    private double sampledRate;
+    private boolean sampled;
+
+    EventThrottle(Limits defaults) {
+        this.defaults = defaults;
+        this.limits = defaults;
+    }
+
+    /** Applies the overrides of the given settings to the limits set through the builder. */
+    void configure(ProjectSettings settings) {
+        limits = defaults.override(settings == null ? null : settings.throttle());
+    }
+
+    /**
+     * Returns whether a track event should be sent, at {@code nowMillis} on a monotonic clock. An
+     * event that is dropped by a rate limit is counted towards the next summary.
+     */
+    synchronized boolean allow(String event, String anonymousId, long nowMillis) {
+        if (event.startsWith(SDK_EVENT_PREFIX)) {
+            return true;
+        }
+        Limits limits = this.limits;
+        if (limits.sampleRate < 1 && !isSampled(anonymousId, limits.sampleRate)) {
+            return false;
+        }
+        int maxEvents = limits.maxEvents(event);
+        if (maxEvents <= 0) {
+            return true;
+        }
+        Bucket bucket = buckets.get(event);
+        if (bucket == null) {
+            bucket = new Bucket(maxEvents, nowMillis);
+            buckets.put(event, bucket);
+        }
+        if (bucket.take(maxEvents, limits.periodMillis, nowMillis)) {
+            return true;
+        }
+        if (droppedCount++ == 0) {
+            firstDropMillis = nowMillis;
+        }
+        Integer count = dropped.get(event);
+        if (count != null) {
+            dropped.put(event, count + 1);
+        } else if (dropped.size() < MAX_EVENT_NAMES) {
+            dropped.put(event, 1);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the properties of a {@link #SUMMARY_EVENT} if one is due at {@code nowMillis}, and
+     * starts counting dropped events anew. Returns null if no summary is due.
+     */
+    synchronized Map<String, Object> takeSummary(long nowMillis) {
+        if (droppedCount == 0 || nowMillis - firstDropMillis < SUMMARY_INTERVAL_MILLIS) {
+            return null;
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("droppedEvents", droppedCount);
+        summary.put("events", new LinkedHashMap<>(dropped));
+        summary.put("periodMillis", nowMillis - firstDropMillis);
+        droppedCount = 0;
+        dropped.clear();
+        return summary;
+    }
+
+    /** Returns whether the user with the given anonymous ID is among those that track events. */
+    private boolean isSampled(String anonymousId, double sampleRate) {
+        if (anonymousId == null) {
+            return true;
+        }
+        if (!anonymousId.equals(sampledId) || sampleRate != sampledRate) {
+            sampledId = anonymousId;
+            sampledRate = sampleRate;
+            sampled = fraction(anonymousId) < sampleRate;
+        }
+        return sampled;
+    }
+
+    /**
+     * Maps an anonymous ID to a fraction in [0, 1). {@link String#hashCode()} is the same on every
+     * device and version, so a user is always sampled the same way.
+     */
+    @Private
+    static double fraction(String anonymousId) {
+        // Spread the bits of the hash, since similar IDs have similar hashes.
+        long mixed = (anonymousId.hashCode() & 0xffffffffL) * 0x9e3779b97f4a7c15L;
+        return (mixed >>> 11) / (double) (1L << 53);
+    }
+
+    /** The limits that apply to events. */
+    static final class Limits {
+        /** Lets every event through. */
+        static final Limits NONE =
+                new Limits(
+                        1,
+                        0,
+                        TimeUnit.MINUTES.toMillis(1),
+                        Collections.<String, Integer>emptyMap());
+
+        /** The fraction of users that track events. */
+        final double sampleRate;
+        /** How many times an event may be tracked per period, or 0 if it may be tracked freely. */
+        final int maxEvents;
+        final long periodMillis;
+        /** Overrides of {@link #maxEvents} by event name. */
+        final Map<String, Integer> eventMaxEvents;
+
+        Limits(
+                double sampleRate,
+                int maxEvents,
+                long periodMillis,
+                Map<String, Integer> eventMaxEvents) {
+            this.sampleRate = sampleRate;
+            this.maxEvents = maxEvents;
+            this.periodMillis = periodMillis;
+            this.eventMaxEvents = eventMaxEvents;
+        }
+
+        /** How many times {@code event} may be tracked per period, or 0 if it isn't limited. */
+        int maxEvents(String event) {
+            Integer eventMax = eventMaxEvents.get(event);
+            return eventMax == null ? maxEvents : eventMax;
+        }
+
+        /** Returns these limits with the given {@code throttle} settings applied on top. */
+        Limits override(ValueMap throttle) {
+            if (throttle == null || throttle.isEmpty()) {
+                return this;
+            }
+            double sampleRate =
+                    Math.max(0, Math.min(1, throttle.getDouble("sampleRate", this.sampleRate)));
+            int maxEvents = throttle.getInt("maxEvents", this.maxEvents);
+            long periodMillis =
+                    TimeUnit.SECONDS.toMillis(
+                            throttle.getLong(
+                                    "periodSeconds",
+                                    TimeUnit.MILLISECONDS.toSeconds(this.periodMillis)));
+            if (periodMillis <= 0) {
+                periodMillis = this.periodMillis;
+            }
+            Map<String, Integer> eventMaxEvents = this.eventMaxEvents;
+            ValueMap events = throttle.getValueMap("events");
+            if (events != null && !events.isEmpty()) {
+                eventMaxEvents = new HashMap<>(this.eventMaxEvents);
+                for (Map.Entry<String, Object> entry : events.entrySet()) {
+                    if (entry.getValue() instanceof Number) {
+                        eventMaxEvents.put(
+                                entry.getKey(), ((Number) entry.getValue()).intValue());
+                    }
+                }
+                eventMaxEvents = unmodifiableMap(eventMaxEvents);
+            }
+            return new Limits(sampleRate, maxEvents, periodMillis, eventMaxEvents);
+        }
+    }
+
+    /** Tokens for one event name, refilled at {@code maxEvents} per period. */
+    private static final class Bucket {
+        private double tokens;
+        private long refilledMillis;
+
+        Bucket(int maxEvents, long nowMillis) {
+            this.tokens = maxEvents;
+            this.refilledMillis = nowMillis;
+        }
+
+        /** Takes a token, returning false if there are none left. */
+        boolean take(int maxEvents, long periodMillis, long nowMillis) {
+            long elapsed = nowMillis - refilledMillis;
+            if (elapsed > 0) {
+                tokens += elapsed * (double) maxEvents / periodMillis;
+                refilledMillis = nowMillis;
+            }
+            // The limit may have been lowered since the bucket was filled.
+            tokens = Math.min(tokens, maxEvents);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
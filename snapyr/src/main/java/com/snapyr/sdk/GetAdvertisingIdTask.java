@@ -41,6 +41,11 @@ class GetAdvertisingIdTask extends AsyncTask<Context, Void, Pair<String, Boolean
     private final CountDownLatch latch;
     private final Logger logger;
 
+    GetAdvertisingIdTask(SnapyrContext snapyrContext, Logger logger) {
+        this(snapyrContext, null, logger);
+    }
+
+    /** {@code latch}, if not null, is counted down once the task is done. */
     GetAdvertisingIdTask(SnapyrContext snapyrContext, CountDownLatch latch, Logger logger) {
         this.snapyrContext = snapyrContext;
         this.latch = latch;
@@ -119,9 +124,11 @@ class GetAdvertisingIdTask extends AsyncTask<Context, Void, Pair<String, Boolean
                 logger.debug("Not collecting advertising ID because context.device is null.");
                 return;
             }
-            device.putAdvertisingInfo(info.first, info.second);
+            snapyrContext.putAdvertisingInfo(info.first, info.second);
         } finally {
-            latch.countDown();
+            if (latch != null) {
+                latch.countDown();
+            }
         }
     }
 }
@@ -26,8 +26,20 @@ package com.snapyr.sdk;
 import static java.util.Collections.unmodifiableMap;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import com.snapyr.sdk.internal.Private;
+import com.snapyr.sdk.internal.Utils;
 import com.snapyr.sdk.services.Cartographer;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 class ProjectSettings extends ValueMap {
@@ -36,6 +48,7 @@ class ProjectSettings extends ValueMap {
     private static final String PLAN_KEY = "plan";
     private static final String INTEGRATIONS_KEY = "integrations";
     private static final String TRACKING_PLAN_KEY = "track";
+    private static final String THROTTLE_KEY = "throttle";
     private static final String EDGE_FUNCTIONS_KEY = "edgeFunction";
 
     @Private
@@ -64,6 +77,14 @@ class ProjectSettings extends ValueMap {
         return plan.getValueMap(TRACKING_PLAN_KEY);
     }
 
+    ValueMap throttle() {
+        ValueMap plan = plan();
+        if (plan == null) {
+            return null;
+        }
+        return plan.getValueMap(THROTTLE_KEY);
+    }
+
     ValueMap integrations() {
         return getValueMap(INTEGRATIONS_KEY);
     }
@@ -72,25 +93,183 @@ class ProjectSettings extends ValueMap {
         return getValueMap(EDGE_FUNCTIONS_KEY);
     }
 
-    static class Cache extends ValueMap.Cache<ProjectSettings> {
+    /**
+     * Keeps the settings document in a file as it was downloaded, along with the validators the
+     * server sent for it, so a refresh can ask whether it changed instead of downloading it again.
+     * The file is only parsed once the settings are needed.
+     */
+    static class Cache {
 
-        // todo: remove. This is legacy behaviour from before we started namespacing the entire
-        // shared
-        // preferences object and were namespacing keys instead.
+        // todo: remove. Settings were kept in shared preferences under this key, namespaced from
+        // before we started namespacing the entire shared preferences object.
         private static final String PROJECT_SETTINGS_CACHE_KEY_PREFIX = "project-settings-plan-";
+        private static final String SETTINGS_FOLDER = "snapyr-settings";
+        private static final int FORMAT_VERSION = 1;
+        /** Where the timestamp is in the file, after the format version. */
+        private static final int TIMESTAMP_OFFSET = 4;
+
+        private final Context context;
+        private final Cartographer cartographer;
+        private final String tag;
+        /** Read if there's no settings file yet, and removed once there is. */
+        private final String legacyKey;
+        private boolean loaded;
+        private ProjectSettings value;
+        private String etag;
+        private long lastModified;
 
         Cache(Context context, Cartographer cartographer, String tag) {
-            super(
-                    context,
-                    cartographer,
-                    PROJECT_SETTINGS_CACHE_KEY_PREFIX + tag,
-                    tag,
-                    ProjectSettings.class);
+            this.context = context;
+            this.cartographer = cartographer;
+            this.tag = tag;
+            this.legacyKey = PROJECT_SETTINGS_CACHE_KEY_PREFIX + tag;
+        }
+
+        synchronized ProjectSettings get() {
+            if (!loaded) {
+                loaded = true;
+                try {
+                    load();
+                } catch (IOException ignored) {
+                    value = null;
+                    etag = null;
+                    lastModified = 0;
+                }
+            }
+            return value;
+        }
+
+        /** The ETag of the cached settings, or null. */
+        synchronized String etag() {
+            return get() == null ? null : etag;
+        }
+
+        /** When the cached settings were last modified according to the server, or 0. */
+        synchronized long lastModified() {
+            return get() == null ? 0 : lastModified;
+        }
+
+        synchronized boolean isSet() {
+            return settingsFile().exists() || preferences().contains(legacyKey);
+        }
+
+        /**
+         * Caches {@code value}, which was parsed from {@code body}. {@code etag} and {@code
+         * lastModified} are the validators the server sent with it, if any.
+         */
+        synchronized void set(ProjectSettings value, byte[] body, String etag, long lastModified) {
+            this.value = value;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.loaded = true;
+            File file = settingsFile();
+            File temp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                Utils.createDirectory(file.getParentFile());
+                out = new DataOutputStream(new FileOutputStream(temp));
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(value.timestamp());
+                out.writeLong(lastModified);
+                out.writeUTF(etag == null ? "" : etag);
+                out.writeInt(body.length);
+                out.write(body);
+                out.close();
+                out = null;
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp + " to " + file + ".");
+                }
+            } catch (IOException ignored) {
+                // The settings are still cached in memory, and are downloaded again next launch.
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            } finally {
+                Utils.closeQuietly(out);
+            }
+            SharedPreferences preferences = preferences();
+            if (preferences.contains(legacyKey)) {
+                preferences.edit().remove(legacyKey).apply();
+            }
+        }
+
+        /**
+         * Records that the server said the cached settings haven't changed, and returns them with
+         * the current time as their timestamp. Returns null if no settings are cached.
+         */
+        synchronized ProjectSettings touch() {
+            ProjectSettings settings = get();
+            if (settings == null) {
+                return null;
+            }
+            long timestamp = System.currentTimeMillis();
+            Map<String, Object> map = new LinkedHashMap<>(settings);
+            map.put(TIMESTAMP_KEY, timestamp);
+            value = new ProjectSettings(map);
+            File settingsFile = settingsFile();
+            if (!settingsFile.exists()) {
+                // Settings only kept in the legacy preferences have no header to patch.
+                return value;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(settingsFile, "rw");
+                file.seek(TIMESTAMP_OFFSET);
+                file.writeLong(timestamp);
+            } catch (IOException ignored) {
+                // The settings are checked with the server again next launch.
+            } finally {
+                Utils.closeQuietly(file);
+            }
+            return value;
+        }
+
+        synchronized void delete() {
+            value = null;
+            etag = null;
+            lastModified = 0;
+            loaded = true;
+            //noinspection ResultOfMethodCallIgnored
+            settingsFile().delete();
+            preferences().edit().remove(legacyKey).apply();
+        }
+
+        private void load() throws IOException {
+            File file = settingsFile();
+            if (!file.exists()) {
+                String json = preferences().getString(legacyKey, null);
+                if (!Utils.isNullOrEmpty(json)) {
+                    value = new ProjectSettings(cartographer.fromJson(json));
+                }
+                return;
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unknown settings file format.");
+                }
+                long timestamp = in.readLong();
+                long lastModified = in.readLong();
+                String etag = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                Map<String, Object> map =
+                        cartographer.fromJson(
+                                new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+                map.put(TIMESTAMP_KEY, timestamp);
+                this.value = new ProjectSettings(map);
+                this.etag = etag.isEmpty() ? null : etag;
+                this.lastModified = lastModified;
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+
+        private File settingsFile() {
+            return new File(context.getDir(SETTINGS_FOLDER, Context.MODE_PRIVATE), tag);
         }
 
-        @Override
-        public ProjectSettings create(Map<String, Object> map) {
-            return new ProjectSettings(map);
+        private SharedPreferences preferences() {
+            return Utils.getSnapyrSharedPreferences(context, tag);
         }
     }
 }
@@ -0,0 +1,454 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores a map in a file as a log of binary records, each of which puts or removes one top-level
+ * key. Writing a map only appends records for the keys that changed since the last write. Once
+ * most of the log is stale, it's rewritten with one record per key to a temporary file, which is
+ * then renamed over the log. Reads map the file into memory.
+ *
+ * <p>Values may be nulls, booleans, numbers, strings, and maps, lists and arrays of those, as in
+ * JSON. Anything else is stored as its string value. Records are checksummed, so a write that was
+ * cut short only loses the keys it was writing.
+ */
+final class SnapshotStore {
+    private static final int MAGIC = 0x534e5031; // "SNP1"
+    private static final int HEADER_SIZE = 4;
+    /** Each record starts with its length and checksum. */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Logs smaller than this aren't worth compacting. */
+    private static final int MIN_COMPACTION_SIZE = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte MAP = 7;
+    private static final byte LIST = 8;
+
+    private final File file;
+    /** The encoded value of each key in the log. */
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+    /** Whether the log ends with the last record in {@link #entries}, so it can be appended to. */
+    private boolean appendable;
+    /** The length of the log in bytes. */
+    private long length;
+
+    private final Output records = new Output();
+    private final Output values = new Output();
+    private final CRC32 crc = new CRC32();
+
+    SnapshotStore(File file) {
+        this.file = file;
+    }
+
+    synchronized boolean exists() {
+        return file.exists();
+    }
+
+    /** Returns the stored map, or null if nothing is stored. */
+    synchronized Map<String, Object> read() throws IOException {
+        entries.clear();
+        appendable = false;
+        length = 0;
+        if (!file.exists()) {
+            return null;
+        }
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot file: " + file);
+        }
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int size = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[size];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, size);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            applyRecord(record);
+        }
+        // Anything after the last good record is a write that was cut short.
+        length = buffer.position();
+        appendable = !buffer.hasRemaining();
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            map.put(entry.getKey(), new Input(entry.getValue()).readValue());
+        }
+        return map;
+    }
+
+    /** Stores {@code map}, writing only the keys that changed since the last read or write. */
+    synchronized void write(Map<String, ?> map) throws IOException {
+        records.reset();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            String key = entry.getKey();
+            values.reset();
+            values.writeValue(entry.getValue());
+            byte[] old = entries.get(key);
+            if (old == null || !values.contentEquals(old)) {
+                byte[] value = values.toByteArray();
+                entries.put(key, value);
+                writeRecord(records, PUT, key, value);
+            }
+        }
+        for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+            String key = keys.next();
+            if (!map.containsKey(key)) {
+                keys.remove();
+                writeRecord(records, REMOVE, key, null);
+            }
+        }
+
+        try {
+            long newLength = length + records.size;
+            if (!appendable
+                    || (newLength > MIN_COMPACTION_SIZE && newLength > 2 * liveLength())) {
+                rewrite();
+            } else if (records.size > 0) {
+                FileOutputStream out = new FileOutputStream(file, true);
+                try {
+                    out.write(records.buffer, 0, records.size);
+                } finally {
+                    out.close();
+                }
+                length = newLength;
+            }
+        } catch (IOException e) {
+            appendable = false;
+            throw e;
+        }
+    }
+
+    synchronized void delete() {
+        entries.clear();
+        appendable = false;
+        length = 0;
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /** The length of a log holding one record per key. */
+    private long liveLength() {
+        long size = HEADER_SIZE;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            size += RECORD_HEADER_SIZE + 5 + entry.getKey().length() + entry.getValue().length;
+        }
+        return size;
+    }
+
+    private void rewrite() throws IOException {
+        records.reset();
+        records.writeInt(MAGIC);
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            writeRecord(records, PUT, entry.getKey(), entry.getValue());
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(records.buffer, 0, records.size);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file + ".");
+        }
+        length = records.size;
+        appendable = true;
+    }
+
+    private void writeRecord(Output out, byte op, String key, byte[] value) {
+        int start = out.size;
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(op);
+        out.writeString(key);
+        if (value != null) {
+            out.write(value, 0, value.length);
+        }
+        int size = out.size - start - RECORD_HEADER_SIZE;
+        crc.reset();
+        crc.update(out.buffer, start + RECORD_HEADER_SIZE, size);
+        out.putInt(start, size);
+        out.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void applyRecord(byte[] record) throws IOException {
+        Input in = new Input(record);
+        byte op = in.readByte();
+        String key = in.readString();
+        if (op == PUT) {
+            entries.remove(key);
+            entries.put(key, Arrays.copyOfRange(record, in.position, record.length));
+        } else if (op == REMOVE) {
+            entries.remove(key);
+        } else {
+            throw new IOException("Unknown snapshot record: " + op);
+        }
+    }
+
+    /** A growable byte array that values are encoded into. */
+    private static final class Output {
+        byte[] buffer = new byte[256];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        boolean contentEquals(byte[] bytes) {
+            if (bytes.length != size) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (buffer[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void ensureCapacity(int count) {
+            if (size + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            putInt(size, value);
+            size += 4;
+        }
+
+        void putInt(int position, int value) {
+            buffer[position] = (byte) (value >>> 24);
+            buffer[position + 1] = (byte) (value >>> 16);
+            buffer[position + 2] = (byte) (value >>> 8);
+            buffer[position + 3] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void write(byte[] bytes, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(bytes, offset, buffer, size, count);
+            size += count;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer
+                    || value instanceof Short
+                    || value instanceof Byte) {
+                writeByte(INT);
+                writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeLong((Long) value);
+            } else if (value instanceof Number) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof Map) {
+                writeByte(MAP);
+                int countPosition = size;
+                writeInt(0);
+                int count = 0;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    writeString(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue());
+                    count++;
+                }
+                putInt(countPosition, count);
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                writeByte(LIST);
+                writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else if (value.getClass().isArray()) {
+                int count = Array.getLength(value);
+                writeByte(LIST);
+                writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    writeValue(Array.get(value, i));
+                }
+            } else {
+                writeByte(STRING);
+                writeString(String.valueOf(value));
+            }
+        }
+    }
+
+    /** Decodes what {@link Output} encoded. */
+    private static final class Input {
+        final byte[] buffer;
+        int position;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        private void require(int count) throws IOException {
+            if (count < 0 || position + count > buffer.length) {
+                throw new IOException("Snapshot record ended unexpectedly.");
+            }
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            int value =
+                    (buffer[position] & 0xff) << 24
+                            | (buffer[position + 1] & 0xff) << 16
+                            | (buffer[position + 2] & 0xff) << 8
+                            | (buffer[position + 3] & 0xff);
+            position += 4;
+            return value;
+        }
+
+        long readLong() throws IOException {
+            long high = readInt();
+            return high << 32 | (readInt() & 0xffffffffL);
+        }
+
+        String readString() throws IOException {
+            int count = readInt();
+            require(count);
+            String value = new String(buffer, position, count, UTF_8);
+            position += count;
+            return value;
+        }
+
+        Object readValue() throws IOException {
+            byte type = readByte();
+            switch (type) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INT:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case DOUBLE:
+                    return Double.longBitsToDouble(readLong());
+                case STRING:
+                    return readString();
+                case MAP:
+                    {
+                        int count = readInt();
+                        Map<String, Object> map = new LinkedHashMap<>();
+                        for (int i = 0; i < count; i++) {
+                            String key = readString();
+                            map.put(key, readValue());
+                        }
+                        return map;
+                    }
+                case LIST:
+                    {
+                        int count = readInt();
+                        require(count);
+                        List<Object> list = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            list.add(readValue());
+                        }
+                        return list;
+                    }
+                default:
+                    throw new IOException("Unknown snapshot value type: " + type);
+            }
+        }
+    }
+}
@@ -65,16 +65,16 @@ import com.snapyr.sdk.services.Cartographer;
 import com.snapyr.sdk.services.Crypto;
 import com.snapyr.sdk.services.Logger;
 import com.snapyr.sdk.services.ServiceFacade;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * The entry point into the Snapyr for Android SDK.
@@ -131,17 +131,23 @@ public class Snapyr {
     @Private final boolean nanosecondTimestamps;
     @Private final boolean useNewLifecycleMethods;
     private final ProjectSettings.Cache projectSettingsCache;
-    // Retrieving the advertising ID is asynchronous. This latch helps us wait to ensure the
-    // advertising ID is ready.
-    private final CountDownLatch advertisingIdLatch;
     private final ExecutorService analyticsExecutor;
+    /** Hands track and screen calls to {@link #analyticsExecutor} without allocating. */
+    private final EventRing eventRing;
     private final BooleanPreference optOut;
     ProjectSettings projectSettings; // todo: make final (non-final for testing).
+    /** Compiled from {@link #projectSettings} whenever the settings change. */
+    @Private volatile TrackingPlan trackingPlan = TrackingPlan.EMPTY;
+    /** Samples and rate limits track events, as set up by the builder and project settings. */
+    @Private final EventThrottle eventThrottle;
     volatile boolean shutdown;
-    private SnapyrNotificationHandler notificationHandler;
+    private volatile SnapyrNotificationHandler notificationHandler;
     private String pushToken;
     private Map<String, PushTemplate> PushTemplates;
-    final BatchUploadQueue sendQueue;
+    /** Only used on {@link #analyticsExecutor}, where it's created if {@link #lazyInit} is set. */
+    BatchUploadQueue sendQueue;
+    /** Whether the queue, in-app and push handling are set up on {@link #analyticsExecutor}. */
+    private final boolean lazyInit;
     private String sessionId;
     private long sessionStart;
     private ConnectionFactory.Environment environment;
@@ -162,9 +168,9 @@ public class Snapyr {
             ConnectionFactory.Environment environment,
             int flushQueueSize,
             long flushIntervalInMillis,
+            BatchUploadQueue.Config uploadConfig,
             final ExecutorService analyticsExecutor,
             final boolean shouldTrackApplicationLifecycleEvents,
-            CountDownLatch advertisingIdLatch,
             final boolean shouldRecordScreenViews,
             final boolean trackDeepLinks,
             BooleanPreference optOut,
@@ -175,7 +181,9 @@ public class Snapyr {
             boolean useNewLifecycleMethods,
             boolean enableSnapyrPushHandling,
             InAppConfig inAppConfig,
-            boolean isHelperInstance) {
+            boolean isHelperInstance,
+            boolean lazyInit,
+            EventThrottle.Limits throttleLimits) {
 
         // setup the references to the static things used everywhere
         ServiceFacade.getInstance()
@@ -196,14 +204,42 @@ public class Snapyr {
         this.environment = environment;
         this.flushQueueSize = flushQueueSize;
         this.flushIntervalInMillis = flushIntervalInMillis;
-        this.advertisingIdLatch = advertisingIdLatch;
         this.optOut = optOut;
         this.analyticsExecutor = analyticsExecutor;
+        this.eventRing =
+                new EventRing(
+                        EventRing.DEFAULT_CAPACITY,
+                        analyticsExecutor,
+                        new EventRing.Consumer() {
+                            @Override
+                            public void onEvent(
+                                    int kind,
+                                    String category,
+                                    String name,
+                                    Properties properties,
+                                    Options options,
+                                    long timestampNanos) {
+                                NanoDate timestamp = new NanoDate(timestampNanos);
+                                try {
+                                    if (kind == EventRing.TRACK) {
+                                        performTrack(name, properties, options, timestamp);
+                                    } else {
+                                        performScreen(
+                                                category, name, properties, options, timestamp);
+                                    }
+                                } catch (RuntimeException e) {
+                                    ServiceFacade.getLogger()
+                                            .error(e, "Could not enqueue event %s.", name);
+                                }
+                            }
+                        });
         this.lifecycle = lifecycle;
         this.nanosecondTimestamps = nanosecondTimestamps;
         this.useNewLifecycleMethods = useNewLifecycleMethods;
         this.PushTemplates = new HashMap<>();
         this.isHelperInstance = isHelperInstance;
+        this.lazyInit = lazyInit && !isHelperInstance;
+        this.eventThrottle = new EventThrottle(throttleLimits);
 
         BatchQueue queueOverride = null;
         if (isHelperInstance) {
@@ -212,9 +248,32 @@ public class Snapyr {
             // prevent auto flushing (consumer is responsible for explicit flushing).
             this.sendQueue =
                     new BatchUploadQueue(application, 999999, 999, new BatchQueue.MemoryQueue());
+        } else if (this.lazyInit) {
+            // Opening the disk queue creates its folder and reads and checks the file header, and
+            // the queue starts its own threads. This runs on the analytics thread ahead of any
+            // event, so events recorded in the meantime wait in the event ring and are enqueued
+            // once it's done.
+            analyticsExecutor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            sendQueue =
+                                    new BatchUploadQueue(
+                                            application,
+                                            flushIntervalInMillis,
+                                            flushQueueSize,
+                                            null,
+                                            uploadConfig);
+                        }
+                    });
         } else {
             this.sendQueue =
-                    new BatchUploadQueue(application, flushIntervalInMillis, flushQueueSize, null);
+                    new BatchUploadQueue(
+                            application,
+                            flushIntervalInMillis,
+                            flushQueueSize,
+                            null,
+                            uploadConfig);
         }
 
         analyticsExecutor.submit(
@@ -256,6 +315,8 @@ public class Snapyr {
                                         .put("platform", "Android");
                             }
                             projectSettings = ProjectSettings.create(defaultProjectSettings);
+                            trackingPlan = TrackingPlan.compile(projectSettings);
+                            eventThrottle.configure(projectSettings);
                         }
                     }
                 });
@@ -309,18 +370,35 @@ public class Snapyr {
                     });
         }
 
+        if (this.lazyInit) {
+            analyticsExecutor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            startInAppAndPush(application, inAppConfig, enableSnapyrPushHandling);
+                        }
+                    });
+        } else {
+            startInAppAndPush(application, inAppConfig, enableSnapyrPushHandling);
+        }
+
+        sessionStarted();
+    }
+
+    private void startInAppAndPush(
+            Application application, InAppConfig inAppConfig, boolean enableSnapyrPushHandling) {
         if (inAppConfig != null) {
             InAppFacade.allowInApp();
             InAppFacade.createInApp(inAppConfig, application);
         }
 
         if (enableSnapyrPushHandling) {
-            this.notificationHandler = new SnapyrNotificationHandler(application);
+            SnapyrNotificationHandler notificationHandler =
+                    new SnapyrNotificationHandler(application);
+            this.notificationHandler = notificationHandler;
             notificationHandler.autoRegisterFirebaseToken(this);
             storePushConfigs();
         }
-
-        sessionStarted();
     }
 
     private void storePushConfigs() {
@@ -456,6 +534,10 @@ public class Snapyr {
     public void RefreshConfiguration(boolean force) {
         ProjectSettings newSettings = getSettings(force);
         if (!isNullOrEmpty(newSettings)) {
+            if (newSettings != projectSettings) {
+                this.trackingPlan = TrackingPlan.compile(newSettings);
+                eventThrottle.configure(newSettings);
+            }
             this.projectSettings = newSettings;
             ValueMap metadata = projectSettings.getValueMap("metadata");
             ServiceFacade.getSnapyrContext().putSdkMeta(metadata);
@@ -590,7 +672,7 @@ public class Snapyr {
             throw new IllegalArgumentException("Either userId or some traits must be provided.");
         }
         NanoDate timestamp = new NanoDate();
-        analyticsExecutor.submit(
+        eventRing.publish(
                 new Runnable() {
                     @Override
                     public void run() {
@@ -657,7 +739,7 @@ public class Snapyr {
             throw new IllegalArgumentException("groupId must not be null or empty.");
         }
         NanoDate timestamp = new NanoDate();
-        analyticsExecutor.submit(
+        eventRing.publish(
                 new Runnable() {
                     @Override
                     public void run() {
@@ -746,28 +828,37 @@ public class Snapyr {
         if (Utils.isNullOrEmpty(category) && Utils.isNullOrEmpty(name)) {
             throw new IllegalArgumentException("either category or name must be provided.");
         }
-        NanoDate timestamp = new NanoDate();
-        analyticsExecutor.submit(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        final Properties finalProperties;
-                        if (properties == null) {
-                            finalProperties = EMPTY_PROPERTIES;
-                        } else {
-                            finalProperties = properties;
-                        }
+        eventRing.publish(
+                EventRing.SCREEN,
+                category,
+                name,
+                properties,
+                options,
+                NanoDate.NanoClock.currentTimeNanos());
+    }
 
-                        //noinspection deprecation
-                        ScreenPayload.Builder builder =
-                                new ScreenPayload.Builder()
-                                        .timestamp(timestamp)
-                                        .name(name)
-                                        .category(category)
-                                        .properties(finalProperties);
-                        fillAndEnqueue(builder, options);
-                    }
-                });
+    @Private
+    void performScreen(
+            String category,
+            String name,
+            Properties properties,
+            Options options,
+            NanoDate timestamp) {
+        final Properties finalProperties;
+        if (properties == null) {
+            finalProperties = EMPTY_PROPERTIES;
+        } else {
+            finalProperties = properties;
+        }
+
+        //noinspection deprecation
+        ScreenPayload.Builder builder =
+                new ScreenPayload.Builder()
+                        .timestamp(timestamp)
+                        .name(name)
+                        .category(category)
+                        .properties(finalProperties);
+        fillAndEnqueue(builder, options);
     }
 
     public void setPushNotificationToken(final @NonNull String token) {
@@ -844,27 +935,52 @@ public class Snapyr {
         if (Utils.isNullOrEmpty(event)) {
             throw new IllegalArgumentException("event must not be null or empty.");
         }
-        NanoDate timestamp = new NanoDate();
-        analyticsExecutor.submit(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        final Properties finalProperties;
-                        if (properties == null) {
-                            finalProperties = EMPTY_PROPERTIES;
-                        } else {
-                            finalProperties = properties;
-                        }
+        eventRing.publish(
+                EventRing.TRACK,
+                null,
+                event,
+                properties,
+                options,
+                NanoDate.NanoClock.currentTimeNanos());
+    }
 
-                        TrackPayload.Builder builder =
-                                new TrackPayload.Builder()
-                                        .timestamp(timestamp)
-                                        .event(event)
-                                        .session(sessionId)
-                                        .properties(finalProperties);
-                        fillAndEnqueue(builder, options);
-                    }
-                });
+    @Private
+    void performTrack(String event, Properties properties, Options options, NanoDate timestamp) {
+        // Sampling and rate limits are checked before the event is built, so dropping an event
+        // costs next to nothing.
+        long nowMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        reportDroppedEvents(nowMillis);
+        String anonymousId = ServiceFacade.getSnapyrContext().traits().anonymousId();
+        if (!eventThrottle.allow(event, anonymousId, nowMillis)) {
+            ServiceFacade.getLogger().verbose("Throttled event %s.", event);
+            return;
+        }
+
+        final Properties finalProperties;
+        if (properties == null) {
+            finalProperties = EMPTY_PROPERTIES;
+        } else {
+            finalProperties = properties;
+        }
+
+        TrackPayload.Builder builder =
+                new TrackPayload.Builder()
+                        .timestamp(timestamp)
+                        .event(event)
+                        .session(sessionId)
+                        .properties(finalProperties);
+        fillAndEnqueue(builder, options);
+    }
+
+    /** Tracks how many events the throttle dropped, if a summary is due. */
+    private void reportDroppedEvents(long nowMillis) {
+        Map<String, Object> summary = eventThrottle.takeSummary(nowMillis);
+        if (summary == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.putAll(summary);
+        performTrack(EventThrottle.SUMMARY_EVENT, properties, null, new NanoDate());
     }
 
     /** @see #alias(String, Options) */
@@ -904,7 +1020,7 @@ public class Snapyr {
         }
 
         NanoDate timestamp = new NanoDate();
-        analyticsExecutor.submit(
+        eventRing.publish(
                 new Runnable() {
                     @Override
                     public void run() {
@@ -921,23 +1037,12 @@ public class Snapyr {
                 });
     }
 
-    private void waitForAdvertisingId() {
-        try {
-            advertisingIdLatch.await(15, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            ServiceFacade.getLogger()
-                    .error(e, "Thread interrupted while waiting for advertising ID.");
-        }
-        if (advertisingIdLatch.getCount() == 1) {
-            ServiceFacade.getLogger()
-                    .debug(
-                            "Advertising ID may not be collected because the API did not respond within 15 seconds.");
-        }
-    }
-
     @Private
     void fillAndEnqueue(BasePayload.Builder<?, ?> builder, Options options) {
-        waitForAdvertisingId();
+        if (builder instanceof TrackPayload.Builder
+                && !applyTrackingPlan((TrackPayload.Builder) builder)) {
+            return;
+        }
 
         // TODO (major version change) -> do not override, merge it with defaultOptions
         final Options finalOptions;
@@ -949,10 +1054,7 @@ public class Snapyr {
 
         // Create a new working copy
         SnapyrContext contextCopy =
-                new SnapyrContext(new LinkedHashMap<>(ServiceFacade.getSnapyrContext().size()));
-        contextCopy.putAll(ServiceFacade.getSnapyrContext());
-        contextCopy.putAll(finalOptions.context());
-        contextCopy = contextCopy.unmodifiableCopy();
+                ServiceFacade.getSnapyrContext().snapshot(finalOptions.context());
 
         builder.context(contextCopy);
         builder.anonymousId(contextCopy.traits().anonymousId());
@@ -971,6 +1073,27 @@ public class Snapyr {
         this.sendQueue.performEnqueue(payload);
     }
 
+    /**
+     * Drops or trims a track event as the tracking plan says, before any work is done to send it.
+     * Returns false if the event was dropped.
+     */
+    private boolean applyTrackingPlan(TrackPayload.Builder builder) {
+        String event = builder.event();
+        if (event == null) {
+            return true;
+        }
+        Map<String, Object> properties = builder.properties();
+        Map<String, Object> planned = trackingPlan.apply(event, properties);
+        if (planned == null) {
+            ServiceFacade.getLogger().verbose("Tracking plan dropped event %s.", event);
+            return false;
+        }
+        if (planned != properties) {
+            builder.properties(planned);
+        }
+        return true;
+    }
+
     /**
      * Asynchronously flushes all messages in the queue to the server, and tells bundled
      * integrations to do the same.
@@ -979,7 +1102,7 @@ public class Snapyr {
         if (shutdown) {
             throw new IllegalStateException("Cannot enqueue messages after client is shutdown.");
         }
-        analyticsExecutor.submit(
+        eventRing.publish(
                 new Runnable() {
                     @Override
                     public void run() {
@@ -1010,9 +1133,20 @@ public class Snapyr {
     /**
      * Resets the analytics client by clearing any stored information about the user. Events queued
      * on disk are not cleared, and will be uploaded at a later time. Preserves BUILD and VERSION
-     * values.
+     * values. Events recorded before the reset still go out with the user they were recorded for.
      */
     public void reset() {
+        eventRing.publish(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        performReset();
+                    }
+                });
+    }
+
+    @Private
+    void performReset() {
         SharedPreferences sharedPreferences =
                 Utils.getSnapyrSharedPreferences(ServiceFacade.getApplication(), tag);
         // LIB-1578: only remove traits, preserve BUILD and VERSION keys in order to to fix
@@ -1051,7 +1185,17 @@ public class Snapyr {
 
         sessionEnded();
         flush();
-        sendQueue.shutdown();
+        if (lazyInit) {
+            analyticsExecutor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            sendQueue.shutdown();
+                        }
+                    });
+        } else {
+            sendQueue.shutdown();
+        }
         Application application = ServiceFacade.getApplication();
         application.unregisterActivityLifecycleCallbacks(activityLifecycleCallback);
         if (useNewLifecycleMethods) {
@@ -1089,37 +1233,53 @@ public class Snapyr {
 
     private ProjectSettings downloadSettings() {
         try {
-            ProjectSettings projectSettings =
-                    ServiceFacade.getNetworkExecutor()
-                            .submit(
-                                    new Callable<ProjectSettings>() {
-                                        @Override
-                                        public ProjectSettings call() throws Exception {
-                                            Map<String, Object> settings =
-                                                    SettingsRequest.execute();
-                                            if (!settings.containsKey("integrations")) {
-                                                settings.put(
-                                                        "integrations",
-                                                        new ValueMap()
-                                                                .putValue(
-                                                                        "Snapyr",
-                                                                        new ValueMap()
-                                                                                .putValue(
-                                                                                        "apiKey",
-                                                                                        writeKey)));
-                                            }
-                                            if (!settings.containsKey("metadata")) {
-                                                settings.put(
-                                                        "metadata",
-                                                        new ValueMap()
-                                                                .putValue("platform", "Android"));
-                                            }
-                                            return ProjectSettings.create(settings);
-                                        }
-                                    })
-                            .get();
-            projectSettingsCache.set(projectSettings);
-            return projectSettings;
+            return ServiceFacade.getNetworkExecutor()
+                    .submit(
+                            new Callable<ProjectSettings>() {
+                                @Override
+                                public ProjectSettings call() throws Exception {
+                                    SettingsRequest.Response response =
+                                            SettingsRequest.execute(
+                                                    projectSettingsCache.etag(),
+                                                    projectSettingsCache.lastModified());
+                                    if (response == null) {
+                                        // Unchanged, so there's nothing to parse or store.
+                                        return projectSettingsCache.touch();
+                                    }
+                                    Map<String, Object> settings = response.parse();
+                                    byte[] body = response.body;
+                                    if (!settings.containsKey("integrations")) {
+                                        settings.put(
+                                                "integrations",
+                                                new ValueMap()
+                                                        .putValue(
+                                                                "Snapyr",
+                                                                new ValueMap()
+                                                                        .putValue(
+                                                                                "apiKey",
+                                                                                writeKey)));
+                                        body = null;
+                                    }
+                                    if (!settings.containsKey("metadata")) {
+                                        settings.put(
+                                                "metadata",
+                                                new ValueMap().putValue("platform", "Android"));
+                                        body = null;
+                                    }
+                                    ProjectSettings projectSettings =
+                                            ProjectSettings.create(settings);
+                                    if (body == null) {
+                                        body = cartographer.toJson(settings).getBytes("UTF-8");
+                                    }
+                                    projectSettingsCache.set(
+                                            projectSettings,
+                                            body,
+                                            response.etag,
+                                            response.lastModified);
+                                    return projectSettings;
+                                }
+                            })
+                    .get();
         } catch (InterruptedException e) {
             ServiceFacade.getLogger().error(e, "Thread interrupted while fetching settings.");
         } catch (ExecutionException e) {
@@ -1218,6 +1378,18 @@ public class Snapyr {
         private boolean collectDeviceID = Utils.DEFAULT_COLLECT_DEVICE_ID;
         private int flushQueueSize = Utils.DEFAULT_FLUSH_QUEUE_SIZE;
         private long flushIntervalInMillis = Utils.DEFAULT_FLUSH_INTERVAL;
+        private long queueCommitWindowMillis = 0;
+        private boolean memoryMappedQueue = false;
+        private boolean gzipBatches = false;
+        private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+        private int gzipThresholdBytes = 0;
+        private int maxInFlightBatches = 1;
+        private int meteredFlushMultiplier = 1;
+        private String[] priorityEvents;
+        private double sampleRate = 1;
+        private int rateLimitMaxEvents = 0;
+        private long rateLimitPeriodMillis = TimeUnit.MINUTES.toMillis(1);
+        private boolean lazyInit = false;
         private Options defaultOptions;
         private String tag;
         private LogLevel logLevel;
@@ -1297,6 +1469,177 @@ public class Snapyr {
             return this;
         }
 
+        /**
+         * Set how long events may be held in memory before they are written to the disk queue.
+         * Events enqueued within this window are written together with a single synchronous disk
+         * write, which keeps bursts of events cheap at the cost of losing up to {@code window} of
+         * events if the process dies. Defaults to {@code 0}, which writes every event to disk as
+         * it is enqueued.
+         *
+         * @throws IllegalArgumentException if the window is less than zero.
+         */
+        public Builder queueCommitWindow(long window, TimeUnit timeUnit) {
+            if (timeUnit == null) {
+                throw new IllegalArgumentException("timeUnit must not be null.");
+            }
+            if (window < 0) {
+                throw new IllegalArgumentException("window must not be negative.");
+            }
+            this.queueCommitWindowMillis = timeUnit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Access the disk queue through a memory mapping, so enqueueing and uploading events copy
+         * memory instead of making a system call per read and write. Queued events survive the
+         * app being killed, but are only guaranteed to reach storage when the queue is closed. The
+         * queue file format doesn't change, so events queued before enabling or after disabling
+         * this are kept. Disabled by default.
+         */
+        public Builder memoryMappedQueue(boolean enabled) {
+            this.memoryMappedQueue = enabled;
+            return this;
+        }
+
+        /**
+         * Gzip compress uploaded batches at the given {@link Deflater} level, once the queued
+         * events add up to at least {@code thresholdBytes} of JSON. Smaller batches are sent
+         * uncompressed, since compressing them isn't worth the CPU time. Compressed batches are
+         * limited by their compressed size, so more events fit in each request. Disabled by
+         * default.
+         *
+         * @throws IllegalArgumentException if the level isn't a valid {@link Deflater} level, or
+         *     the threshold is less than zero.
+         */
+        public Builder gzipBatches(int level, int thresholdBytes) {
+            if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                    && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException(
+                        "level must be between 1 and 9, or -1 for the default.");
+            }
+            if (thresholdBytes < 0) {
+                throw new IllegalArgumentException("thresholdBytes must not be negative.");
+            }
+            this.gzipBatches = true;
+            this.gzipLevel = level;
+            this.gzipThresholdBytes = thresholdBytes;
+            return this;
+        }
+
+        /**
+         * Upload up to {@code maxInFlightBatches} batches at once when flushing a large backlog of
+         * events, such as after a period offline. A batch is only removed from the queue once the
+         * batches before it have been accepted, so a failed upload never loses events, although
+         * batches after it may be sent again. Each batch in flight is held in memory, so this is
+         * limited to {@link BatchUploadQueue#MAX_IN_FLIGHT_BATCHES}. Defaults to 1, which uploads
+         * batches one at a time.
+         *
+         * @throws IllegalArgumentException if maxInFlightBatches is out of range.
+         */
+        public Builder maxInFlightBatches(int maxInFlightBatches) {
+            if (maxInFlightBatches <= 0) {
+                throw new IllegalArgumentException("maxInFlightBatches must be greater than zero.");
+            }
+            if (maxInFlightBatches > BatchUploadQueue.MAX_IN_FLIGHT_BATCHES) {
+                throw new IllegalArgumentException(
+                        "maxInFlightBatches must be less than or equal to "
+                                + BatchUploadQueue.MAX_IN_FLIGHT_BATCHES
+                                + ".");
+            }
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Batch more events on metered networks: while the device is on one, both {@link
+         * #flushQueueSize(int)} and {@link #flushInterval(long, TimeUnit)} are multiplied by {@code
+         * multiplier}, up to a queue size of 250. Defaults to 1, which flushes the same way on
+         * every network.
+         *
+         * @throws IllegalArgumentException if multiplier is less than 1.
+         */
+        public Builder meteredFlushMultiplier(int multiplier) {
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("multiplier must be greater than zero.");
+            }
+            this.meteredFlushMultiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Upload the track events named {@code events} right away, on their own connection,
+         * instead of waiting for the next flush. They are also the last events dropped when the
+         * queue is full. Defaults to push notification and in-app message interactions, and
+         * {@code Order Completed}; passing no names sends every event with the regular flushes.
+         *
+         * @throws IllegalArgumentException if an event name is null or empty.
+         */
+        public Builder priorityEvents(String... events) {
+            if (events == null) {
+                throw new IllegalArgumentException("events must not be null.");
+            }
+            for (String event : events) {
+                if (isNullOrEmpty(event)) {
+                    throw new IllegalArgumentException("event names must not be null or empty.");
+                }
+            }
+            this.priorityEvents = events.clone();
+            return this;
+        }
+
+        /**
+         * Limit how often each track event can be tracked: an event may be tracked up to {@code
+         * maxEvents} times per {@code period}, in bursts of up to {@code maxEvents}. Events over
+         * the limit are dropped before they are serialized, and how many were dropped is reported
+         * with a {@code snapyr.hidden.eventsDropped} event about once a minute. Events the SDK
+         * tracks by itself are never dropped. The project settings may override this limit, and
+         * set limits for single events. Disabled by default.
+         *
+         * @throws IllegalArgumentException if maxEvents or period is less than or equal to zero.
+         */
+        public Builder rateLimitEvents(int maxEvents, long period, TimeUnit timeUnit) {
+            if (timeUnit == null) {
+                throw new IllegalArgumentException("timeUnit must not be null.");
+            }
+            if (maxEvents <= 0) {
+                throw new IllegalArgumentException("maxEvents must be greater than zero.");
+            }
+            if (period <= 0) {
+                throw new IllegalArgumentException("period must be greater than zero.");
+            }
+            this.rateLimitMaxEvents = maxEvents;
+            this.rateLimitPeriodMillis = timeUnit.toMillis(period);
+            return this;
+        }
+
+        /**
+         * Only send track events for a fraction {@code sampleRate} of users. Users are picked by
+         * their anonymous ID, so each user sends either all of their track events or none of them,
+         * and always the same. Events the SDK tracks by itself are always sent. The project
+         * settings may override this. Defaults to 1, which sends events for every user.
+         *
+         * @throws IllegalArgumentException if sampleRate is not between 0 and 1.
+         */
+        public Builder sampleUsers(double sampleRate) {
+            if (!(sampleRate >= 0 && sampleRate <= 1)) {
+                throw new IllegalArgumentException("sampleRate must be between 0 and 1.");
+            }
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Return from {@link #build()} without waiting on the disk or system services. The event
+         * queue, device info, in-app and push handling are set up on the analytics thread instead,
+         * and events recorded until then are held in memory and sent once it's done. Until then,
+         * {@link Snapyr#getSnapyrContext()} has no app, device, network or screen info. Disabled by
+         * default.
+         */
+        public Builder lazyInit(boolean lazyInit) {
+            this.lazyInit = lazyInit;
+            return this;
+        }
+
         /**
          * Enable or disable collection of {@link android.provider.Settings.Secure#ANDROID_ID},
          * {@link android.os.Build#SERIAL} or the Telephony Identifier retrieved via
@@ -1402,7 +1745,10 @@ public class Snapyr {
             return this;
         }
 
-        /** Specify the crypto interface for customizing how data is stored at rest. */
+        /**
+         * Specify the crypto interface for customizing how data is stored at rest. {@link
+         * Crypto#aesGcm(byte[])} is a built-in implementation.
+         */
         public Builder crypto(Crypto crypto) {
             if (crypto == null) {
                 throw new IllegalArgumentException("Crypto must not be null.");
@@ -1525,17 +1871,50 @@ public class Snapyr {
                 traitsCache.set(traits);
             }
 
-            Logger logger = Logger.with(logLevel);
-            SnapyrContext snapyrContext =
-                    SnapyrContext.create(application, traitsCache.get(), collectDeviceID);
-            CountDownLatch advertisingIdLatch = new CountDownLatch(1);
-            snapyrContext.attachAdvertisingId(application, advertisingIdLatch, logger);
-
+            final Logger logger = Logger.with(logLevel);
             ExecutorService executor = this.executor;
             if (executor == null) {
                 executor = Executors.newSingleThreadExecutor();
             }
 
+            final SnapyrContext snapyrContext;
+            if (lazyInit) {
+                // The first task on the executor, so it's done before any event is processed.
+                final Application application = this.application;
+                final boolean collectDeviceID = this.collectDeviceID;
+                snapyrContext = SnapyrContext.createLazily(traitsCache.get());
+                executor.submit(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                snapyrContext.putDeviceInfo(application, collectDeviceID);
+                                HANDLER.post(
+                                        new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                snapyrContext.attachAdvertisingId(
+                                                        application, logger);
+                                            }
+                                        });
+                            }
+                        });
+            } else {
+                snapyrContext =
+                        SnapyrContext.create(application, traitsCache.get(), collectDeviceID);
+                snapyrContext.attachAdvertisingId(application, logger);
+            }
+
+            BatchUploadQueue.Config uploadConfig =
+                    new BatchUploadQueue.Config()
+                            .setQueueCommitWindowMillis(queueCommitWindowMillis)
+                            .setMemoryMappedQueue(memoryMappedQueue)
+                            .setGzip(gzipBatches, gzipLevel, gzipThresholdBytes)
+                            .setMaxInFlightBatches(maxInFlightBatches)
+                            .setMeteredFlushMultiplier(meteredFlushMultiplier);
+            if (priorityEvents != null) {
+                uploadConfig.setPriorityEvents(priorityEvents);
+            }
+
             Lifecycle lifecycle = ProcessLifecycleOwner.get().getLifecycle();
             return new Snapyr(
                     application,
@@ -1552,9 +1931,9 @@ public class Snapyr {
                     snapyrEnvironment,
                     flushQueueSize,
                     flushIntervalInMillis,
+                    uploadConfig,
                     executor,
                     trackApplicationLifecycleEvents,
-                    advertisingIdLatch,
                     recordScreenViews,
                     trackDeepLinks,
                     optOut,
@@ -1565,7 +1944,13 @@ public class Snapyr {
                     useNewLifecycleMethods,
                     snapyrPushEnabled,
                     snapyrInAppConfig,
-                    isHelperInstance);
+                    isHelperInstance,
+                    lazyInit,
+                    new EventThrottle.Limits(
+                            sampleRate,
+                            rateLimitMaxEvents,
+                            rateLimitPeriodMillis,
+                            Collections.<String, Integer>emptyMap()));
         }
     }
 }
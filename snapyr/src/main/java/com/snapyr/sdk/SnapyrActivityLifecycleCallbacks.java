@@ -149,6 +149,9 @@ class SnapyrActivityLifecycleCallbacks
                 && numberOfActivities.decrementAndGet() == 0
                 && !isChangingActivityConfigurations.get()) {
             snapyr.track("Application Backgrounded");
+            // The process may be killed any time now, so upload what is queued without waiting
+            // for the flush interval.
+            snapyr.flush();
         }
     }
 
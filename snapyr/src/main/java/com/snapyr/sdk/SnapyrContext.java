@@ -33,6 +33,7 @@ import static java.util.Collections.unmodifiableMap;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
@@ -45,12 +46,12 @@ import android.view.WindowManager;
 import com.snapyr.sdk.core.BuildConfig;
 import com.snapyr.sdk.internal.Private;
 import com.snapyr.sdk.internal.Utils;
+import com.snapyr.sdk.services.JsonFragment;
 import com.snapyr.sdk.services.Logger;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.CountDownLatch;
 
 /**
  * Context is a dictionary of free-form information about the state of the device. Context is
@@ -69,13 +70,20 @@ import java.util.concurrent.CountDownLatch;
  * modifying nested data structures after passing them to this library. This concern could be
  * mitigated by deep rather than shallow copying (e.g. via de-serialiation and re-serialisation),
  * however this would contribute a performance penalty.
+ *
+ * <p>The app, device, library, locale, os, screen and timezone entries rarely change, so they are
+ * encoded once into a {@link JsonFragment} which every {@link #snapshot(Map)} taken for a payload
+ * reuses. Changing any of these entries discards the fragment.
  */
-public class SnapyrContext extends ValueMap {
+public class SnapyrContext extends ValueMap implements JsonFragment.Source {
 
     private static final String LOCALE_KEY = "locale";
     private static final String TRAITS_KEY = "traits";
     private static final String USER_AGENT_KEY = "userAgent";
     private static final String TIMEZONE_KEY = "timezone";
+    // Advertising info from the last launch, in Snapyr.SERVICE_PREFS_TAG preferences.
+    private static final String ADVERTISING_ID_PREFERENCE_KEY = "advertisingId";
+    private static final String AD_TRACKING_ENABLED_PREFERENCE_KEY = "adTrackingEnabled";
     // App
     private static final String APP_KEY = "app";
     private static final String APP_NAME_KEY = "name";
@@ -113,9 +121,36 @@ public class SnapyrContext extends ValueMap {
     // Snapyr SDK Meta
     private static final String SDK_META_KEY = "sdkMeta";
 
+    /** Keys whose values are encoded once into {@link #fragment}. */
+    private static final String[] STABLE_KEYS = {
+        APP_KEY, DEVICE_KEY, LIBRARY_KEY, LOCALE_KEY, OS_KEY, SCREEN_KEY, TIMEZONE_KEY
+    };
+
+    /** The stable entries, encoded. Null until first needed, and after any of them changes. */
+    private volatile JsonFragment fragment;
+
+    private final boolean unmodifiable;
+    /** The context this snapshot was taken from, or null if this is not a snapshot. */
+    private final SnapyrContext source;
+    /** The fragment of {@link #source} when this snapshot was taken. */
+    private final JsonFragment sourceFragment;
+    /** Where advertising info is kept between launches, once {@link #attachAdvertisingId} ran. */
+    private volatile SharedPreferences advertisingPreferences;
+
     // For deserialization and wrapping
     SnapyrContext(Map<String, Object> delegate) {
+        this(delegate, false, null, null);
+    }
+
+    private SnapyrContext(
+            Map<String, Object> delegate,
+            boolean unmodifiable,
+            SnapyrContext source,
+            JsonFragment sourceFragment) {
         super(delegate);
+        this.unmodifiable = unmodifiable;
+        this.source = source;
+        this.sourceFragment = sourceFragment;
     }
 
     /**
@@ -125,23 +160,40 @@ public class SnapyrContext extends ValueMap {
      */
     static synchronized SnapyrContext create(
             Context context, Traits traits, boolean collectDeviceId) {
+        SnapyrContext snapyrContext = createLazily(traits);
+        snapyrContext.putDeviceInfo(context, collectDeviceId);
+        return snapyrContext;
+    }
+
+    /**
+     * Like {@link #create(Context, Traits, boolean)}, but leaves out the info that has to be
+     * queried from the system, which {@link #putDeviceInfo(Context, boolean)} fills in later.
+     */
+    static SnapyrContext createLazily(Traits traits) {
         SnapyrContext snapyrContext =
                 new SnapyrContext(new Utils.NullableConcurrentHashMap<String, Object>());
-        snapyrContext.putApp(context);
         snapyrContext.setTraits(traits);
-        snapyrContext.putDevice(context, collectDeviceId);
         snapyrContext.putLibrary();
         snapyrContext.put(
                 LOCALE_KEY,
                 Locale.getDefault().getLanguage() + "-" + Locale.getDefault().getCountry());
-        snapyrContext.putNetwork(context);
         snapyrContext.putOs();
-        snapyrContext.putScreen(context);
         putUndefinedIfNull(snapyrContext, USER_AGENT_KEY, System.getProperty("http.agent"));
         putUndefinedIfNull(snapyrContext, TIMEZONE_KEY, TimeZone.getDefault().getID());
         return snapyrContext;
     }
 
+    /**
+     * Fills in the app, device, network and screen info, which come from the package manager and
+     * system services.
+     */
+    void putDeviceInfo(Context context, boolean collectDeviceId) {
+        putApp(context);
+        putDevice(context, collectDeviceId);
+        putNetwork(context);
+        putScreen(context);
+    }
+
     static void putUndefinedIfNull(Map<String, Object> target, String key, CharSequence value) {
         if (Utils.isNullOrEmpty(value)) {
             target.put(key, "undefined");
@@ -150,31 +202,155 @@ public class SnapyrContext extends ValueMap {
         }
     }
 
-    void attachAdvertisingId(Context context, CountDownLatch latch, Logger logger) {
+    /**
+     * Fetches the advertising info in the background. Until it arrives, the info fetched on an
+     * earlier launch is used, so events never wait for it.
+     */
+    void attachAdvertisingId(Context context, Logger logger) {
+        advertisingPreferences =
+                Utils.getSnapyrSharedPreferences(context, Snapyr.SERVICE_PREFS_TAG);
+        Device device = device();
+        if (device != null
+                && advertisingPreferences != null
+                && advertisingPreferences.contains(AD_TRACKING_ENABLED_PREFERENCE_KEY)) {
+            device.putAdvertisingInfo(
+                    advertisingPreferences.getString(ADVERTISING_ID_PREFERENCE_KEY, null),
+                    advertisingPreferences.getBoolean(AD_TRACKING_ENABLED_PREFERENCE_KEY, false));
+        }
         // This is done as an extra step so we don't run into errors like this for testing
         // http://pastebin.com/gyWJKWiu.
         if (Utils.isOnClassPath("com.google.android.gms.ads.identifier.AdvertisingIdClient")) {
             // This needs to be done each time since the settings may have been updated.
-            new GetAdvertisingIdTask(this, latch, logger).execute(context);
+            new GetAdvertisingIdTask(this, logger).execute(context);
         } else {
             logger.debug(
                     "Not collecting advertising ID because "
                             + "com.google.android.gms.ads.identifier.AdvertisingIdClient "
                             + "was not found on the classpath.");
-            latch.countDown();
+        }
+    }
+
+    /**
+     * Sets the advertising info of this context's device, and keeps it for the next launch if
+     * {@link #attachAdvertisingId} was called.
+     */
+    void putAdvertisingInfo(String advertisingId, boolean adTrackingEnabled) {
+        device().putAdvertisingInfo(advertisingId, adTrackingEnabled);
+        if (advertisingPreferences != null) {
+            advertisingPreferences
+                    .edit()
+                    .putString(
+                            ADVERTISING_ID_PREFERENCE_KEY, adTrackingEnabled ? advertisingId : null)
+                    .putBoolean(AD_TRACKING_ENABLED_PREFERENCE_KEY, adTrackingEnabled)
+                    .apply();
         }
     }
 
     @Override
     public SnapyrContext putValue(String key, Object value) {
         super.putValue(key, value);
+        invalidateFragment(key);
         return this;
     }
 
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = super.put(key, value);
+        invalidateFragment(key);
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        super.putAll(map);
+        invalidateFragment();
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous = super.remove(key);
+        invalidateFragment(key);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        invalidateFragment();
+    }
+
     /** Returns an unmodifiable shallow copy of the values in this map. */
     public SnapyrContext unmodifiableCopy() {
         LinkedHashMap<String, Object> map = new LinkedHashMap<>(this);
-        return new SnapyrContext(unmodifiableMap(map));
+        return new SnapyrContext(unmodifiableMap(map), true, null, null);
+    }
+
+    /**
+     * Returns an unmodifiable shallow copy of the values in this map with {@code overrides} applied
+     * on top, for a single payload. The copy writes this context's encoded stable entries for as
+     * long as they are current and not overridden.
+     */
+    public SnapyrContext snapshot(Map<String, Object> overrides) {
+        JsonFragment fragment = stableFragment();
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>(size() + overrides.size());
+        map.putAll(this);
+        map.putAll(overrides);
+        return new SnapyrContext(unmodifiableMap(map), true, this, fragment);
+    }
+
+    /** Returns true if this instance is a copy made by {@link #unmodifiableCopy()}. */
+    public boolean isUnmodifiableCopy() {
+        return unmodifiable;
+    }
+
+    @Override
+    public JsonFragment jsonFragment() {
+        if (sourceFragment == null
+                || source.fragment != sourceFragment
+                || !sourceFragment.matches(this)) {
+            // The stable entries changed, or were overridden, after this snapshot was taken.
+            return null;
+        }
+        return sourceFragment;
+    }
+
+    private synchronized JsonFragment stableFragment() {
+        JsonFragment fragment = this.fragment;
+        if (fragment == null) {
+            Map<String, Object> values = new LinkedHashMap<>(STABLE_KEYS.length);
+            for (String key : STABLE_KEYS) {
+                Object value = get(key);
+                if (isTracked(value)) {
+                    values.put(key, value);
+                }
+            }
+            fragment = JsonFragment.encode(values);
+            this.fragment = fragment;
+        }
+        return fragment;
+    }
+
+    /**
+     * Returns true if every change to {@code value} goes through this context: strings, the maps
+     * it fills in itself, and its own {@link Device}. Anything else is encoded for every payload.
+     */
+    private boolean isTracked(Object value) {
+        return value instanceof String
+                || value instanceof FixedMap
+                || value instanceof Device && ((Device) value).owner == this;
+    }
+
+    private void invalidateFragment(Object key) {
+        for (String stableKey : STABLE_KEYS) {
+            if (stableKey.equals(key)) {
+                invalidateFragment();
+                return;
+            }
+        }
+    }
+
+    synchronized void invalidateFragment() {
+        fragment = null;
     }
 
     /**
@@ -211,7 +387,7 @@ public class SnapyrContext extends ValueMap {
             putUndefinedIfNull(app, APP_VERSION_KEY, packageInfo.versionName);
             putUndefinedIfNull(app, APP_NAMESPACE_KEY, packageInfo.packageName);
             app.put(APP_BUILD_KEY, String.valueOf(packageInfo.versionCode));
-            put(APP_KEY, app);
+            put(APP_KEY, new FixedMap(app));
         } catch (PackageManager.NameNotFoundException e) {
             // ignore
         }
@@ -235,6 +411,7 @@ public class SnapyrContext extends ValueMap {
         device.put(Device.DEVICE_MODEL_KEY, Build.MODEL);
         device.put(Device.DEVICE_NAME_KEY, Build.DEVICE);
         device.put(Device.DEVICE_TYPE_KEY, "android");
+        device.owner = this;
         put(DEVICE_KEY, device);
     }
 
@@ -253,7 +430,7 @@ public class SnapyrContext extends ValueMap {
         Map<String, Object> library = Utils.createMap();
         library.put(LIBRARY_NAME_KEY, "analytics-android");
         library.put(LIBRARY_VERSION_KEY, BuildConfig.VERSION_NAME);
-        put(LIBRARY_KEY, library);
+        put(LIBRARY_KEY, new FixedMap(library));
     }
 
     /** Set location information about the device. */
@@ -303,7 +480,7 @@ public class SnapyrContext extends ValueMap {
         Map<String, Object> os = Utils.createMap();
         os.put(OS_NAME_KEY, "Android");
         os.put(OS_VERSION_KEY, Build.VERSION.RELEASE);
-        put(OS_KEY, os);
+        put(OS_KEY, new FixedMap(os));
     }
 
     /** Set the SDK metadata retrieved from the SDK write key config endpoint. */
@@ -330,7 +507,7 @@ public class SnapyrContext extends ValueMap {
         screen.put(SCREEN_DENSITY_KEY, displayMetrics.density);
         screen.put(SCREEN_HEIGHT_KEY, displayMetrics.heightPixels);
         screen.put(SCREEN_WIDTH_KEY, displayMetrics.widthPixels);
-        put(SCREEN_KEY, screen);
+        put(SCREEN_KEY, new FixedMap(screen));
     }
 
     /**
@@ -412,6 +589,13 @@ public class SnapyrContext extends ValueMap {
         }
     }
 
+    /** Values the context fills in itself, which cannot change afterwards. */
+    private static final class FixedMap extends ValueMap {
+        FixedMap(Map<String, Object> map) {
+            super(unmodifiableMap(map));
+        }
+    }
+
     /** Information about the device. */
     public static class Device extends ValueMap {
 
@@ -432,20 +616,64 @@ public class SnapyrContext extends ValueMap {
             super(map);
         }
 
+        /** The context this device belongs to, which is told about every change to it. */
+        SnapyrContext owner;
+
         @Override
         public Device putValue(String key, Object value) {
             super.putValue(key, value);
+            changed();
             return this;
         }
 
+        @Override
+        public Object put(String key, Object value) {
+            Object previous = super.put(key, value);
+            changed();
+            return previous;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> map) {
+            super.putAll(map);
+            changed();
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object previous = super.remove(key);
+            changed();
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            changed();
+        }
+
+        private void changed() {
+            if (owner != null) {
+                owner.invalidateFragment();
+            }
+        }
+
         /** Set the advertising information for this device. */
         void putAdvertisingInfo(String advertisingId, boolean adTrackingEnabled) {
             if (adTrackingEnabled && !Utils.isNullOrEmpty(advertisingId)) {
                 put(DEVICE_ADVERTISING_ID_KEY, advertisingId);
+            } else if (containsKey(DEVICE_ADVERTISING_ID_KEY)) {
+                // Don't keep sending an ID remembered from an earlier launch.
+                remove(DEVICE_ADVERTISING_ID_KEY);
             }
             put(DEVICE_AD_TRACKING_ENABLED_KEY, adTrackingEnabled);
         }
 
+        /** Returns the advertising ID, or null if it isn't known or ad tracking is limited. */
+        public String advertisingId() {
+            return getString(DEVICE_ADVERTISING_ID_KEY);
+        }
+
         /** Set a device token. */
         public Device putDeviceToken(String token) {
             return putValue(DEVICE_TOKEN_KEY, token);
@@ -0,0 +1,180 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk;
+
+import static java.util.Collections.unmodifiableMap;
+
+import com.snapyr.sdk.internal.Private;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The tracking plan from {@link ProjectSettings#trackingPlan()}, compiled into rules that can be
+ * looked up by event name. The plan maps event names to rules, with the optional {@code
+ * __default} rule applying to events that aren't in the plan:
+ *
+ * <pre> <code>
+ *   "track": {
+ *     "__default": { "enabled": true },
+ *     "Debug Event": { "enabled": false },
+ *     "Scrolled": { "sampleRate": 0.1 },
+ *     "Order Completed": { "allowedProperties": ["orderId", "total"] }
+ *   }
+ * </code> </pre>
+ *
+ * Events the plan disables are dropped, a fraction {@code sampleRate} of events is kept, and
+ * properties that are not in {@code allowedProperties} are removed, all before the event is
+ * serialized.
+ */
+class TrackingPlan {
+    static final TrackingPlan EMPTY = new TrackingPlan(Collections.<String, Rule>emptyMap(), null);
+
+    private static final String DEFAULT_RULE_KEY = "__default";
+    /** Events the SDK tracks by itself. The default rule doesn't apply to them. */
+    private static final String SDK_EVENT_PREFIX = "snapyr.";
+
+    private final Map<String, Rule> rules;
+    private final Rule defaultRule;
+    private final Random random;
+
+    private TrackingPlan(Map<String, Rule> rules, Rule defaultRule) {
+        this(rules, defaultRule, new Random());
+    }
+
+    @Private
+    TrackingPlan(Map<String, Rule> rules, Rule defaultRule, Random random) {
+        this.rules = rules;
+        this.defaultRule = defaultRule;
+        this.random = random;
+    }
+
+    /** Compiles the tracking plan of the given settings. */
+    static TrackingPlan compile(ProjectSettings settings) {
+        ValueMap trackingPlan = settings == null ? null : settings.trackingPlan();
+        if (trackingPlan == null || trackingPlan.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Rule> rules = new HashMap<>(trackingPlan.size());
+        Rule defaultRule = Rule.ALLOW;
+        for (Map.Entry<String, Object> entry : trackingPlan.entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            Rule rule = Rule.compile(new ValueMap(asMap(entry.getValue())));
+            if (DEFAULT_RULE_KEY.equals(entry.getKey())) {
+                defaultRule = rule;
+            } else {
+                rules.put(entry.getKey(), rule);
+            }
+        }
+        if (defaultRule == Rule.ALLOW) {
+            // Events that are allowed anyway don't need to be looked up.
+            defaultRule = null;
+            rules.values().removeAll(Collections.singleton(Rule.ALLOW));
+            if (rules.isEmpty()) {
+                return EMPTY;
+            }
+        }
+        return new TrackingPlan(unmodifiableMap(rules), defaultRule);
+    }
+
+    /**
+     * Applies the plan to an event. Returns the properties the event should be sent with, which
+     * are {@code properties} itself unless some were removed, or {@code null} if the event should
+     * be dropped.
+     */
+    Map<String, Object> apply(String event, Map<String, Object> properties) {
+        Rule rule = rules.get(event);
+        if (rule == null) {
+            if (defaultRule == null || event.startsWith(SDK_EVENT_PREFIX)) {
+                return properties;
+            }
+            rule = defaultRule;
+        }
+        if (!rule.enabled) {
+            return null;
+        }
+        if (rule.sampleRate < 1 && random.nextDouble() >= rule.sampleRate) {
+            return null;
+        }
+        if (rule.allowedProperties == null
+                || properties == null
+                || rule.allowedProperties.containsAll(properties.keySet())) {
+            return properties;
+        }
+        Map<String, Object> allowed = new LinkedHashMap<>(properties.size());
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            if (rule.allowedProperties.contains(entry.getKey())) {
+                allowed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return allowed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    /** How the plan treats one event. */
+    static class Rule {
+        /** Keeps every event as it is. */
+        static final Rule ALLOW = new Rule(true, 1, null);
+
+        final boolean enabled;
+        final double sampleRate;
+        /** The only properties the event may have, or null if it may have any. */
+        final Set<String> allowedProperties;
+
+        Rule(boolean enabled, double sampleRate, Set<String> allowedProperties) {
+            this.enabled = enabled;
+            this.sampleRate = sampleRate;
+            this.allowedProperties = allowedProperties;
+        }
+
+        /** Returns the rule for the given plan entry. */
+        static Rule compile(ValueMap entry) {
+            boolean enabled = entry.getBoolean("enabled", true);
+            double sampleRate = Math.max(0, Math.min(1, entry.getDouble("sampleRate", 1)));
+            Set<String> allowedProperties = null;
+            Object allowed = entry.get("allowedProperties");
+            if (allowed instanceof Collection) {
+                allowedProperties = new HashSet<>();
+                for (Object property : (Collection<?>) allowed) {
+                    allowedProperties.add(String.valueOf(property));
+                }
+            }
+            if (enabled && sampleRate == 1 && allowedProperties == null) {
+                return ALLOW;
+            }
+            return new Rule(enabled, sampleRate, allowedProperties);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import com.snapyr.sdk.internal.Utils;
 import com.snapyr.sdk.services.Cartographer;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
@@ -379,28 +380,41 @@ public class ValueMap implements Map<String, Object> {
         return map;
     }
 
-    /** A class to let you store arbitrary key - {@link ValueMap} pairs. */
+    /**
+     * A class to let you store arbitrary key - {@link ValueMap} pairs. Values are kept in a {@link
+     * SnapshotStore}, so saving a value only writes the keys that changed. Values saved as JSON in
+     * shared preferences by earlier versions are read until the value is next saved.
+     */
     static class Cache<T extends ValueMap> {
+        private static final String SNAPSHOTS_FOLDER = "snapyr-snapshots";
 
-        private final SharedPreferences preferences;
+        private final Context context;
         private final Cartographer cartographer;
         private final String key;
+        private final String tag;
         private final Class<T> clazz;
+        private SnapshotStore store;
+        /** Whether the value may still be in shared preferences. */
+        private boolean legacyValue = true;
         private T value;
 
         Cache(Context context, Cartographer cartographer, String key, String tag, Class<T> clazz) {
+            this.context = context;
             this.cartographer = cartographer;
-            this.preferences = Utils.getSnapyrSharedPreferences(context, tag);
             this.key = key;
+            this.tag = tag;
             this.clazz = clazz;
         }
 
-        T get() {
+        synchronized T get() {
             if (value == null) {
-                String json = preferences.getString(key, null);
-                if (Utils.isNullOrEmpty(json)) return null;
                 try {
-                    Map<String, Object> map = cartographer.fromJson(json);
+                    Map<String, Object> map = store().read();
+                    if (map == null) {
+                        String json = preferences().getString(key, null);
+                        if (Utils.isNullOrEmpty(json)) return null;
+                        map = cartographer.fromJson(json);
+                    }
                     value = create(map);
                 } catch (IOException ignored) {
                     return null;
@@ -409,22 +423,47 @@ public class ValueMap implements Map<String, Object> {
             return value;
         }
 
-        boolean isSet() {
-            return preferences.contains(key);
+        synchronized boolean isSet() {
+            return store().exists() || preferences().contains(key);
         }
 
         T create(Map<String, Object> map) {
             return ValueMap.createValueMap(map, clazz);
         }
 
-        void set(T value) {
+        synchronized void set(T value) {
             this.value = value;
-            String json = cartographer.toJson(value);
-            preferences.edit().putString(key, json).apply();
+            try {
+                store().write(value);
+            } catch (IOException ignored) {
+                // Kept in memory, and written in full the next time it's set.
+                return;
+            }
+            if (legacyValue) {
+                legacyValue = false;
+                SharedPreferences preferences = preferences();
+                if (preferences.contains(key)) {
+                    preferences.edit().remove(key).apply();
+                }
+            }
+        }
+
+        synchronized void delete() {
+            value = null;
+            store().delete();
+            preferences().edit().remove(key).apply();
+        }
+
+        private SnapshotStore store() {
+            if (store == null) {
+                File folder = context.getDir(SNAPSHOTS_FOLDER, Context.MODE_PRIVATE);
+                store = new SnapshotStore(new File(folder, key));
+            }
+            return store;
         }
 
-        void delete() {
-            preferences.edit().remove(key).apply();
+        private SharedPreferences preferences() {
+            return Utils.getSnapyrSharedPreferences(context, tag);
         }
     }
 }
@@ -23,20 +23,113 @@
  */
 package com.snapyr.sdk.http;
 
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.io.OutputStream;
 
 public abstract class BatchQueue implements Closeable {
     public abstract int size();
 
     public abstract void remove(int n) throws IOException;
 
-    public abstract void add(byte[] data) throws IOException;
+    public void add(byte[] data) throws IOException {
+        add(data, 0, data.length);
+    }
+
+    /**
+     * Adds {@code length} bytes of {@code data} starting at {@code offset} as a new element. The
+     * bytes are copied, so callers may reuse {@code data} once this returns.
+     */
+    public abstract void add(byte[] data, int offset, int length) throws IOException;
 
-    public abstract void forEach(ElementVisitor visitor) throws IOException;
+    /**
+     * Visits elements from eldest to newest, until {@code visitor} returns {@code false}. Returns a
+     * cursor recording where the elements the visitor accepted end.
+     */
+    public Cursor forEach(ElementVisitor visitor) throws IOException {
+        return forEach(visitor, new Cursor());
+    }
+
+    /** Like {@link #forEach(ElementVisitor)}, but records the visit in the given cursor. */
+    public abstract Cursor forEach(ElementVisitor visitor, Cursor cursor) throws IOException;
+
+    /**
+     * Removes the eldest {@code n} elements, which must be the last {@code n} elements the visit
+     * that filled {@code cursor} accepted. Queues that can use the cursor to find the new eldest
+     * element directly do so.
+     */
+    public void remove(int n, Cursor cursor) throws IOException {
+        remove(n);
+    }
+
+    /**
+     * Zeroes out up to {@code maxBytes} bytes of removed elements, if the queue doesn't do that as
+     * they are removed.
+     *
+     * @return true if there are more bytes to zero out
+     */
+    public boolean compact(int maxBytes) throws IOException {
+        return false;
+    }
+
+    /**
+     * Writes out any elements that {@link #add} has staged but not yet persisted. Queues that
+     * persist every element as it is added have nothing to do.
+     */
+    public void commit() throws IOException {
+        // no-op
+    }
+
+    /**
+     * Whether the queue caps its own size by evicting its eldest elements as new ones are added.
+     * Callers must otherwise trim unbounded queues themselves.
+     */
+    public boolean isBounded() {
+        return false;
+    }
+
+    /**
+     * Where the contexts of the payloads in this queue are kept, or null if each payload keeps its
+     * own.
+     */
+    public ContextTable contexts() {
+        return null;
+    }
+
+    /**
+     * Where a {@link #forEach} visit stopped: after the last element the visitor accepted. Can be
+     * reused across visits.
+     */
+    public static final class Cursor {
+        QueueFile queueFile;
+        /** {@link QueueFile}'s generation at the start of the visit. */
+        int generation;
+        /** Elements removed from the queue before the visit. */
+        long removedCount;
+        /** Elements accepted. */
+        int count;
+        /** Position of the element after the last accepted one. */
+        int position;
+
+        void reset(QueueFile queueFile, int generation, long removedCount) {
+            this.queueFile = queueFile;
+            this.generation = generation;
+            this.removedCount = removedCount;
+            this.count = 0;
+            this.position = 0;
+        }
+
+        void advance(int position) {
+            this.count++;
+            this.position = position;
+        }
+
+        /** Returns the number of elements the visitor accepted. */
+        public int count() {
+            return count;
+        }
+    }
 
     public interface ElementVisitor {
         /**
@@ -44,7 +137,8 @@ public abstract class BatchQueue implements Closeable {
          *
          * @param in stream of element data. Reads as many bytes as requested, unless fewer than the
          *     request number of bytes remains, in which case it reads all the remaining bytes. Not
-         *     buffered.
+         *     buffered. The stream is reused for the next element, so it is only valid until this
+         *     method returns.
          * @param length of element data in bytes
          * @return an indication whether the {@link #forEach} operation should continue; If {@code
          *     true}, continue, otherwise halt.
@@ -52,20 +146,157 @@ public abstract class BatchQueue implements Closeable {
         boolean read(InputStream in, int length) throws IOException;
     }
 
+    /**
+     * Reads a single element of a queue whose data is laid out in a ring. Queues reuse one instance
+     * for every element they visit. Reads are never short: they return as many bytes as requested,
+     * or all that remain of the element.
+     */
+    abstract static class ElementInputStream extends InputStream {
+        /** Buffers element data on its way to an output stream. Shared by every queue. */
+        private static final ThreadLocal<byte[]> COPY_BUFFER =
+                new ThreadLocal<byte[]>() {
+                    @Override
+                    protected byte[] initialValue() {
+                        return new byte[8192];
+                    }
+                };
+
+        /** Position of the next byte to read. */
+        int position;
+        /** Bytes left in the element. */
+        int remaining;
+
+        /** Points this stream at the {@code length} bytes of element data at {@code position}. */
+        void reset(int position, int length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        /** Returns {@code position} wrapped around the end of the ring. */
+        abstract int wrapPosition(int position);
+
+        /** Reads {@code count} bytes at {@code position}, wrapping around the end of the ring. */
+        abstract void ringRead(int position, byte[] buffer, int offset, int count)
+                throws IOException;
+
+        /** Reads the byte at {@code position}. */
+        abstract int ringRead(int position) throws IOException;
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if ((offset | length) < 0 || length > buffer.length - offset) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (length > remaining) length = remaining;
+            ringRead(position, buffer, offset, length);
+            position = wrapPosition(position + length);
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) return -1;
+            int b = ringRead(position);
+            position = wrapPosition(position + 1);
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            int count = (int) Math.min(n, remaining);
+            position = wrapPosition(position + count);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        /** Writes the rest of the element to {@code out}. */
+        void writeTo(OutputStream out) throws IOException {
+            byte[] buffer = COPY_BUFFER.get();
+            int count;
+            while ((count = read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+
+        /**
+         * Copies the rest of {@code in} to {@code out}. Element streams write themselves out
+         * directly; other streams, such as decrypting ones, are copied through a shared buffer and
+         * read until they are exhausted, however short their reads are.
+         */
+        static void copy(InputStream in, OutputStream out) throws IOException {
+            if (in instanceof ElementInputStream) {
+                ((ElementInputStream) in).writeTo(out);
+                return;
+            }
+            byte[] buffer = COPY_BUFFER.get();
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
     public static class PersistentQueue extends BatchQueue {
         final QueueFile queueFile;
+        /** Elements added but not yet written to {@link #queueFile}, or null if writing through. */
+        final QueueFile.ElementGroup pending;
+
+        private final int maxPendingBytes;
+        private final ContextTable contexts;
 
         public PersistentQueue(QueueFile queueFile) {
+            this(queueFile, 0);
+        }
+
+        public PersistentQueue(QueueFile queueFile, int maxPendingBytes) {
+            this(queueFile, maxPendingBytes, null);
+        }
+
+        /**
+         * @param maxPendingBytes if positive, added elements are staged in memory and written to
+         *     {@code queueFile} as a group when {@link #commit} is called or once this many bytes
+         *     are staged. If {@code 0}, every element is written to {@code queueFile} as it is
+         *     added.
+         * @param contexts where the contexts of the payloads in the queue are kept, or null if each
+         *     payload keeps its own.
+         */
+        public PersistentQueue(QueueFile queueFile, int maxPendingBytes, ContextTable contexts) {
             this.queueFile = queueFile;
+            this.maxPendingBytes = maxPendingBytes;
+            this.pending = maxPendingBytes > 0 ? new QueueFile.ElementGroup(maxPendingBytes) : null;
+            this.contexts = contexts;
+        }
+
+        @Override
+        public ContextTable contexts() {
+            return contexts;
         }
 
         @Override
-        public int size() {
-            return queueFile.size();
+        public synchronized int size() {
+            return pending == null ? queueFile.size() : queueFile.size() + pending.size();
         }
 
         @Override
-        public void remove(int n) throws IOException {
+        public synchronized void remove(int n) throws IOException {
+            // Staged elements are always newer than the ones on disk, so only write them out if
+            // they're among the ones being removed.
+            if (n > queueFile.size()) {
+                commit();
+            }
             try {
                 queueFile.remove(n);
             } catch (ArrayIndexOutOfBoundsException e) {
@@ -74,62 +305,271 @@ public abstract class BatchQueue implements Closeable {
                 // Ref: https://github.com/segmentio/analytics-android/issues/449.
                 throw new IOException(e);
             }
+            pruneContexts(n);
+        }
+
+        private void pruneContexts(int removed) {
+            if (contexts != null && removed > 0 && size() == 0) {
+                contexts.prune();
+            }
+        }
+
+        @Override
+        public synchronized void add(byte[] data, int offset, int length) throws IOException {
+            if (pending == null) {
+                queueFile.add(data, offset, length);
+                return;
+            }
+            pending.add(data, offset, length);
+            if (pending.byteCount() >= maxPendingBytes) {
+                commit();
+            }
         }
 
         @Override
-        public void add(byte[] data) throws IOException {
-            queueFile.add(data);
+        public synchronized void remove(int n, Cursor cursor) throws IOException {
+            if (n > queueFile.size()) {
+                remove(n);
+                return;
+            }
+            try {
+                queueFile.remove(n, cursor);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException(e);
+            }
+            pruneContexts(n);
         }
 
         @Override
-        public void forEach(ElementVisitor visitor) throws IOException {
-            queueFile.forEach(visitor);
+        public synchronized Cursor forEach(ElementVisitor visitor, Cursor cursor)
+                throws IOException {
+            commit();
+            queueFile.forEach(visitor, cursor);
+            return cursor;
         }
 
         @Override
-        public void close() throws IOException {
-            queueFile.close();
+        public boolean compact(int maxBytes) throws IOException {
+            return queueFile.compact(maxBytes);
+        }
+
+        @Override
+        public synchronized void commit() throws IOException {
+            if (pending == null || pending.size() == 0) {
+                return;
+            }
+            try {
+                queueFile.add(pending);
+            } finally {
+                // A failed write is aborted by QueueFile; drop the group rather than let it grow
+                // without bound, just like a failed write-through add drops its element.
+                pending.clear();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                commit();
+            } finally {
+                queueFile.close();
+            }
         }
     }
 
+    /**
+     * A bounded in-memory queue. Element data is kept back to back in a single ring buffer, so
+     * adding and removing elements don't allocate. Once the queue holds {@code maxSize} elements,
+     * each add evicts the eldest element.
+     */
     public static class MemoryQueue extends BatchQueue {
-        final LinkedList<byte[]> queue;
+        /** Initial size of the data ring buffer in bytes. */
+        private static final int INITIAL_CAPACITY = 4096;
+
+        /** Data of every element, back to back. Wraps around the end of the array. */
+        private byte[] slab;
+        /** Ring of element offsets into {@link #slab}, indexed from {@link #head}. */
+        private final int[] offsets;
+        /** Ring of element lengths, indexed from {@link #head}. */
+        private final int[] lengths;
+        /** Index of the eldest element in {@link #offsets} and {@link #lengths}. */
+        private int head;
+        /** Number of elements. */
+        private int count;
+        /** Total length of all elements in bytes. */
+        private int usedBytes;
+        /** Whether a {@link #forEach} has visited elements that haven't been removed yet. */
+        private boolean visited;
+        /** Elements evicted since the last {@link #forEach}, and so already gone on remove. */
+        private int evictedSinceVisit;
+
+        private final SlabInputStream in = new SlabInputStream();
+        private final ContextTable contexts = new ContextTable();
 
         public MemoryQueue() {
-            this.queue = new LinkedList<>();
+            this(BatchUploadQueue.MAX_QUEUE_SIZE);
+        }
+
+        public MemoryQueue(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be greater than zero.");
+            }
+            this.slab = new byte[INITIAL_CAPACITY];
+            this.offsets = new int[maxSize];
+            this.lengths = new int[maxSize];
+        }
+
+        @Override
+        public synchronized int size() {
+            return count;
+        }
+
+        @Override
+        public boolean isBounded() {
+            return true;
         }
 
         @Override
-        public int size() {
-            return queue.size();
+        public ContextTable contexts() {
+            return contexts;
         }
 
         @Override
-        public void remove(int n) throws IOException {
+        public synchronized void remove(int n) throws IOException {
+            if (visited) {
+                // Evicted elements were part of what the last visit saw, so they count towards n.
+                n = Math.max(0, n - evictedSinceVisit);
+                visited = false;
+                evictedSinceVisit = 0;
+            }
+            removeEldest(Math.min(n, count));
+            if (n > 0 && count == 0) {
+                contexts.prune();
+            }
+        }
+
+        private void removeEldest(int n) {
             for (int i = 0; i < n; i++) {
-                queue.remove();
+                usedBytes -= lengths[(head + i) % offsets.length];
             }
+            head = (head + n) % offsets.length;
+            count -= n;
         }
 
         @Override
-        public void add(byte[] data) throws IOException {
-            queue.add(data);
+        public synchronized void add(byte[] data, int offset, int length) throws IOException {
+            if ((offset | length) < 0 || length > data.length - offset) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (count == offsets.length) {
+                removeEldest(1);
+                if (visited) {
+                    evictedSinceVisit++;
+                }
+            }
+            expandIfNecessary(length);
+
+            int position = count == 0 ? 0 : endOf(head + count - 1);
+            int beforeEnd = Math.min(length, slab.length - position);
+            System.arraycopy(data, offset, slab, position, beforeEnd);
+            System.arraycopy(data, offset + beforeEnd, slab, 0, length - beforeEnd);
+
+            int index = (head + count) % offsets.length;
+            offsets[index] = position;
+            lengths[index] = length;
+            count++;
+            usedBytes += length;
+        }
+
+        /** Returns the position in {@link #slab} just after the element at the given ring index. */
+        private int endOf(int index) {
+            index %= offsets.length;
+            return (offsets[index] + lengths[index]) % slab.length;
+        }
+
+        /** Grows the slab, if necessary, to fit {@code length} more bytes. */
+        private void expandIfNecessary(int length) {
+            int required = usedBytes + length;
+            if (required <= slab.length) {
+                return;
+            }
+            int newCapacity = slab.length;
+            while (newCapacity < required) {
+                newCapacity <<= 1;
+                if (newCapacity <= 0) {
+                    throw new OutOfMemoryError(
+                            "Cannot grow queue beyond " + slab.length + " bytes");
+                }
+            }
+
+            // Copy elements to the front of the new slab, unwrapping them.
+            byte[] newSlab = new byte[newCapacity];
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % offsets.length;
+                int offset = offsets[index];
+                int elementLength = lengths[index];
+                int beforeEnd = Math.min(elementLength, slab.length - offset);
+                System.arraycopy(slab, offset, newSlab, position, beforeEnd);
+                System.arraycopy(slab, 0, newSlab, position + beforeEnd, elementLength - beforeEnd);
+                offsets[index] = position;
+                position += elementLength;
+            }
+            slab = newSlab;
         }
 
         @Override
-        public void forEach(ElementVisitor visitor) throws IOException {
-            for (int i = 0; i < queue.size(); i++) {
-                byte[] data = queue.get(i);
-                boolean shouldContinue = visitor.read(new ByteArrayInputStream(data), data.length);
+        public synchronized Cursor forEach(ElementVisitor visitor, Cursor cursor)
+                throws IOException {
+            // Removing elements doesn't need a cursor; it is only filled in for callers.
+            cursor.reset(null, 0, 0);
+            visited = true;
+            evictedSinceVisit = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % offsets.length;
+                in.reset(offsets[index], lengths[index]);
+                boolean shouldContinue = visitor.read(in, lengths[index]);
                 if (!shouldContinue) {
-                    return;
+                    break;
                 }
+                cursor.advance(0);
             }
+            return cursor;
         }
 
         @Override
         public void close() throws IOException {
             // no-op
         }
+
+        /** Reads a single element out of the slab. Reused across elements. */
+        private final class SlabInputStream extends ElementInputStream {
+            @Override
+            int wrapPosition(int position) {
+                return position % slab.length;
+            }
+
+            @Override
+            void ringRead(int position, byte[] buffer, int offset, int count) {
+                int beforeEnd = Math.min(count, slab.length - position);
+                System.arraycopy(slab, position, buffer, offset, beforeEnd);
+                System.arraycopy(slab, 0, buffer, offset + beforeEnd, count - beforeEnd);
+            }
+
+            @Override
+            int ringRead(int position) {
+                return slab[position] & 0xff;
+            }
+
+            @Override
+            void writeTo(OutputStream out) throws IOException {
+                // The slab can be written out as is, without going through a buffer.
+                int beforeEnd = Math.min(remaining, slab.length - position);
+                out.write(slab, position, beforeEnd);
+                out.write(slab, 0, remaining - beforeEnd);
+                position = wrapPosition(position + remaining);
+                remaining = 0;
+            }
+        }
     }
 }
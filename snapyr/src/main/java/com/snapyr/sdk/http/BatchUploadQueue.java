@@ -24,6 +24,7 @@
 package com.snapyr.sdk.http;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static java.net.HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
 
 import android.content.Context;
 import android.os.Handler;
@@ -32,39 +33,75 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import androidx.annotation.Nullable;
-import com.snapyr.sdk.ValueMap;
+import com.snapyr.sdk.SnapyrContext;
 import com.snapyr.sdk.inapp.InAppFacade;
 import com.snapyr.sdk.internal.BasePayload;
 import com.snapyr.sdk.internal.Private;
 import com.snapyr.sdk.internal.SnapyrAction;
+import com.snapyr.sdk.internal.TrackPayload;
 import com.snapyr.sdk.internal.Utils;
+import com.snapyr.sdk.services.Crypto;
 import com.snapyr.sdk.services.ServiceFacade;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
 
-/** Entity that queues payloads on disks and uploads them periodically. */
+/**
+ * Entity that queues payloads on disks and uploads them periodically.
+ *
+ * <p>Payloads are kept in two lanes, each with its own queue file. Events named in {@link
+ * Config#priorityEvents} go to the priority lane, which is uploaded as soon as they are enqueued,
+ * apart from the flushes of the bulk lane that holds every other payload. Once the lanes hold
+ * {@link #MAX_QUEUE_SIZE} payloads between them, the eldest bulk payloads are evicted first.
+ */
 public class BatchUploadQueue {
 
     /**
-     * Drop old payloads if queue contains more than 1000 items. Since each item can be at most
-     * 32KB, this bounds the queue size to ~32MB (ignoring headers), which also leaves room for
+     * Drop old payloads if the queue lanes contain more than 1000 items. Since each item can be at
+     * most 32KB, this bounds the queue size to ~32MB (ignoring headers), which also leaves room for
      * QueueFile's 2GB limit.
      */
     public static final int MAX_QUEUE_SIZE = 1000;
     /** Our servers only accept payloads up to 32KB. */
     public static final int MAX_PAYLOAD_SIZE = 32000; // 32KB.
+    /**
+     * Upper bound on the bytes staged in memory by a group-committing disk queue before they are
+     * written out, regardless of the commit window.
+     */
+    static final int MAX_COMMIT_GROUP_SIZE = 2 * MAX_PAYLOAD_SIZE;
+    /** How many bytes of removed payloads a single compaction step zeroes out. */
+    private static final int COMPACTION_STEP_BYTES = 64 * 1024;
+    /** How long to wait before each compaction step, so it doesn't compete with uploads. */
+    private static final long COMPACTION_DELAY_MILLIS = 1000;
+    /** Upper bound on {@link Config#maxInFlightBatches}. */
+    public static final int MAX_IN_FLIGHT_BATCHES = 4;
 
     private static final String SNAPYR_THREAD_NAME = Utils.THREAD_PREFIX + "SnapyrDispatcher";
+    /** Serialized payloads, reused across enqueues on the same thread. */
+    private static final ThreadLocal<PayloadBuffer> PAYLOAD_BUFFER =
+            new ThreadLocal<PayloadBuffer>() {
+                @Override
+                protected PayloadBuffer initialValue() {
+                    return new PayloadBuffer(MAX_PAYLOAD_SIZE);
+                }
+            };
     /**
      * We don't want to stop adding payloads to our disk queue when we're uploading payloads. So we
      * upload payloads on a network executor instead.
@@ -87,54 +124,137 @@ public class BatchUploadQueue {
      * uploading.
      */
     @Private final Object flushLock = new Object();
+    /** Like {@link #flushLock}, for the priority lane. Taken after {@link #flushLock} if both. */
+    private final Object priorityFlushLock = new Object();
 
     private final Context context;
+    private final Config config;
+    /** The bulk lane. */
     private final BatchQueue batchQueue;
-    private final int flushQueueSize;
+    /** The priority lane, or null if every payload goes to {@link #batchQueue}. */
+    private final BatchQueue priorityQueue;
     private final Handler handler;
     private final HandlerThread snapyrThread;
-    private final ScheduledExecutorService flushScheduler;
+    private final FlushScheduler flushScheduler;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    /**
+     * Failures of the priority lane are tracked on their own, so its small batches don't shrink
+     * those of the bulk lane.
+     */
+    private final RetryPolicy priorityRetryPolicy = new RetryPolicy();
     private int flushesPerformed;
+    /** Cleared if the server rejects a gzip compressed batch. */
+    private volatile boolean compressionSupported = true;
+    /** Batch bodies kept for reuse by pipelined flushes. */
+    private final ArrayDeque<PayloadBuffer> batchBuffers = new ArrayDeque<>();
+    /** The advertising ID {@link #deviceFields()} was last encoded with. */
+    private String deviceFieldsAdvertisingId;
+    /** The last encoding of {@link #deviceFields()}. */
+    private byte[] deviceFields;
 
     public BatchUploadQueue(
             Context context,
             long flushIntervalInMillis,
             int flushQueueSize,
             @Nullable BatchQueue queueOverride) {
+        this(context, flushIntervalInMillis, flushQueueSize, queueOverride, new Config());
+    }
+
+    public BatchUploadQueue(
+            Context context,
+            long flushIntervalInMillis,
+            int flushQueueSize,
+            @Nullable BatchQueue queueOverride,
+            Config config) {
+        this(context, flushIntervalInMillis, flushQueueSize, queueOverride, null, config);
+    }
+
+    /**
+     * Creates a queue whose lanes are {@code queueOverride} and {@code priorityQueueOverride}. If
+     * only {@code queueOverride} is given, there is no priority lane and every payload goes to it.
+     */
+    public BatchUploadQueue(
+            Context context,
+            long flushIntervalInMillis,
+            int flushQueueSize,
+            @Nullable BatchQueue queueOverride,
+            @Nullable BatchQueue priorityQueueOverride,
+            Config config) {
         this.context = context;
-        this.flushQueueSize = flushQueueSize;
+        this.config = config;
         this.flushScheduler =
-                Executors.newScheduledThreadPool(1, new Utils.AnalyticsThreadFactory());
+                new FlushScheduler(
+                        context,
+                        Executors.newScheduledThreadPool(1, new Utils.AnalyticsThreadFactory()),
+                        flushIntervalInMillis,
+                        flushQueueSize,
+                        config.meteredFlushMultiplier,
+                        retryPolicy,
+                        priorityRetryPolicy,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                // The scheduler times these for the retry policies of both
+                                // lanes, and performFlush() checks for a Retry-After itself.
+                                handler.sendMessage(
+                                        handler.obtainMessage(
+                                                SnapyrDispatcherHandler.REQUEST_SCHEDULED_FLUSH));
+                            }
+                        });
 
         BatchQueue BatchQueue = queueOverride;
+        BatchQueue priorityQueue = priorityQueueOverride;
+        File folder = null;
         if (BatchQueue == null) {
             try {
-                File folder = context.getDir("snapyr-disk-queue", Context.MODE_PRIVATE);
-                QueueFile queueFile = createQueueFile(folder, "payload_queue");
-                BatchQueue = new BatchQueue.PersistentQueue(queueFile);
+                folder = context.getDir("snapyr-disk-queue", Context.MODE_PRIVATE);
+                QueueFile queueFile =
+                        createQueueFile(folder, "payload_queue", config.memoryMappedQueue);
+                queueFile.setEraseLazily(config.lazyQueueErase);
+                ContextTable contexts =
+                        new ContextTable(new File(folder, "payload_queue-contexts"));
+                BatchQueue =
+                        new BatchQueue.PersistentQueue(
+                                queueFile,
+                                config.queueCommitWindowMillis > 0 ? MAX_COMMIT_GROUP_SIZE : 0,
+                                contexts);
             } catch (IOException e) {
                 ServiceFacade.getLogger()
                         .error(e, "Could not create disk queue. Falling back to memory queue.");
                 BatchQueue = new BatchQueue.MemoryQueue();
             }
         }
+        if (priorityQueue == null && queueOverride == null) {
+            try {
+                if (folder == null) {
+                    throw new IOException("Could not create disk queue folder.");
+                }
+                // Priority payloads are uploaded right away, so they aren't staged for a group
+                // commit.
+                QueueFile queueFile =
+                        createQueueFile(
+                                folder, "payload_queue-priority", config.memoryMappedQueue);
+                queueFile.setEraseLazily(config.lazyQueueErase);
+                ContextTable contexts =
+                        new ContextTable(new File(folder, "payload_queue-priority-contexts"));
+                priorityQueue = new BatchQueue.PersistentQueue(queueFile, 0, contexts);
+            } catch (IOException e) {
+                ServiceFacade.getLogger()
+                        .error(
+                                e,
+                                "Could not create priority disk queue. Falling back to memory"
+                                        + " queue.");
+                priorityQueue = new BatchQueue.MemoryQueue();
+            }
+        }
         this.batchQueue = BatchQueue;
+        this.priorityQueue = priorityQueue;
 
         snapyrThread = new HandlerThread(SNAPYR_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
         snapyrThread.start();
         handler = new SnapyrDispatcherHandler(snapyrThread.getLooper(), this);
 
-        long initialDelay = BatchQueue.size() >= flushQueueSize ? 0L : flushIntervalInMillis;
-        flushScheduler.scheduleAtFixedRate(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        flush();
-                    }
-                },
-                initialDelay,
-                flushIntervalInMillis,
-                TimeUnit.MILLISECONDS);
+        flushScheduler.start(queuedPayloads());
     }
 
     /**
@@ -158,26 +278,76 @@ public class BatchUploadQueue {
         }
     }
 
+    /**
+     * Like {@link #createQueueFile(File, String)}, but memory maps the file if {@code
+     * memoryMapped} is true. Both modes share a file format, so a file written by either can be
+     * opened by the other. If the file can't be mapped, it is opened with regular file I/O instead
+     * rather than being discarded.
+     */
+    static QueueFile createQueueFile(File folder, String name, boolean memoryMapped)
+            throws IOException {
+        if (memoryMapped) {
+            try {
+                Utils.createDirectory(folder);
+                return new QueueFile(new File(folder, name), true);
+            } catch (IOException e) {
+                ServiceFacade.getLogger()
+                        .error(e, "Could not map queue file (%s). Falling back to file I/O.", name);
+            }
+        }
+        return createQueueFile(folder, name);
+    }
+
     public int getFlushesPerformed() {
         return this.flushesPerformed;
     }
 
-    public void performEnqueue(BasePayload original) {
-        // Make a copy of the payload so we don't mutate the original.
-        ValueMap payload = new ValueMap();
-        payload.putAll(original);
-        if (batchQueue.size() >= MAX_QUEUE_SIZE) {
-            synchronized (flushLock) {
+    /** Returns how many payloads the lanes hold between them. */
+    private int queuedPayloads() {
+        return priorityQueue == null
+                ? batchQueue.size()
+                : batchQueue.size() + priorityQueue.size();
+    }
+
+    /** Returns whether {@code payload} goes to the priority lane. */
+    private boolean isPriority(BasePayload payload) {
+        return priorityQueue != null
+                && payload instanceof TrackPayload
+                && config.priorityEvents.contains(((TrackPayload) payload).event());
+    }
+
+    /**
+     * Returns the lane to evict the eldest payload from before another is enqueued, or null if
+     * there is room. Bounded queues evict their own eldest payloads, and account for evictions
+     * that happen during an upload, so only unbounded lanes are trimmed here, under their flush
+     * lock. They are kept to {@link #MAX_QUEUE_SIZE} payloads between them, evicting bulk payloads
+     * first and priority ones only once no bulk payloads are left.
+     */
+    private BatchQueue evictionLane() {
+        int bulk = batchQueue.isBounded() ? 0 : batchQueue.size();
+        int priority =
+                priorityQueue == null || priorityQueue.isBounded() ? 0 : priorityQueue.size();
+        if (bulk + priority < MAX_QUEUE_SIZE) {
+            return null;
+        }
+        return bulk > 0 ? batchQueue : priorityQueue;
+    }
+
+    public void performEnqueue(BasePayload payload) {
+        BatchQueue queue = isPriority(payload) ? priorityQueue : batchQueue;
+        BatchQueue evicted = evictionLane();
+        if (evicted != null) {
+            synchronized (evicted == priorityQueue ? priorityFlushLock : flushLock) {
                 // Double checked locking, the network executor could have removed payload from the
-                // queue
-                // to bring it below our capacity while we were waiting.
-                if (batchQueue.size() >= MAX_QUEUE_SIZE) {
+                // queue to bring it below our capacity while we were waiting, or emptied the bulk
+                // lane.
+                if (evictionLane() == evicted) {
                     ServiceFacade.getLogger()
                             .info(
                                     "Queue is at max capacity (%s), removing oldest payload.",
-                                    batchQueue.size());
+                                    evicted.size());
                     try {
-                        batchQueue.remove(1);
+                        evicted.remove(1);
                     } catch (IOException e) {
                         ServiceFacade.getLogger()
                                 .error(e, "Unable to remove oldest payload from queue.");
@@ -188,38 +358,148 @@ public class BatchUploadQueue {
         }
 
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            OutputStream cos = ServiceFacade.getCrypto().encrypt(bos);
-            ServiceFacade.getCartographer().toJson(payload, new OutputStreamWriter(cos));
-            cos.close();
-            byte[] bytes = bos.toByteArray();
-            if (bytes == null || bytes.length == 0 || bytes.length > MAX_PAYLOAD_SIZE) {
+            // Payloads are stored in the compact binary form of BinaryJson, and only turned into
+            // JSON when they are uploaded. Their context is kept once in the queue's context table
+            // for all the payloads that share it. Serialization writes straight into a buffer
+            // owned by this thread, and gives up as soon as the payload exceeds MAX_PAYLOAD_SIZE.
+            // The JSON it will be uploaded as has to fit in MAX_PAYLOAD_SIZE as well.
+            PayloadBuffer buffer = PAYLOAD_BUFFER.get();
+            buffer.reset();
+            long jsonLength =
+                    ServiceFacade.getCartographer()
+                            .toBinary(payload, buffer, queue.contexts());
+            if (jsonLength > MAX_PAYLOAD_SIZE) {
+                throw new PayloadBuffer.PayloadTooLargeException(MAX_PAYLOAD_SIZE);
+            }
+            // Encryption happens in place, through a session that keeps its cipher between
+            // payloads.
+            ByteBuffer record = buffer.asRecord(0);
+            Crypto crypto = ServiceFacade.getCrypto();
+            if (!crypto.isIdentity()) {
+                int overhead = crypto.maxOverhead();
+                record =
+                        buffer.asRecord(
+                                overhead == Crypto.UNKNOWN_OVERHEAD ? MAX_PAYLOAD_SIZE : overhead);
+                crypto.session().encrypt(record);
+            }
+            if (record.remaining() == 0) {
                 throw new IOException("Could not serialize payload " + payload);
             }
-            batchQueue.add(bytes);
+            queue.add(record.array(), record.position(), record.remaining());
         } catch (IOException e) {
             ServiceFacade.getLogger()
-                    .error(e, "Could not add payload %s to queue: %s.", payload, batchQueue);
+                    .error(e, "Could not add payload %s to queue: %s.", payload, queue);
             return;
         }
-
-        ServiceFacade.getLogger()
-                .verbose(
-                        "Enqueued %s payload. %s elements in the queue.",
-                        original, batchQueue.size());
-        if (batchQueue.size() >= flushQueueSize) {
+        if (queue == priorityQueue) {
+            ServiceFacade.getLogger()
+                    .verbose(
+                            "Enqueued %s priority payload. %s elements in the priority queue.",
+                            payload, queue.size());
+            submitPriorityFlush();
+        } else {
+            scheduleCommit();
+            ServiceFacade.getLogger()
+                    .verbose(
+                            "Enqueued %s payload. %s elements in the queue.",
+                            payload, queue.size());
+        }
+        if (flushScheduler.onEnqueue(queuedPayloads())) {
             submitFlush();
         }
     }
 
+    /**
+     * Makes sure a commit message is pending on the handler, so payloads staged by a group
+     * committing queue reach disk within {@link Config#queueCommitWindowMillis}.
+     */
+    private void scheduleCommit() {
+        if (config.queueCommitWindowMillis > 0
+                && !handler.hasMessages(SnapyrDispatcherHandler.REQUEST_COMMIT)) {
+            handler.sendEmptyMessageDelayed(
+                    SnapyrDispatcherHandler.REQUEST_COMMIT, config.queueCommitWindowMillis);
+        }
+    }
+
+    /** Writes any payloads staged in memory by the queue to disk. */
+    void performCommit() {
+        try {
+            batchQueue.commit();
+        } catch (IOException e) {
+            ServiceFacade.getLogger()
+                    .error(e, "Could not commit payloads to queue: %s.", batchQueue);
+        }
+    }
+
+    /**
+     * Makes sure a compaction message is pending on the handler, if the queue erases removed
+     * payloads lazily.
+     */
+    private void scheduleCompaction() {
+        if (config.lazyQueueErase
+                && !handler.hasMessages(SnapyrDispatcherHandler.REQUEST_COMPACT)) {
+            handler.sendEmptyMessageDelayed(
+                    SnapyrDispatcherHandler.REQUEST_COMPACT, COMPACTION_DELAY_MILLIS);
+        }
+    }
+
+    /** Zeroes out the space of a step's worth of removed payloads in each lane. */
+    void performCompaction() {
+        boolean remaining = compact(batchQueue);
+        if (priorityQueue != null) {
+            remaining |= compact(priorityQueue);
+        }
+        if (remaining) {
+            scheduleCompaction();
+        }
+    }
+
+    /** Compacts a step of {@code queue}, and returns true if removed payloads remain. */
+    private static boolean compact(BatchQueue queue) {
+        try {
+            return queue.compact(COMPACTION_STEP_BYTES);
+        } catch (IOException e) {
+            ServiceFacade.getLogger().error(e, "Could not compact queue: %s.", queue);
+            return false;
+        }
+    }
+
     /** Enqueues a flush message to the handler. */
     public void flush() {
         handler.sendMessage(handler.obtainMessage(SnapyrDispatcherHandler.REQUEST_FLUSH));
     }
 
+    /**
+     * Submits a flush requested by the app, or because it went to the background, unless uploads
+     * in either lane are backing off after a failure or the server asked to wait with a {@code
+     * Retry-After}. The
+     * payloads are then left to the flush the scheduler has planned for the retry, so that apps
+     * don't hit a struggling server with every flush they request.
+     */
+    public void submitRequestedFlush() {
+        if (retryPolicy.isBackingOff()
+                || priorityRetryPolicy.isBackingOff()
+                || isRetryAfterPending()) {
+            ServiceFacade.getLogger()
+                    .verbose("Deferring flush while uploads back off: %s.", retryPolicy);
+            flushScheduler.onFlushDeferred(queuedPayloads());
+            return;
+        }
+        submitFlush();
+    }
+
+    /**
+     * Whether the server asked either lane to wait with a {@code Retry-After}. Both lanes upload to
+     * the same server, so neither should upload until it has passed.
+     */
+    private boolean isRetryAfterPending() {
+        return retryPolicy.isRetryAfterPending() || priorityRetryPolicy.isRetryAfterPending();
+    }
+
     /** Submits a flush message to the network executor. */
     public void submitFlush() {
-        if (!shouldFlush()) {
+        if (queuedPayloads() <= 0 || !Utils.isConnected(context)) {
+            flushScheduler.onFlushSkipped(queuedPayloads());
             return;
         }
 
@@ -242,32 +522,333 @@ public class BatchUploadQueue {
                 });
     }
 
-    private boolean shouldFlush() {
-        return batchQueue.size() > 0 && Utils.isConnected(context);
+    private boolean shouldFlush(BatchQueue queue) {
+        return queue.size() > 0 && Utils.isConnected(context);
     }
 
-    /** Upload payloads to our servers and remove them from the queue file. */
+    /**
+     * Submits an upload of the priority lane to the network executor, on its own connection and
+     * without waiting for a flush of the bulk lane. While the last upload of the priority lane is
+     * failing, its payloads are left to the next flush instead.
+     */
+    private void submitPriorityFlush() {
+        if (priorityRetryPolicy.isBackingOff()
+                || isRetryAfterPending()
+                || !shouldFlush(priorityQueue)) {
+            return;
+        }
+        ExecutorService networkExecutor = ServiceFacade.getNetworkExecutor();
+        if (networkExecutor.isShutdown()) {
+            return;
+        }
+        networkExecutor.submit(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (priorityFlushLock) {
+                            performPriorityFlush();
+                        }
+                    }
+                });
+    }
+
+    /** Uploads the payloads of the priority lane. The caller must hold the priority flush lock. */
+    private void performPriorityFlush() {
+        if (isRetryAfterPending()) {
+            return;
+        }
+        Ack ack = Ack.REMOVE_AND_CONTINUE;
+        while (ack == Ack.REMOVE_AND_CONTINUE && shouldFlush(priorityQueue)) {
+            this.flushesPerformed++;
+            ack = uploadBatch(priorityQueue, priorityRetryPolicy);
+        }
+        if (ack == Ack.KEEP_AND_STOP) {
+            // Makes sure a flush is scheduled to retry them.
+            flushScheduler.onFlushFinished(queuedPayloads());
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Upload payloads to our servers and remove them from the queue file. Nothing is uploaded
+     * while the server asks to wait with a {@code Retry-After}, whichever way the flush was
+     * requested. Other backoff is up to the callers: the scheduler only flushes once the failing
+     * lane's retry is due, and the other flushes are deferred to it.
+     */
     public void performFlush() {
-        // Conditions could have changed between enqueuing the task and when it is run.
-        if (!shouldFlush()) {
+        if (priorityQueue != null) {
+            synchronized (priorityFlushLock) {
+                performPriorityFlush();
+            }
+        }
+        if (isRetryAfterPending()) {
+            // Possibly set just now, in response to the priority lane.
+            ServiceFacade.getLogger()
+                    .verbose("Deferring flush until the server's Retry-After has passed.");
+            flushScheduler.onFlushDeferred(queuedPayloads());
             return;
         }
+        Ack ack = Ack.REMOVE_AND_CONTINUE;
+        // Conditions could have changed between enqueuing the task and when it is run.
+        while (ack == Ack.REMOVE_AND_CONTINUE && shouldFlush(batchQueue)) {
+            if (config.maxInFlightBatches > 1 && !batchQueue.isBounded()) {
+                ack = performPipelinedFlush();
+                break;
+            }
+            this.flushesPerformed++;
+            ack = uploadBatch(batchQueue, retryPolicy);
+        }
+        flushScheduler.onFlushFinished(queuedPayloads());
+        scheduleCompaction();
+    }
 
-        this.flushesPerformed++;
+    /**
+     * Uploads the batch at the head of {@code queue}, streaming it from the queue into the
+     * connection, and removes it from the queue. Returns {@link Ack#REMOVE_AND_CONTINUE} if the
+     * next batch should be uploaded, or {@link Ack#KEEP_AND_STOP} if the batch is still queued.
+     */
+    private Ack uploadBatch(final BatchQueue queue, RetryPolicy retryPolicy) {
+        ServiceFacade.getLogger().verbose("Uploading payloads in queue to Snapyr.");
+        final int[] payloadsUploaded = {0};
+        boolean compressed;
+        try {
+            compressed = shouldCompress(queue);
+        } catch (IOException e) {
+            ServiceFacade.getLogger().error(e, "Error while uploading payloads");
+            retryPolicy.onBatchFailed(0);
+            return Ack.KEEP_AND_STOP;
+        }
+        final int maxPayloads = retryPolicy.maxBatchPayloads();
+        final BatchQueue.Cursor cursor = new BatchQueue.Cursor();
+        Ack ack =
+                send(
+                        compressed,
+                        retryPolicy,
+                        new BatchWriter() {
+                            @Override
+                            public void write(WriteConnection connection) throws IOException {
+                                // Write the payloads into the OutputStream.
+                                payloadsUploaded[0] =
+                                        BatchUploadRequest.execute(
+                                                queue,
+                                                connection,
+                                                ServiceFacade.getCrypto(),
+                                                maxPayloads,
+                                                cursor,
+                                                deviceFields());
+                            }
+                        });
+        if (ack == Ack.KEEP_AND_STOP) {
+            onBatchFailed(retryPolicy, payloadsUploaded[0]);
+            return ack;
+        }
+        try {
+            queue.remove(payloadsUploaded[0], cursor);
+        } catch (IOException e) {
+            ServiceFacade.getLogger()
+                    .error(
+                            e,
+                            "Unable to remove " + payloadsUploaded[0] + " payload(s) from queue.");
+            onBatchFailed(retryPolicy, payloadsUploaded[0]);
+            return Ack.KEEP_AND_STOP;
+        }
+        retryPolicy.onBatchRemoved();
+        if (payloadsUploaded[0] == 0) {
+            // Nothing was removed if the batch couldn't be written, so don't try it again.
+            return Ack.REMOVE_AND_STOP;
+        }
+        ServiceFacade.getLogger()
+                .verbose(
+                        "Uploaded %s payloads. %s remain in the queue.",
+                        payloadsUploaded[0], queue.size());
+        return ack;
+    }
 
+    /**
+     * Uploads up to {@link Config#maxInFlightBatches} batches at once over the network executor,
+     * while the next batch is being prepared. Each batch is read from the queue into memory, after
+     * the payloads of the batches already in flight. Batches are acknowledged in queue order: a
+     * batch is only removed from the queue once every batch before it has been removed, so if one
+     * fails, the batches after it stay queued even if they were uploaded, and are sent again with
+     * the next flush. Returns how the flush ended, like {@link #uploadBatch()}.
+     */
+    private Ack performPipelinedFlush() {
         ServiceFacade.getLogger().verbose("Uploading payloads in queue to Snapyr.");
-        int payloadsUploaded = 0;
+        boolean compressed;
+        try {
+            compressed = shouldCompress(batchQueue);
+        } catch (IOException e) {
+            ServiceFacade.getLogger().error(e, "Error while uploading payloads");
+            retryPolicy.onBatchFailed(0);
+            return Ack.KEEP_AND_STOP;
+        }
+        ExecutorService networkExecutor = ServiceFacade.getNetworkExecutor();
+        ArrayDeque<PipelinedBatch> inFlight = new ArrayDeque<>(config.maxInFlightBatches);
+        // Payloads at the head of the queue that are part of a batch in flight.
+        int assigned = 0;
+        // Set once no more batches should be started.
+        boolean stopped = false;
+        // Set once a batch could not be removed, so the batches after it can't be either.
+        boolean blocked = false;
+        // How the first batch that stopped the flush ended.
+        Ack result = Ack.REMOVE_AND_CONTINUE;
+        while (true) {
+            while (!stopped && inFlight.size() < config.maxInFlightBatches) {
+                PipelinedBatch batch;
+                try {
+                    batch = nextBatch(assigned, compressed);
+                } catch (IOException e) {
+                    ServiceFacade.getLogger().error(e, "Error while uploading payloads");
+                    batch = null;
+                }
+                if (batch == null) {
+                    stopped = true;
+                    break;
+                }
+                this.flushesPerformed++;
+                assigned += batch.payloadCount;
+                inFlight.add(batch);
+                try {
+                    networkExecutor.execute(batch);
+                } catch (RejectedExecutionException e) {
+                    // Uploaded on this thread when it is awaited instead.
+                }
+            }
+
+            PipelinedBatch head = inFlight.poll();
+            if (head == null) {
+                return result;
+            }
+            Ack ack = head.await();
+            assigned -= head.payloadCount;
+            recycle(head.body);
+            if (ack == null || ack == Ack.KEEP_AND_STOP) {
+                blocked = true;
+            } else if (!blocked) {
+                try {
+                    batchQueue.remove(head.payloadCount, head.cursor);
+                    retryPolicy.onBatchRemoved();
+                    ServiceFacade.getLogger()
+                            .verbose(
+                                    "Uploaded %s payloads. %s remain in the queue.",
+                                    head.payloadCount, batchQueue.size());
+                } catch (IOException e) {
+                    ServiceFacade.getLogger()
+                            .error(
+                                    e,
+                                    "Unable to remove "
+                                            + head.payloadCount
+                                            + " payload(s) from queue.");
+                    blocked = true;
+                }
+            }
+            if (ack != Ack.REMOVE_AND_CONTINUE || blocked) {
+                if (result == Ack.REMOVE_AND_CONTINUE) {
+                    result = blocked ? Ack.KEEP_AND_STOP : ack;
+                    if (blocked) {
+                        onBatchFailed(retryPolicy, head.payloadCount);
+                    }
+                }
+                stopped = true;
+                // Don't start the batches that are still waiting for the executor.
+                for (PipelinedBatch batch : inFlight) {
+                    batch.cancel(false);
+                }
+            } else if (!Utils.isConnected(context)) {
+                stopped = true;
+            }
+        }
+    }
+
+    /** Records that a batch of {@code payloadCount} payloads is kept to be sent again. */
+    private static void onBatchFailed(RetryPolicy retryPolicy, int payloadCount) {
+        retryPolicy.onBatchFailed(payloadCount);
+        ServiceFacade.getLogger().verbose("Upload failed, retrying later: %s.", retryPolicy);
+    }
+
+    /**
+     * Reads the batch after the first {@code skip} payloads in the queue into memory, or returns
+     * null if there are no more payloads.
+     */
+    private PipelinedBatch nextBatch(int skip, boolean compressed) throws IOException {
+        if (batchQueue.size() <= skip) {
+            return null;
+        }
+        PayloadBuffer body = obtainBatchBuffer();
+        BatchQueue.Cursor cursor = new BatchQueue.Cursor();
+        int payloadCount =
+                BatchUploadRequest.execute(
+                        batchQueue,
+                        body,
+                        ServiceFacade.getCrypto(),
+                        skip,
+                        retryPolicy.maxBatchPayloads(),
+                        cursor,
+                        deviceFields());
+        return new PipelinedBatch(body, payloadCount, cursor, compressed);
+    }
+
+    private PayloadBuffer obtainBatchBuffer() {
+        synchronized (batchBuffers) {
+            PayloadBuffer buffer = batchBuffers.poll();
+            if (buffer != null) {
+                buffer.reset();
+                return buffer;
+            }
+        }
+        // Payloads only add up to MAX_BATCH_SIZE; leave room for the JSON around them.
+        return new PayloadBuffer(BatchUploadRequest.MAX_BATCH_SIZE + MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Returns the advertising info as JSON members to add to the device of queued payloads that
+     * don't have any, or null if the advertising ID isn't known. Events are enqueued without
+     * waiting for the advertising ID, so the ones enqueued before it was fetched get it as they
+     * are uploaded instead.
+     */
+    private synchronized byte[] deviceFields() {
+        SnapyrContext snapyrContext = ServiceFacade.getSnapyrContext();
+        SnapyrContext.Device device = snapyrContext == null ? null : snapyrContext.device();
+        String advertisingId = device == null ? null : device.advertisingId();
+        if (advertisingId == null) {
+            return null;
+        }
+        if (!advertisingId.equals(deviceFieldsAdvertisingId)) {
+            Map<String, Object> advertisingInfo = new LinkedHashMap<>();
+            advertisingInfo.put("advertisingId", advertisingId);
+            advertisingInfo.put("adTrackingEnabled", true);
+            String json = ServiceFacade.getCartographer().toJson(advertisingInfo);
+            // Only the members, without the braces around them.
+            deviceFields =
+                    json.substring(1, json.length() - 1).getBytes(BatchUploadRequest.UTF_8);
+            deviceFieldsAdvertisingId = advertisingId;
+        }
+        return deviceFields;
+    }
+
+    private void recycle(PayloadBuffer buffer) {
+        synchronized (batchBuffers) {
+            if (batchBuffers.size() < config.maxInFlightBatches) {
+                batchBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection, writes a batch to it with {@code writer} and processes the response.
+     * Returns what should happen to the payloads in the batch. A {@code Retry-After} the server
+     * responds with is recorded on {@code retryPolicy}, the policy of the batch's lane.
+     */
+    private Ack send(boolean compressed, RetryPolicy retryPolicy, BatchWriter writer) {
         WriteConnection connection = null;
         try {
             // Open a connection.
-            connection = ServiceFacade.getConnectionFactory().postBatch();
+            connection =
+                    compressed
+                            ? ServiceFacade.getConnectionFactory().postBatch(config.gzipLevel)
+                            : ServiceFacade.getConnectionFactory().postBatch();
 
-            // Write the payloads into the OutputStream.
-            payloadsUploaded =
-                    BatchUploadRequest.execute(
-                            this.batchQueue,
-                            connection.getOutputStream(),
-                            ServiceFacade.getCrypto());
+            writer.write(connection);
 
             // Process the response.
             int responseCode = connection.getResponseCode();
@@ -285,8 +866,15 @@ public class BatchUploadQueue {
                         }
                     }
                 }
+                long retryAfterMillis =
+                        RetryPolicy.parseRetryAfter(
+                                connection.getHeaderField("Retry-After"),
+                                System.currentTimeMillis());
                 throw new HTTPException(
-                        responseCode, connection.getResponseMessage(), responseBody);
+                        responseCode,
+                        connection.getResponseMessage(),
+                        responseBody,
+                        retryAfterMillis);
             } else if (inputStream != null) {
                 responseBody = Utils.readFully(inputStream);
                 handleActionsIfAny(responseBody);
@@ -300,50 +888,130 @@ public class BatchUploadQueue {
             Utils.closeQuietly(inputStream);
             connection.close();
         } catch (HTTPException e) {
-            if (e.is4xx() && e.responseCode != 429) {
+            if (compressed && e.responseCode == HTTP_UNSUPPORTED_TYPE) {
+                // Keep the payloads and send them uncompressed from now on.
+                compressionSupported = false;
+                ServiceFacade.getLogger()
+                        .error(e, "Server rejected compressed payloads. Disabling compression.");
+                return Ack.KEEP_AND_STOP;
+            } else if (e.is4xx() && e.responseCode != 429) {
                 // Simply log and proceed to remove the rejected payloads from the queue.
                 ServiceFacade.getLogger()
                         .error(e, "Payloads were rejected by server. Marked for removal.");
-                try {
-                    batchQueue.remove(payloadsUploaded);
-                } catch (IOException e1) {
-                    ServiceFacade.getLogger()
-                            .error(
-                                    e,
-                                    "Unable to remove "
-                                            + payloadsUploaded
-                                            + " payload(s) from queue.");
-                }
-                return;
+                return Ack.REMOVE_AND_STOP;
             } else {
                 ServiceFacade.getLogger().error(e, "Error while uploading payloads");
-                return;
+                if (e.retryAfterMillis >= 0) {
+                    retryPolicy.onRetryAfter(e.retryAfterMillis);
+                }
+                return Ack.KEEP_AND_STOP;
             }
         } catch (IOException e) {
             ServiceFacade.getLogger().error(e, "Error while uploading payloads");
-            return;
+            return Ack.KEEP_AND_STOP;
         } catch (Exception e) {
             ServiceFacade.getLogger().error(e, "Error while uploading payloads");
-
         } finally {
             Utils.closeQuietly(connection);
         }
+        return Ack.REMOVE_AND_CONTINUE;
+    }
 
-        try {
-            batchQueue.remove(payloadsUploaded);
-        } catch (IOException e) {
-            ServiceFacade.getLogger()
-                    .error(e, "Unable to remove " + payloadsUploaded + " payload(s) from queue.");
-            return;
+    /** What to do with the payloads of a batch once it has been sent. */
+    private enum Ack {
+        /** Remove the payloads and carry on with the next batch. */
+        REMOVE_AND_CONTINUE,
+        /** Remove the payloads, which the server rejected, but stop flushing. */
+        REMOVE_AND_STOP,
+        /** Keep the payloads to send them again later, and stop flushing. */
+        KEEP_AND_STOP
+    }
+
+    /** Writes the body of a batch to a connection. */
+    private interface BatchWriter {
+        void write(WriteConnection connection) throws IOException;
+    }
+
+    /** A batch read into memory, which is uploaded by whichever thread gets to it first. */
+    private final class PipelinedBatch extends FutureTask<Ack> {
+        final PayloadBuffer body;
+        final int payloadCount;
+        /** Where the batch ends in the queue. */
+        final BatchQueue.Cursor cursor;
+
+        PipelinedBatch(
+                final PayloadBuffer body,
+                int payloadCount,
+                BatchQueue.Cursor cursor,
+                final boolean compressed) {
+            super(
+                    new Callable<Ack>() {
+                        @Override
+                        public Ack call() {
+                            return send(
+                                    compressed,
+                                    retryPolicy,
+                                    new BatchWriter() {
+                                        @Override
+                                        public void write(WriteConnection connection)
+                                                throws IOException {
+                                            OutputStream stream = connection.getOutputStream();
+                                            try {
+                                                stream.write(body.bytes(), 0, body.size());
+                                            } finally {
+                                                stream.close();
+                                            }
+                                        }
+                                    });
+                        }
+                    });
+            this.body = body;
+            this.payloadCount = payloadCount;
+            this.cursor = cursor;
         }
 
-        ServiceFacade.getLogger()
-                .verbose(
-                        "Uploaded %s payloads. %s remain in the queue.",
-                        payloadsUploaded, batchQueue.size());
-        if (batchQueue.size() > 0) {
-            performFlush(); // Flush any remaining items.
+        /**
+         * Waits for the upload to finish, uploading on the calling thread if the executor hasn't
+         * started it yet. Returns null if the batch was cancelled before it was sent.
+         */
+        Ack await() {
+            run();
+            try {
+                return get();
+            } catch (CancellationException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Whether the next batch should be gzip compressed: compression is enabled, the server hasn't
+     * rejected it, and the queued payloads add up to at least {@link Config#gzipThresholdBytes}.
+     * Payloads are measured as the JSON they are uploaded as, not as they are stored, so only the
+     * payloads up to the threshold are transcoded.
+     */
+    private boolean shouldCompress(final BatchQueue queue) throws IOException {
+        if (!config.gzipEnabled || !compressionSupported) {
+            return false;
         }
+        final int[] size = {0};
+        final Crypto crypto = ServiceFacade.getCrypto();
+        queue.forEach(
+                new BatchQueue.ElementVisitor() {
+                    @Override
+                    public boolean read(InputStream in, int length) throws IOException {
+                        size[0] +=
+                                BatchUploadRequest.jsonLength(
+                                        in, length, crypto, queue.contexts());
+                        return size[0] < config.gzipThresholdBytes;
+                    }
+                });
+        return size[0] >= config.gzipThresholdBytes;
     }
 
     void handleActionsIfAny(String uploadResponse) {
@@ -374,13 +1042,17 @@ public class BatchUploadQueue {
     }
 
     public void shutdown() {
-        flushScheduler.shutdownNow();
+        flushScheduler.shutdown();
         snapyrThread.quit();
         Utils.closeQuietly(batchQueue);
+        Utils.closeQuietly(priorityQueue);
     }
 
     static class SnapyrDispatcherHandler extends Handler {
         static final int REQUEST_FLUSH = 1;
+        static final int REQUEST_COMMIT = 2;
+        static final int REQUEST_COMPACT = 3;
+        static final int REQUEST_SCHEDULED_FLUSH = 4;
         @Private static final int REQUEST_ENQUEUE = 0;
         private final BatchUploadQueue snapyrIntegration;
 
@@ -397,11 +1069,104 @@ public class BatchUploadQueue {
                     snapyrIntegration.performEnqueue(payload);
                     break;
                 case REQUEST_FLUSH:
+                    snapyrIntegration.submitRequestedFlush();
+                    break;
+                case REQUEST_SCHEDULED_FLUSH:
                     snapyrIntegration.submitFlush();
                     break;
+                case REQUEST_COMMIT:
+                    snapyrIntegration.performCommit();
+                    break;
+                case REQUEST_COMPACT:
+                    snapyrIntegration.performCompaction();
+                    break;
                 default:
                     throw new AssertionError("Unknown dispatcher message: " + msg.what);
             }
         }
     }
+
+    /** Tuning for how payloads are stored and uploaded. */
+    public static class Config {
+        /**
+         * How long payloads may be staged in memory before they are written to the disk queue. If
+         * {@code 0}, every payload is written to disk as it is enqueued.
+         */
+        public long queueCommitWindowMillis = 0;
+
+        /** Whether the disk queue should be accessed through a memory mapping. */
+        public boolean memoryMappedQueue = false;
+        /** Whether batches should be gzip compressed. */
+        public boolean gzipEnabled = false;
+        /** The {@link Deflater} level batches are compressed at. */
+        public int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+        /**
+         * Batches are only compressed once the queued payloads add up to this many bytes of JSON.
+         */
+        public int gzipThresholdBytes = 0;
+        /**
+         * How many batches a flush may upload at once. If {@code 1}, batches are uploaded one after
+         * the other, streamed straight from the queue. Otherwise each batch is read into memory
+         * first, so this also bounds the memory a flush uses to about this many times {@link
+         * BatchUploadRequest#MAX_BATCH_SIZE}. Ignored for queues that evict payloads on their own.
+         */
+        public int maxInFlightBatches = 1;
+        /**
+         * On a metered network, the flush interval and the queue size that triggers a flush are
+         * multiplied by this, so fewer, larger batches are uploaded. If {@code 1}, flushes are
+         * scheduled the same way on every network.
+         */
+        public int meteredFlushMultiplier = 1;
+        /**
+         * Whether the disk queue leaves the space of uploaded payloads to be zeroed out in the
+         * background, instead of while a flush holds the queue. Off by default: which payloads are
+         * still to be zeroed out is only kept in memory, so if the process dies first, uploaded
+         * payloads stay on disk unencrypted until their space is reused.
+         */
+        public boolean lazyQueueErase = false;
+        /**
+         * Names of the track events that go to the priority lane: push notification and in-app
+         * message interactions, and completed orders.
+         */
+        public Set<String> priorityEvents =
+                new HashSet<>(
+                        Arrays.asList("snapyr.observation.event.Behavior", "Order Completed"));
+
+        public Config setQueueCommitWindowMillis(long queueCommitWindowMillis) {
+            this.queueCommitWindowMillis = queueCommitWindowMillis;
+            return this;
+        }
+
+        public Config setMemoryMappedQueue(boolean memoryMappedQueue) {
+            this.memoryMappedQueue = memoryMappedQueue;
+            return this;
+        }
+
+        public Config setMaxInFlightBatches(int maxInFlightBatches) {
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        public Config setMeteredFlushMultiplier(int meteredFlushMultiplier) {
+            this.meteredFlushMultiplier = meteredFlushMultiplier;
+            return this;
+        }
+
+        public Config setLazyQueueErase(boolean lazyQueueErase) {
+            this.lazyQueueErase = lazyQueueErase;
+            return this;
+        }
+
+        public Config setPriorityEvents(String... priorityEvents) {
+            this.priorityEvents = new HashSet<>(Arrays.asList(priorityEvents));
+            return this;
+        }
+
+        public Config setGzip(boolean enabled, int level, int thresholdBytes) {
+            this.gzipEnabled = enabled;
+            this.gzipLevel = level;
+            this.gzipThresholdBytes = thresholdBytes;
+            return this;
+        }
+    }
 }
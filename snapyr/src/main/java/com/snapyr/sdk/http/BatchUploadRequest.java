@@ -23,21 +23,26 @@
  */
 package com.snapyr.sdk.http;
 
-import android.util.JsonWriter;
 import android.util.Log;
 import com.snapyr.sdk.internal.Private;
 import com.snapyr.sdk.internal.Utils;
+import com.snapyr.sdk.services.BinaryJson;
 import com.snapyr.sdk.services.Crypto;
-import java.io.BufferedWriter;
+import com.snapyr.sdk.services.ServiceFacade;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Date;
 
-/** A wrapper that emits a JSON formatted batch payload to the underlying writer. */
+/**
+ * A wrapper that emits a JSON formatted batch payload to the underlying stream. Payloads are stored
+ * in the compact binary form of {@link BinaryJson}, and transcoded to JSON as they are read from
+ * the queue, with their context put back in from the queue's {@link ContextTable}. Payloads queued
+ * as UTF-8 JSON by earlier versions are copied into the stream as they are. Payloads enqueued
+ * before the advertising ID was known get it added to the device in their context.
+ */
 public class BatchUploadRequest implements Closeable, BatchQueue.ElementVisitor {
     /**
      * Our servers only accept batches up to 500KB. This limit is 475KB to account for extra data
@@ -45,28 +50,168 @@ public class BatchUploadRequest implements Closeable, BatchQueue.ElementVisitor
      * {@code integrations} and other json tokens.
      */
     @Private static final int MAX_BATCH_SIZE = 475000; // 475KB.
+    /**
+     * When a batch is gzip compressed, {@link #MAX_BATCH_SIZE} applies to the compressed bytes. The
+     * writer and the compressor buffer some input before output for it reaches the connection, so
+     * this much is reserved on top of the compressed bytes seen so far.
+     */
+    @Private static final int COMPRESSION_LAG_BYTES = 64 * 1024; // 64KB.
+    /** Upper bound on the uncompressed size of a gzip compressed batch. */
+    @Private static final int MAX_UNCOMPRESSED_BATCH_SIZE = 4 * MAX_BATCH_SIZE;
 
     @Private static final Charset UTF_8 = Charset.forName("UTF-8");
     static final String SNAPYR_KEY = "Snapyr";
 
+    private static final byte[] BATCH_START = "{\"batch\":[".getBytes(UTF_8);
+    private static final byte[] BATCH_ARRAY_END = "]".getBytes(UTF_8);
+    private static final byte[] SENT_AT_START = ",\"sentAt\":\"".getBytes(UTF_8);
+    private static final byte[] BATCH_END = "\"}".getBytes(UTF_8);
+    private static final int COMMA = ',';
+    private static final byte[] CONTEXT_NAME = "context".getBytes(UTF_8);
+    private static final byte[] DEVICE_NAME = "device".getBytes(UTF_8);
+    private static final byte[] ADVERTISING_ID_NAME = "advertisingId".getBytes(UTF_8);
+    private static final byte[] AD_TRACKING_ENABLED_NAME = "adTrackingEnabled".getBytes(UTF_8);
+    private static final ThreadLocal<byte[]> SENT_AT_BUFFER =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[Utils.ISO8601_MAX_LENGTH];
+                }
+            };
+    /** Holds payloads read from the queue, and decrypts them in place. Reused across batches. */
+    private static final ThreadLocal<byte[]> RECORD_BUFFER =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[BatchUploadQueue.MAX_PAYLOAD_SIZE];
+                }
+            };
+    /** Holds payloads with {@link #deviceFields} added. Reused across batches. */
+    private static final ThreadLocal<byte[]> DEVICE_FIELDS_BUFFER =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[BatchUploadQueue.MAX_PAYLOAD_SIZE];
+                }
+            };
+    private static final ThreadLocal<BinaryJson.Transcoder> TRANSCODER =
+            new ThreadLocal<BinaryJson.Transcoder>() {
+                @Override
+                protected BinaryJson.Transcoder initialValue() {
+                    return new BinaryJson.Transcoder();
+                }
+            };
+
     public static final boolean DEBUG_MODE = false;
     StringBuilder debugString = new StringBuilder();
     private boolean needsComma = false;
-    private JsonWriter jsonWriter;
-    private BufferedWriter bufferedWriter;
+    /** Set once the whole batch has been written. */
+    private boolean complete = false;
+    private final OutputStream stream;
     private Crypto crypto;
+    /** Where the contexts payloads refer to are kept, or null. */
+    private final ContextTable contexts;
+    /** Counts compressed bytes written, if the batch is being compressed. */
+    private final CountingOutputStream compressedBytes;
+    /** The number of payloads at the head of the queue to leave out of the batch. */
+    private final int skip;
+    private int skipped;
+    /** The most payloads to include in the batch. */
+    private final int maxPayloads;
+    /**
+     * JSON members added to the device in the context of each payload that has no advertising info
+     * of its own, or null.
+     */
+    private final byte[] deviceFields;
     int size;
+    /**
+     * The payloads read from the queue, which are removed with the batch. Includes those left out
+     * because they could not be read, so a batch may hold fewer.
+     */
     int payloadCount;
 
     public static int execute(BatchQueue queue, OutputStream stream, Crypto crypto)
             throws IOException {
-        BatchUploadRequest uploader = new BatchUploadRequest(stream, crypto);
+        return execute(queue, stream, crypto, null, 0, Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Writes a batch of at most {@code maxPayloads} of the payloads following the first {@code
+     * skip} payloads in the queue, which are already part of other batches. {@code cursor}, if not
+     * null, records where the batch ends in the queue. {@code deviceFields}, if not null, are JSON
+     * members added to the device in the context of every payload that has neither an {@code
+     * advertisingId} nor {@code adTrackingEnabled}.
+     */
+    public static int execute(
+            BatchQueue queue,
+            OutputStream stream,
+            Crypto crypto,
+            int skip,
+            int maxPayloads,
+            BatchQueue.Cursor cursor,
+            byte[] deviceFields)
+            throws IOException {
+        return execute(queue, stream, crypto, null, skip, maxPayloads, cursor, deviceFields);
+    }
+
+    public static int execute(BatchQueue queue, WriteConnection connection, Crypto crypto)
+            throws IOException {
+        return execute(queue, connection, crypto, Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Writes a batch of at most {@code maxPayloads} payloads to the connection. If the connection
+     * gzips the batch, as many payloads are included as fit in {@link #MAX_BATCH_SIZE} compressed
+     * bytes. {@code cursor} and {@code deviceFields} are as in {@link #execute(BatchQueue,
+     * OutputStream, Crypto, int, int, BatchQueue.Cursor, byte[])}.
+     */
+    public static int execute(
+            BatchQueue queue,
+            WriteConnection connection,
+            Crypto crypto,
+            int maxPayloads,
+            BatchQueue.Cursor cursor,
+            byte[] deviceFields)
+            throws IOException {
+        OutputStream stream = connection.getOutputStream();
+        return execute(
+                queue,
+                stream,
+                crypto,
+                connection.compressedBytes,
+                0,
+                maxPayloads,
+                cursor,
+                deviceFields);
+    }
+
+    private static int execute(
+            BatchQueue queue,
+            OutputStream stream,
+            Crypto crypto,
+            CountingOutputStream compressedBytes,
+            int skip,
+            int maxPayloads,
+            BatchQueue.Cursor cursor,
+            byte[] deviceFields)
+            throws IOException {
+        BatchUploadRequest uploader =
+                new BatchUploadRequest(
+                        stream,
+                        crypto,
+                        queue.contexts(),
+                        compressedBytes,
+                        skip,
+                        maxPayloads,
+                        deviceFields);
         try {
-            uploader.beginObject();
-            uploader.beginBatchArray();
-            queue.forEach(uploader);
-            uploader.endBatchArray();
-            uploader.endObject();
+            uploader.beginBatch();
+            if (cursor == null) {
+                queue.forEach(uploader);
+            } else {
+                queue.forEach(uploader, cursor);
+            }
+            uploader.endBatch();
             uploader.close();
             if (DEBUG_MODE) {
                 Log.e("Snapyr", "Payload sent to Snapyr engine:");
@@ -79,29 +224,224 @@ public class BatchUploadRequest implements Closeable, BatchQueue.ElementVisitor
         return uploader.payloadCount;
     }
 
-    private BatchUploadRequest(OutputStream stream, Crypto crypto) {
-        this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(stream));
-        this.jsonWriter = new JsonWriter(bufferedWriter);
+    private BatchUploadRequest(
+            OutputStream stream,
+            Crypto crypto,
+            ContextTable contexts,
+            CountingOutputStream compressedBytes,
+            int skip,
+            int maxPayloads,
+            byte[] deviceFields) {
+        this.stream = stream;
         this.crypto = crypto;
+        this.contexts = contexts;
+        this.compressedBytes = compressedBytes;
+        this.skip = skip;
+        this.maxPayloads = maxPayloads;
+        this.deviceFields = deviceFields;
     }
 
     @Override
     public boolean read(InputStream in, int length) throws IOException {
-        InputStream is = this.crypto.decrypt(in);
-        final int newSize = size + length;
-        if (newSize > MAX_BATCH_SIZE) {
+        if (skipped < skip) {
+            skipped++;
+            return true;
+        }
+        if (payloadCount >= maxPayloads) {
+            return false;
+        }
+        ByteBuffer payload;
+        try {
+            payload = toJson(readRecord(in, length), crypto, contexts);
+        } catch (IOException e) {
+            // Left in the queue, a corrupt payload would fail every upload until it's evicted.
+            // Count it with the batch so it's removed, but leave it out of the request.
+            ServiceFacade.getLogger().error(e, "Dropping payload that could not be read.");
+            payloadCount++;
+            return true;
+        }
+        if (deviceFields != null) {
+            payload = addDeviceFields(payload);
+        }
+        final int jsonLength = payload.remaining();
+        final int newSize = size + jsonLength;
+        if (compressedBytes == null) {
+            if (newSize > MAX_BATCH_SIZE) {
+                return false;
+            }
+        } else if (newSize > MAX_UNCOMPRESSED_BATCH_SIZE
+                || compressedBytes.getCount() + COMPRESSION_LAG_BYTES + jsonLength
+                        > MAX_BATCH_SIZE) {
+            // Assume the payload doesn't compress at all.
             return false;
         }
         size = newSize;
-        byte[] data = new byte[length];
-        //noinspection ResultOfMethodCallIgnored
-        is.read(data, 0, length);
-        // Remove trailing whitespace.
-        emitPayloadObject(new String(data, UTF_8).trim());
+        emitPayloadObject(payload.array(), payload.position(), jsonLength);
         payloadCount++;
         return true;
     }
 
+    /**
+     * Returns the length of the JSON the payload in {@code in} is uploaded as, or {@code 0} if it
+     * can't be read and would be dropped from the batch.
+     */
+    static int jsonLength(InputStream in, int length, Crypto crypto, ContextTable contexts)
+            throws IOException {
+        ByteBuffer record = readRecord(in, length);
+        try {
+            return toJson(record, crypto, contexts).remaining();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** Decrypts {@code record} and transcodes it to JSON, if it was queued in binary. */
+    private static ByteBuffer toJson(ByteBuffer record, Crypto crypto, ContextTable contexts)
+            throws IOException {
+        if (!crypto.isIdentity()) {
+            crypto.session().decrypt(record);
+        }
+        if (!BinaryJson.isBinary(record.array(), record.position(), record.remaining())) {
+            return record;
+        }
+        BinaryJson.Transcoder transcoder = TRANSCODER.get();
+        int jsonLength =
+                transcoder.transcode(
+                        record.array(), record.position(), record.remaining(), contexts);
+        return ByteBuffer.wrap(transcoder.bytes(), 0, jsonLength);
+    }
+
+    /**
+     * Returns {@code payload} with {@link #deviceFields} added to the device in its context, or
+     * {@code payload} itself if the device already has advertising info or there is none.
+     */
+    private ByteBuffer addDeviceFields(ByteBuffer payload) {
+        byte[] json = payload.array();
+        int offset = payload.position();
+        int end = offset + payload.remaining();
+        int deviceEnd = deviceEnd(json, offset, end);
+        if (deviceEnd == -1) {
+            return payload;
+        }
+        int last = deviceEnd - 1;
+        while (isWhitespace(json[last])) {
+            last--;
+        }
+        boolean emptyDevice = json[last] == '{';
+        int length = payload.remaining() + deviceFields.length + (emptyDevice ? 0 : 1);
+        byte[] patched = DEVICE_FIELDS_BUFFER.get();
+        if (patched.length < length) {
+            patched = new byte[length];
+            DEVICE_FIELDS_BUFFER.set(patched);
+        }
+        int position = deviceEnd - offset;
+        System.arraycopy(json, offset, patched, 0, position);
+        if (!emptyDevice) {
+            patched[position++] = COMMA;
+        }
+        System.arraycopy(deviceFields, 0, patched, position, deviceFields.length);
+        position += deviceFields.length;
+        System.arraycopy(json, deviceEnd, patched, position, end - deviceEnd);
+        return ByteBuffer.wrap(patched, 0, length);
+    }
+
+    /**
+     * Returns the index of the brace that closes {@code context.device} in the payload JSON between
+     * {@code offset} and {@code end}, or -1 if there is no device or it already has an {@code
+     * advertisingId} or {@code adTrackingEnabled}.
+     */
+    static int deviceEnd(byte[] json, int offset, int end) {
+        int depth = 0;
+        int contextDepth = -1;
+        int deviceDepth = -1;
+        // The name whose value comes next, if any.
+        int nameStart = -1;
+        int nameEnd = -1;
+        for (int i = offset; i < end; i++) {
+            byte b = json[i];
+            if (b == '"') {
+                int start = i + 1;
+                i = start;
+                while (i < end && json[i] != '"') {
+                    i += json[i] == '\\' ? 2 : 1;
+                }
+                int next = i + 1;
+                while (next < end && isWhitespace(json[next])) {
+                    next++;
+                }
+                if (next < end && json[next] == ':') {
+                    nameStart = start;
+                    nameEnd = i;
+                    if (depth == deviceDepth
+                            && (regionEquals(json, start, i, ADVERTISING_ID_NAME)
+                                    || regionEquals(json, start, i, AD_TRACKING_ENABLED_NAME))) {
+                        return -1;
+                    }
+                    i = next;
+                }
+            } else if (b == '{') {
+                depth++;
+                if (depth == 2 && regionEquals(json, nameStart, nameEnd, CONTEXT_NAME)) {
+                    contextDepth = depth;
+                } else if (depth == 3
+                        && contextDepth == 2
+                        && regionEquals(json, nameStart, nameEnd, DEVICE_NAME)) {
+                    deviceDepth = depth;
+                }
+                nameStart = -1;
+            } else if (b == '[') {
+                depth++;
+                nameStart = -1;
+            } else if (b == '}' || b == ']') {
+                if (depth == deviceDepth) {
+                    return i;
+                }
+                if (depth == contextDepth) {
+                    return -1;
+                }
+                depth--;
+                nameStart = -1;
+            } else if (b == COMMA) {
+                nameStart = -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] json, int start, int end, byte[] name) {
+        if (start < 0 || end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (json[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /** Reads the payload in {@code in}, as it is stored. */
+    private static ByteBuffer readRecord(InputStream in, int length) throws IOException {
+        byte[] record = RECORD_BUFFER.get();
+        if (record.length < length) {
+            record = new byte[length];
+            RECORD_BUFFER.set(record);
+        }
+        int read = 0;
+        while (read < length) {
+            int count = in.read(record, read, length - read);
+            if (count == -1) {
+                throw new IOException("Payload ended after " + read + " of " + length + " bytes.");
+            }
+            read += count;
+        }
+        return ByteBuffer.wrap(record, 0, length);
+    }
+
     public static void largeLog(String tag, String content) {
         if (content.length() > 4000) {
             Log.e(tag, content.substring(0, 4000));
@@ -111,53 +451,37 @@ public class BatchUploadRequest implements Closeable, BatchQueue.ElementVisitor
         }
     }
 
-    BatchUploadRequest beginObject() throws IOException {
-        jsonWriter.beginObject();
-        if (DEBUG_MODE) {
-            debugString.append("{");
-        }
-        return this;
-    }
-
-    BatchUploadRequest beginBatchArray() throws IOException {
-        jsonWriter.name("batch").beginArray();
+    BatchUploadRequest beginBatch() throws IOException {
+        stream.write(BATCH_START);
         needsComma = false;
         if (DEBUG_MODE) {
-            debugString.append("\"batch\":[");
+            debugString.append("{\"batch\":[");
         }
         return this;
     }
 
-    BatchUploadRequest emitPayloadObject(String payload) throws IOException {
-        // Payloads already serialized into json when storing on disk. No need to waste cycles
-        // deserializing them.
+    BatchUploadRequest emitPayloadObject(byte[] payload, int offset, int length)
+            throws IOException {
+        // Payloads are JSON by now, either transcoded or queued as JSON. No need to waste cycles
+        // deserializing them, or even decoding them. Whitespace around them is valid JSON.
         if (needsComma) {
-            bufferedWriter.write(',');
+            stream.write(COMMA);
             if (DEBUG_MODE) {
                 debugString.append(",");
             }
-        } else {
-            needsComma = true;
         }
-        bufferedWriter.write(payload);
+        needsComma = true;
+        stream.write(payload, offset, length);
         if (DEBUG_MODE) {
-            debugString.append(payload);
+            debugString.append(new String(payload, offset, length, UTF_8));
         }
         return this;
     }
 
-    BatchUploadRequest endBatchArray() throws IOException {
-        if (!needsComma) {
+    BatchUploadRequest endBatch() throws IOException {
+        if (payloadCount == 0) {
             throw new IOException("At least one payload must be provided.");
         }
-        jsonWriter.endArray();
-        if (DEBUG_MODE) {
-            debugString.append("]");
-        }
-        return this;
-    }
-
-    BatchUploadRequest endObject() throws IOException {
         /**
          * The sent timestamp is an ISO-8601-formatted string that, if present on a message, can be
          * used to correct the original timestamp in situations where the local clock cannot be
@@ -165,16 +489,26 @@ public class BatchUploadRequest implements Closeable, BatchQueue.ElementVisitor
          * be assumed to have occurred at the same time, and therefore the difference is the local
          * clock skew.
          */
-        jsonWriter.name("sentAt").value(Utils.toISO8601Date(new Date())).endObject();
+        byte[] sentAt = SENT_AT_BUFFER.get();
+        int sentAtLength = Utils.toISO8601Bytes(System.currentTimeMillis(), sentAt);
+        stream.write(BATCH_ARRAY_END);
+        stream.write(SENT_AT_START);
+        stream.write(sentAt, 0, sentAtLength);
+        stream.write(BATCH_END);
+        complete = true;
         if (DEBUG_MODE) {
-            debugString.append(",\"sentAt\":\"" + Utils.toISO8601Date(new Date()) + "\"}");
+            debugString
+                    .append("],\"sentAt\":\"")
+                    .append(new String(sentAt, 0, sentAtLength, UTF_8))
+                    .append("\"}");
         }
         return this;
     }
 
     @Override
     public void close() throws IOException {
-        jsonWriter.close();
-        bufferedWriter.close();
+        if (!complete) {
+            throw new IOException("Incomplete document");
+        }
     }
 }
@@ -72,7 +72,23 @@ public class ConnectionFactory {
 
     /** Return a {@link HttpURLConnection} that reads JSON formatted project settings. */
     public HttpURLConnection getSettings() throws IOException {
-        return openConnection(configURL + writeKey, "GET");
+        return getSettings(null, 0);
+    }
+
+    /**
+     * Like {@link #getSettings()}, but the server answers {@code 304 Not Modified} without a body
+     * if the settings still match {@code etag} or haven't changed since {@code lastModified}.
+     * Either may be left out by passing null or 0.
+     */
+    public HttpURLConnection getSettings(String etag, long lastModified) throws IOException {
+        HttpURLConnection connection = openConnection(configURL + writeKey, "GET");
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified > 0) {
+            connection.setIfModifiedSince(lastModified);
+        }
+        return connection;
     }
 
     /**
@@ -83,6 +99,16 @@ public class ConnectionFactory {
         return new WriteConnection(engineRequest("v1/batch", "POST"));
     }
 
+    /**
+     * Like {@link #postBatch()}, but the batch is gzip compressed at the given {@link
+     * java.util.zip.Deflater} level.
+     */
+    public WriteConnection postBatch(int compressionLevel) throws IOException {
+        HttpURLConnection connection = engineRequest("v1/batch", "POST");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        return new WriteConnection(connection, compressionLevel);
+    }
+
     public HttpURLConnection engineRequest(String path, String method) throws IOException {
         HttpURLConnection connection = openConnection(engineURL + path, method);
         connection.setRequestProperty("Authorization", authorizationHeader(writeKey));
@@ -0,0 +1,298 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http;
+
+import com.snapyr.sdk.services.BinaryJson;
+import com.snapyr.sdk.services.Crypto;
+import com.snapyr.sdk.services.ServiceFacade;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the contexts of queued payloads, each once, so the payloads only refer to them by hash.
+ * Between identify calls most payloads share the same context, which is otherwise the bulk of
+ * each payload. A table backed by a file keeps each context there as an encrypted entry, next to
+ * the queue file, so payloads queued by an earlier process still find theirs.
+ *
+ * <p>Contexts can't be removed as payloads are, since any number of payloads may refer to one.
+ * Instead, once the queue is empty, {@link #prune()} drops the contexts no payload was queued with
+ * since the previous prune, which also keeps contexts a payload being queued at that moment
+ * refers to.
+ */
+public final class ContextTable implements BinaryJson.SharedMaps {
+    /** The most contexts kept. Payloads with any other context keep it in place. */
+    static final int MAX_ENTRIES = 64;
+
+    private static final int MAGIC = 0x534e4358; // "SNCX"
+    private static final int HEADER_SIZE = 4;
+    /** Each entry starts with the hash of its context and the length of the stored bytes. */
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    /** The file backing this table, or null if it's kept in memory only. */
+    private final File file;
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final BinaryJson.Transcoder transcoder = new BinaryJson.Transcoder();
+    private boolean loaded;
+    /** Whether the file ends with its last good entry, so entries can be appended to it. */
+    private boolean appendable;
+
+    /** Creates a table kept in memory only. */
+    public ContextTable() {
+        this(null);
+    }
+
+    /** Creates a table backed by {@code file}, which is read on first use. */
+    public ContextTable(File file) {
+        this.file = file;
+    }
+
+    private static final class Entry {
+        /** The context, as a binary record. */
+        final byte[] record;
+        /** The record transcoded to JSON, once needed. */
+        byte[] json;
+        /** Whether a payload was queued with this context since the last prune. */
+        boolean shared;
+
+        Entry(byte[] record) {
+            this.record = record;
+        }
+
+        boolean holds(byte[] bytes, int offset, int length) {
+            if (length != record.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (record[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized boolean share(long hash, byte[] record, int offset, int length) {
+        load();
+        Entry entry = entries.get(hash);
+        if (entry != null && !entry.holds(record, offset, length)) {
+            // Two contexts with the same hash, which is as good as never.
+            return false;
+        }
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES) {
+                return false;
+            }
+            entry = new Entry(Arrays.copyOfRange(record, offset, offset + length));
+            entries.put(hash, entry);
+            if (file != null) {
+                try {
+                    if (appendable) {
+                        append(hash, entry.record);
+                    } else {
+                        rewrite();
+                    }
+                } catch (IOException e) {
+                    ServiceFacade.getLogger().error(e, "Could not store context in %s.", file);
+                    entries.remove(hash);
+                    // The entry may have been partly written.
+                    appendable = false;
+                    return false;
+                }
+            }
+        }
+        entry.shared = true;
+        return true;
+    }
+
+    @Override
+    public synchronized byte[] json(long hash) throws IOException {
+        load();
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.json == null) {
+            int length = transcoder.transcode(entry.record, 0, entry.record.length);
+            entry.json = Arrays.copyOf(transcoder.bytes(), length);
+        }
+        return entry.json;
+    }
+
+    /** Returns the number of contexts kept. */
+    synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * Drops the contexts no payload was queued with since the last prune. Must only be called while
+     * the queue is empty.
+     */
+    synchronized void prune() {
+        if (!loaded) {
+            // Nothing was queued since the file was written, and the payloads queued back then are
+            // gone.
+            loaded = true;
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            return;
+        }
+        boolean dropped = false;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.shared) {
+                entry.shared = false;
+            } else {
+                it.remove();
+                dropped = true;
+            }
+        }
+        if (dropped && file != null) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                ServiceFacade.getLogger().error(e, "Could not prune contexts in %s.", file);
+                appendable = false;
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            byte[] bytes = readFile();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a context table: " + file);
+            }
+            Crypto crypto = ServiceFacade.getCrypto();
+            while (buffer.remaining() >= ENTRY_HEADER_SIZE) {
+                long hash = buffer.getLong();
+                int size = buffer.getInt();
+                if (size <= 0 || size > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(bytes, buffer.position(), size);
+                buffer.position(buffer.position() + size);
+                if (!crypto.isIdentity()) {
+                    crypto.session().decrypt(record);
+                }
+                if (BinaryJson.hash(bytes, record.position(), record.remaining()) != hash) {
+                    break;
+                }
+                entries.put(
+                        hash,
+                        new Entry(Arrays.copyOfRange(bytes, record.position(), record.limit())));
+            }
+            // Anything after the last good entry is a write that was cut short.
+            appendable = !buffer.hasRemaining();
+        } catch (IOException e) {
+            ServiceFacade.getLogger().error(e, "Could not read contexts from %s.", file);
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void append(long hash, byte[] record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ENTRY_HEADER_SIZE + record.length);
+        writeEntry(new DataOutputStream(bytes), hash, record);
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            writeEntry(data, entry.getKey(), entry.getValue().record);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file + ".");
+        }
+        appendable = true;
+    }
+
+    /** Writes an entry holding {@code record}, encrypted like the payloads in the queue. */
+    private static void writeEntry(DataOutputStream out, long hash, byte[] record)
+            throws IOException {
+        ByteBuffer sealed = ByteBuffer.wrap(record);
+        Crypto crypto = ServiceFacade.getCrypto();
+        if (!crypto.isIdentity()) {
+            int overhead = crypto.maxOverhead();
+            int room =
+                    overhead == Crypto.UNKNOWN_OVERHEAD
+                            ? BatchUploadQueue.MAX_PAYLOAD_SIZE
+                            : overhead;
+            sealed = ByteBuffer.wrap(Arrays.copyOf(record, record.length + room), 0, record.length);
+            crypto.session().encrypt(sealed);
+        }
+        out.writeLong(hash);
+        out.writeInt(sealed.remaining());
+        out.write(sealed.array(), sealed.position(), sealed.remaining());
+    }
+}
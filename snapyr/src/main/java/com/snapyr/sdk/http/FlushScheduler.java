@@ -0,0 +1,299 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http;
+
+import static android.Manifest.permission.ACCESS_NETWORK_STATE;
+import static android.content.Context.CONNECTIVITY_SERVICE;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Build;
+import com.snapyr.sdk.internal.Private;
+import com.snapyr.sdk.internal.Utils;
+import com.snapyr.sdk.services.ServiceFacade;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when {@link BatchUploadQueue} should flush, instead of flushing at a fixed rate.
+ *
+ * <ul>
+ *   <li>A timer only runs while there are queued payloads, so an empty queue never wakes the
+ *       device.
+ *   <li>After a failed upload in either lane, including one the server rate limited, the next
+ *       flush is delayed as the lane's {@link RetryPolicy} decides, and the queue size no longer
+ *       triggers flushes until an upload succeeds. A {@code Retry-After} from either lane delays
+ *       flushes of both, since they upload to the same server.
+ *   <li>While the device is offline no timer runs at all; the scheduler waits for a connectivity
+ *       callback and flushes as soon as a network is available.
+ *   <li>On a metered network, both the flush interval and the queue size that triggers a flush are
+ *       multiplied by {@link BatchUploadQueue.Config#meteredFlushMultiplier}, so fewer, larger
+ *       batches are sent.
+ * </ul>
+ *
+ * Flushes requested explicitly, or because the app went to the background, are deferred to the
+ * next scheduled flush while uploads are backing off.
+ */
+class FlushScheduler {
+    /** Upper bound on the queue size that triggers a flush on a metered network. */
+    @Private static final int MAX_METERED_FLUSH_QUEUE_SIZE = 250;
+
+    private final Context context;
+    private final ScheduledExecutorService executor;
+    private final long flushIntervalInMillis;
+    private final int flushQueueSize;
+    private final int meteredFlushMultiplier;
+    private final RetryPolicy retryPolicy;
+    private final RetryPolicy priorityRetryPolicy;
+    private final Runnable flush;
+
+    private ScheduledFuture<?> pendingFlush;
+    private Object networkListener;
+
+    FlushScheduler(
+            Context context,
+            ScheduledExecutorService executor,
+            long flushIntervalInMillis,
+            int flushQueueSize,
+            int meteredFlushMultiplier,
+            RetryPolicy retryPolicy,
+            RetryPolicy priorityRetryPolicy,
+            Runnable flush) {
+        this.context = context;
+        this.executor = executor;
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        this.flushQueueSize = flushQueueSize;
+        this.meteredFlushMultiplier = Math.max(1, meteredFlushMultiplier);
+        this.retryPolicy = retryPolicy;
+        this.priorityRetryPolicy = priorityRetryPolicy;
+        this.flush = flush;
+    }
+
+    /** Schedules the first flush for a queue that already holds {@code queueSize} payloads. */
+    synchronized void start(int queueSize) {
+        if (queueSize >= flushQueueSize()) {
+            schedule(0);
+        } else {
+            scheduleNext(queueSize);
+        }
+    }
+
+    /**
+     * Called after a payload is added to the queue. Returns true if the queue should be flushed
+     * right away.
+     */
+    synchronized boolean onEnqueue(int queueSize) {
+        if (!isBackingOff() && queueSize >= flushQueueSize()) {
+            return true;
+        }
+        if (pendingFlush == null && networkListener == null) {
+            scheduleNext(queueSize);
+        }
+        return false;
+    }
+
+    /**
+     * Called when a requested flush was deferred because uploads are backing off. Keeps the flush
+     * already planned for the retry, so repeated requests don't push it back.
+     */
+    synchronized void onFlushDeferred(int queueSize) {
+        if (pendingFlush == null && networkListener == null) {
+            scheduleNext(queueSize);
+        }
+    }
+
+    /** Called when a flush was skipped, because the queue was empty or the device offline. */
+    synchronized void onFlushSkipped(int queueSize) {
+        scheduleNext(queueSize);
+    }
+
+    /** Called after a flush, once the {@link RetryPolicy} knows whether it failed. */
+    synchronized void onFlushFinished(int queueSize) {
+        scheduleNext(queueSize);
+    }
+
+    synchronized void shutdown() {
+        cancelPendingFlush();
+        stopWaitingForNetwork();
+        executor.shutdownNow();
+    }
+
+    /** Schedules the next flush for a queue holding {@code queueSize} payloads, if any. */
+    private void scheduleNext(int queueSize) {
+        cancelPendingFlush();
+        if (queueSize == 0) {
+            // The next enqueue schedules a flush.
+            stopWaitingForNetwork();
+        } else if (!Utils.isConnected(context)) {
+            waitForNetwork();
+        } else {
+            stopWaitingForNetwork();
+            schedule(nextDelay());
+        }
+    }
+
+    /** Whether uploads in either lane failed, or the server asked to wait. */
+    private boolean isBackingOff() {
+        return retryPolicy.isBackingOff()
+                || priorityRetryPolicy.isBackingOff()
+                || retryPolicy.isRetryAfterPending()
+                || priorityRetryPolicy.isRetryAfterPending();
+    }
+
+    private long nextDelay() {
+        long interval = flushIntervalInMillis;
+        if (isMetered()) {
+            interval *= meteredFlushMultiplier;
+        }
+        long delay = retryPolicy.isBackingOff() ? retryPolicy.retryDelay(interval) : interval;
+        if (priorityRetryPolicy.isBackingOff()) {
+            delay = Math.max(delay, priorityRetryPolicy.retryDelay(interval));
+        }
+        return Math.max(
+                delay,
+                Math.max(retryPolicy.retryAfterDelay(), priorityRetryPolicy.retryAfterDelay()));
+    }
+
+    private int flushQueueSize() {
+        if (meteredFlushMultiplier > 1 && isMetered()) {
+            int meteredFlushQueueSize = flushQueueSize * meteredFlushMultiplier;
+            return Math.max(
+                    flushQueueSize, Math.min(meteredFlushQueueSize, MAX_METERED_FLUSH_QUEUE_SIZE));
+        }
+        return flushQueueSize;
+    }
+
+    @SuppressLint("MissingPermission")
+    private boolean isMetered() {
+        if (!Utils.hasPermission(context, ACCESS_NETWORK_STATE)) {
+            return false;
+        }
+        ConnectivityManager connectivityManager =
+                Utils.getSystemService(context, CONNECTIVITY_SERVICE);
+        return connectivityManager != null && connectivityManager.isActiveNetworkMetered();
+    }
+
+    private void schedule(long delayMillis) {
+        pendingFlush =
+                executor.schedule(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (FlushScheduler.this) {
+                                    pendingFlush = null;
+                                }
+                                flush.run();
+                            }
+                        },
+                        delayMillis,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPendingFlush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+    }
+
+    private void onNetworkAvailable() {
+        synchronized (this) {
+            if (networkListener == null) {
+                return;
+            }
+            stopWaitingForNetwork();
+        }
+        ServiceFacade.getLogger().verbose("Network available, flushing queued payloads.");
+        flush.run();
+    }
+
+    @SuppressLint("MissingPermission")
+    private void waitForNetwork() {
+        if (networkListener != null) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                ConnectivityManager connectivityManager =
+                        Utils.getSystemService(context, CONNECTIVITY_SERVICE);
+                NetworkListener listener = new NetworkListener();
+                connectivityManager.registerDefaultNetworkCallback(listener);
+                networkListener = listener;
+            } else {
+                BroadcastReceiver receiver =
+                        new BroadcastReceiver() {
+                            @Override
+                            public void onReceive(Context context, Intent intent) {
+                                if (Utils.isConnected(context)) {
+                                    onNetworkAvailable();
+                                }
+                            }
+                        };
+                context.registerReceiver(
+                        receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                networkListener = receiver;
+            }
+        } catch (RuntimeException e) {
+            // Fall back to retrying on a timer.
+            ServiceFacade.getLogger().debug("Could not listen for connectivity changes: %s", e);
+            schedule(nextDelay());
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void stopWaitingForNetwork() {
+        Object listener = networkListener;
+        if (listener == null) {
+            return;
+        }
+        networkListener = null;
+        try {
+            if (listener instanceof BroadcastReceiver) {
+                context.unregisterReceiver((BroadcastReceiver) listener);
+            } else {
+                ConnectivityManager connectivityManager =
+                        Utils.getSystemService(context, CONNECTIVITY_SERVICE);
+                connectivityManager.unregisterNetworkCallback(
+                        (ConnectivityManager.NetworkCallback) listener);
+            }
+        } catch (RuntimeException ignored) {
+            // Already unregistered.
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private class NetworkListener extends ConnectivityManager.NetworkCallback {
+        @Override
+        public void onAvailable(Network network) {
+            onNetworkAvailable();
+        }
+    }
+}
@@ -30,12 +30,23 @@ public class HTTPException extends IOException {
     public final int responseCode;
     public final String responseMessage;
     public final String responseBody;
+    /**
+     * How long the server asked to wait before retrying, in milliseconds, or {@code -1} if the
+     * response had no {@code Retry-After} header.
+     */
+    public final long retryAfterMillis;
 
     public HTTPException(int responseCode, String responseMessage, String responseBody) {
+        this(responseCode, responseMessage, responseBody, -1);
+    }
+
+    public HTTPException(
+            int responseCode, String responseMessage, String responseBody, long retryAfterMillis) {
         super("HTTP " + responseCode + ": " + responseMessage + ". Response: " + responseBody);
         this.responseCode = responseCode;
         this.responseMessage = responseMessage;
         this.responseBody = responseBody;
+        this.retryAfterMillis = retryAfterMillis;
     }
 
     public boolean is4xx() {
@@ -0,0 +1,114 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable, size limited buffer that payloads are serialized into before they are added to a
+ * {@link BatchQueue}. Writes fail as soon as the payload outgrows the limit, rather than after it
+ * has been fully serialized. Not thread safe; each instance should be confined to a single thread.
+ */
+final class PayloadBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int limit;
+    private byte[] bytes;
+    private int count;
+
+    PayloadBuffer(int limit) {
+        this.limit = limit;
+        this.bytes = new byte[Math.min(INITIAL_CAPACITY, limit)];
+    }
+
+    /** Discards the buffered payload, keeping the underlying array for reuse. */
+    void reset() {
+        count = 0;
+    }
+
+    /** Returns the underlying array. Only the first {@link #size()} bytes are valid. */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /** Returns the number of buffered bytes. */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the buffered payload as a record that can be encrypted in place, with at least {@code
+     * room} bytes past its limit, or as many as the size limit allows.
+     */
+    ByteBuffer asRecord(int room) {
+        long required = (long) count + room;
+        if (required > bytes.length && bytes.length < limit) {
+            bytes = Arrays.copyOf(bytes, (int) Math.min(required, limit));
+        }
+        return ByteBuffer.wrap(bytes, 0, count);
+    }
+
+    /** Makes room for {@code n} more bytes, failing if that would exceed the limit. */
+    private void ensureCapacity(int n) throws PayloadTooLargeException {
+        int required = count + n;
+        if (required <= bytes.length) {
+            return;
+        }
+        if (required > limit || required < 0) {
+            throw new PayloadTooLargeException(limit);
+        }
+        bytes = Arrays.copyOf(bytes, Math.min(Math.max(required, bytes.length << 1), limit));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(len);
+        System.arraycopy(b, off, bytes, count, len);
+        count += len;
+    }
+
+    @Override
+    public void close() {
+        // Buffers are reused, so there's nothing to release.
+    }
+
+    /** Thrown once a payload grows beyond the buffer's limit. */
+    static final class PayloadTooLargeException extends IOException {
+        PayloadTooLargeException(int limit) {
+            super("Payload exceeds " + limit + " bytes.");
+        }
+    }
+}
@@ -31,9 +31,11 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -55,6 +57,17 @@ import java.util.logging.Logger;
  * power goes out while writing a segment, the segment will contain garbage and the file will be
  * corrupt. We'll add journaling support so this class can be used with more file systems later.
  *
+ * <p>A queue can optionally be {@link #QueueFile(File, boolean) memory mapped}. Reads and writes
+ * are then plain memory copies into the page cache instead of synchronous system calls. Data written
+ * this way survives the process dying, but is only guaranteed to reach storage when the queue is
+ * closed, so a power loss may drop or corrupt the most recent elements. The file format is the same
+ * in both modes, so a file can be reopened in either mode.
+ *
+ * <p>Removed elements are zeroed out as they are removed, unless the queue {@link
+ * #setEraseLazily erases lazily}. Their space is then only zeroed out by {@link #compact}. Which
+ * space is left to zero out is not written to the file, so it is lost if the queue is not compacted
+ * before it is closed.
+ *
  * @author Bob Lee (bob@squareup.com)
  */
 public class QueueFile implements Closeable {
@@ -95,8 +108,12 @@ public class QueueFile implements Closeable {
      * Visible for testing.
      */
     final RandomAccessFile raf;
+    /** Mapping of the whole of {@link #raf}, or null if this queue isn't memory mapped. */
+    private MappedByteBuffer map;
     /** In-memory buffer. Big enough to hold the header. */
     private final byte[] buffer = new byte[16];
+    /** Reads elements for {@link #forEach}. Reused across elements and visits. */
+    private final FileElementInputStream elementStream = new FileElementInputStream();
     /** Cached file length. Always a power of 2. */
     int fileLength;
     /** Number of elements. */
@@ -105,6 +122,17 @@ public class QueueFile implements Closeable {
     private Element first;
     /** Pointer to last (or newest) element. */
     private Element last;
+    /** Incremented whenever elements may have moved, which invalidates cursors. */
+    private int generation;
+    /** Number of elements removed since the queue was opened. */
+    private long removedCount;
+    /** Whether removed elements are left for {@link #compact} to zero out. */
+    private boolean eraseLazily;
+    /**
+     * Bytes of removed elements that haven't been zeroed out yet. They always lie just before the
+     * first element.
+     */
+    private int dirtyBytes;
 
     /**
      * Constructs a new queue backed by the given file. Only one instance should access a given file
@@ -118,6 +146,27 @@ public class QueueFile implements Closeable {
         readHeader();
     }
 
+    /**
+     * Constructs a new queue backed by the given file, optionally accessing it through a memory
+     * mapping. Only one instance should access a given file at a time.
+     */
+    public QueueFile(File file, boolean memoryMapped) throws IOException {
+        if (!file.exists()) {
+            initialize(file);
+        }
+        raf = open(file);
+        try {
+            if (memoryMapped) {
+                map();
+            }
+            readHeader();
+        } catch (IOException e) {
+            map = null;
+            raf.close();
+            throw e;
+        }
+    }
+
     QueueFile(RandomAccessFile raf) throws IOException {
         this.raf = raf;
         readHeader();
@@ -167,9 +216,35 @@ public class QueueFile implements Closeable {
         return new RandomAccessFile(file, "rwd");
     }
 
+    /** Maps the whole file into memory, replacing any previous mapping. */
+    private void map() throws IOException {
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    /** Reads count bytes into buffer from position in file. Doesn't wrap. */
+    private void read(int position, byte[] buffer, int offset, int count) throws IOException {
+        if (map != null) {
+            map.position(position);
+            map.get(buffer, offset, count);
+        } else {
+            raf.seek(position);
+            raf.readFully(buffer, offset, count);
+        }
+    }
+
+    /** Writes count bytes from buffer to position in file. Doesn't wrap. */
+    private void write(int position, byte[] buffer, int offset, int count) throws IOException {
+        if (map != null) {
+            map.position(position);
+            map.put(buffer, offset, count);
+        } else {
+            raf.seek(position);
+            raf.write(buffer, offset, count);
+        }
+    }
+
     private void readHeader() throws IOException {
-        raf.seek(0);
-        raf.readFully(buffer);
+        read(0, buffer, 0, buffer.length);
         fileLength = readInt(buffer, 0);
         elementCount = readInt(buffer, 4);
         int firstOffset = readInt(buffer, 8);
@@ -211,8 +286,7 @@ public class QueueFile implements Closeable {
         writeInt(buffer, 4, elementCount);
         writeInt(buffer, 8, firstPosition);
         writeInt(buffer, 12, lastPosition);
-        raf.seek(0);
-        raf.write(buffer);
+        write(0, buffer, 0, buffer.length);
     }
 
     private Element readElement(int position) throws IOException {
@@ -239,16 +313,13 @@ public class QueueFile implements Closeable {
     private void ringWrite(int position, byte[] buffer, int offset, int count) throws IOException {
         position = wrapPosition(position);
         if (position + count <= fileLength) {
-            raf.seek(position);
-            raf.write(buffer, offset, count);
+            write(position, buffer, offset, count);
         } else {
             // The write overlaps the EOF.
             // # of bytes to write before the EOF.
             int beforeEof = fileLength - position;
-            raf.seek(position);
-            raf.write(buffer, offset, beforeEof);
-            raf.seek(HEADER_LENGTH);
-            raf.write(buffer, offset + beforeEof, count - beforeEof);
+            write(position, buffer, offset, beforeEof);
+            write(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
         }
     }
 
@@ -272,16 +343,13 @@ public class QueueFile implements Closeable {
     void ringRead(int position, byte[] buffer, int offset, int count) throws IOException {
         position = wrapPosition(position);
         if (position + count <= fileLength) {
-            raf.seek(position);
-            raf.readFully(buffer, offset, count);
+            read(position, buffer, offset, count);
         } else {
             // The read overlaps the EOF.
             // # of bytes to read before the EOF.
             int beforeEof = fileLength - position;
-            raf.seek(position);
-            raf.readFully(buffer, offset, beforeEof);
-            raf.seek(HEADER_LENGTH);
-            raf.readFully(buffer, offset + beforeEof, count - beforeEof);
+            read(position, buffer, offset, beforeEof);
+            read(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
         }
     }
 
@@ -311,7 +379,7 @@ public class QueueFile implements Closeable {
             throw new IndexOutOfBoundsException();
         }
 
-        expandIfNecessary(count);
+        expandIfNecessary(Element.HEADER_LENGTH + count);
 
         // Insert a new element after the current last element.
         boolean wasEmpty = isEmpty();
@@ -336,6 +404,41 @@ public class QueueFile implements Closeable {
         if (wasEmpty) first = last; // first element
     }
 
+    /**
+     * Adds every element staged in {@code group} to the end of the queue. The staged elements are
+     * written with a single data write followed by a single header write, so the cost of a
+     * synchronous write is paid once per group instead of once per element. The group itself is
+     * not modified; callers should {@link ElementGroup#clear clear} it once this returns.
+     *
+     * @param group elements to copy bytes from
+     */
+    public synchronized void add(ElementGroup group) throws IOException {
+        if (group == null) {
+            throw new NullPointerException("group == null");
+        }
+        if (group.count == 0) {
+            return;
+        }
+
+        expandIfNecessary(group.length);
+
+        // Insert the group after the current last element.
+        boolean wasEmpty = isEmpty();
+        int position =
+                wasEmpty
+                        ? HEADER_LENGTH
+                        : wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
+        ringWrite(position, group.buffer, 0, group.length);
+        Element newLast = new Element(wrapPosition(position + group.lastOffset), group.lastLength);
+
+        // Commit the addition.
+        int firstPosition = wasEmpty ? position : first.position;
+        writeHeader(fileLength, elementCount + group.count, firstPosition, newLast.position);
+        last = newLast;
+        elementCount += group.count;
+        if (wasEmpty) first = new Element(position, readInt(group.buffer, 0));
+    }
+
     private int usedBytes() {
         if (elementCount == 0) return HEADER_LENGTH;
 
@@ -365,15 +468,18 @@ public class QueueFile implements Closeable {
     }
 
     /**
-     * If necessary, expands the file to accommodate an additional element of the given length.
+     * If necessary, expands the file to accommodate additional elements of the given length.
      *
-     * @param dataLength length of data being added
+     * @param elementLength length of the elements being added, including their headers
      */
-    private void expandIfNecessary(int dataLength) throws IOException {
-        int elementLength = Element.HEADER_LENGTH + dataLength;
+    private void expandIfNecessary(int elementLength) throws IOException {
         int remainingBytes = remainingBytes();
         if (remainingBytes >= elementLength) return;
 
+        // Dirty bytes are tracked relative to the end of the file, which is about to move.
+        eraseDirtyBytes(Integer.MAX_VALUE);
+        generation++;
+
         // Expand.
         int previousLength = fileLength;
         int newLength;
@@ -394,11 +500,19 @@ public class QueueFile implements Closeable {
 
         // If the buffer is split, we need to make it contiguous
         if (endOfLastElement <= first.position) {
-            FileChannel channel = raf.getChannel();
-            channel.position(fileLength); // destination position
             int count = endOfLastElement - HEADER_LENGTH;
-            if (channel.transferTo(HEADER_LENGTH, count, channel) != count) {
-                throw new AssertionError("Copied insufficient number of bytes!");
+            if (map != null) {
+                ByteBuffer source = map.duplicate();
+                source.limit(endOfLastElement).position(HEADER_LENGTH);
+                ByteBuffer destination = map.duplicate();
+                destination.position(fileLength); // destination position
+                destination.put(source);
+            } else {
+                FileChannel channel = raf.getChannel();
+                channel.position(fileLength); // destination position
+                if (channel.transferTo(HEADER_LENGTH, count, channel) != count) {
+                    throw new AssertionError("Copied insufficient number of bytes!");
+                }
             }
             ringErase(HEADER_LENGTH, count);
         }
@@ -420,6 +534,9 @@ public class QueueFile implements Closeable {
         // Set new file length (considered metadata) and sync it to storage.
         raf.setLength(newLength);
         raf.getChannel().force(true);
+        if (map != null) {
+            map();
+        }
     }
 
     /** Reads the eldest element. Returns null if the queue is empty. */
@@ -439,14 +556,34 @@ public class QueueFile implements Closeable {
      * @return number of elements visited
      */
     public synchronized int forEach(BatchQueue.ElementVisitor reader) throws IOException {
+        return forEach(reader, null);
+    }
+
+    /**
+     * Like {@link #forEach(BatchQueue.ElementVisitor)}, but also records in {@code cursor} where
+     * the elements the reader accepted end, so {@link #remove(int, BatchQueue.Cursor)} can remove
+     * them without reading their headers again.
+     *
+     * @return number of elements visited
+     */
+    public synchronized int forEach(BatchQueue.ElementVisitor reader, BatchQueue.Cursor cursor)
+            throws IOException {
+        if (cursor != null) {
+            cursor.reset(this, generation, removedCount);
+        }
         int position = first.position;
         for (int i = 0; i < elementCount; i++) {
             Element current = readElement(position);
-            boolean shouldContinue = reader.read(new ElementInputStream(current), current.length);
+            elementStream.reset(
+                    wrapPosition(current.position + Element.HEADER_LENGTH), current.length);
+            boolean shouldContinue = reader.read(elementStream, current.length);
             if (!shouldContinue) {
                 return i + 1;
             }
             position = wrapPosition(current.position + Element.HEADER_LENGTH + current.length);
+            if (cursor != null) {
+                cursor.advance(position);
+            }
         }
         return elementCount;
     }
@@ -508,13 +645,101 @@ public class QueueFile implements Closeable {
             newFirstLength = readInt(buffer, 0);
         }
 
+        commitRemoval(n, newFirstPosition, newFirstLength, eraseStartPosition, eraseTotalLength);
+    }
+
+    /**
+     * Removes the eldest {@code n} elements, which must be the last {@code n} elements {@code
+     * cursor} recorded. Instead of walking the headers of the removed elements to find the new
+     * first element, this jumps straight to where the cursor ended, so the removal costs a single
+     * header read and a single header write. Falls back to {@link #remove(int)} if the cursor no
+     * longer matches the queue.
+     *
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public synchronized void remove(int n, BatchQueue.Cursor cursor) throws IOException {
+        if (cursor == null
+                || cursor.queueFile != this
+                || cursor.generation != generation
+                || removedCount - cursor.removedCount + n != cursor.count
+                || n <= 0
+                || n >= elementCount) {
+            remove(n);
+            return;
+        }
+        int newFirstPosition = cursor.position;
+        // The removed elements span everything from the first element up to the new one.
+        int eraseTotalLength = newFirstPosition - first.position;
+        if (eraseTotalLength < 0) {
+            eraseTotalLength += fileLength - HEADER_LENGTH;
+        }
+        Element newFirst = readElement(newFirstPosition);
+        commitRemoval(n, newFirstPosition, newFirst.length, first.position, eraseTotalLength);
+    }
+
+    private void commitRemoval(
+            int n,
+            int newFirstPosition,
+            int newFirstLength,
+            int eraseStartPosition,
+            int eraseTotalLength)
+            throws IOException {
         // Commit the header.
         writeHeader(fileLength, elementCount - n, newFirstPosition, last.position);
         elementCount -= n;
+        removedCount += n;
         first = new Element(newFirstPosition, newFirstLength);
 
         // Commit the erase.
-        ringErase(eraseStartPosition, eraseTotalLength);
+        if (eraseLazily) {
+            dirtyBytes += eraseTotalLength;
+        } else {
+            ringErase(eraseStartPosition, eraseTotalLength);
+        }
+    }
+
+    /**
+     * Sets whether removed elements are zeroed out as they are removed, or later by {@link
+     * #compact}. Lazy erasing keeps removals cheap, at the cost of removed data staying in the
+     * file for a while.
+     */
+    public synchronized void setEraseLazily(boolean eraseLazily) throws IOException {
+        this.eraseLazily = eraseLazily;
+        if (!eraseLazily) {
+            eraseDirtyBytes(Integer.MAX_VALUE);
+        }
+    }
+
+    /** Returns true if {@link #compact} has removed elements to zero out. */
+    public synchronized boolean needsCompaction() {
+        return dirtyBytes > 0;
+    }
+
+    /**
+     * Zeroes out up to {@code maxBytes} bytes of removed elements that were {@link
+     * #setEraseLazily erased lazily}.
+     *
+     * @return true if there are more bytes to zero out
+     */
+    public synchronized boolean compact(int maxBytes) throws IOException {
+        eraseDirtyBytes(maxBytes);
+        return dirtyBytes > 0;
+    }
+
+    private void eraseDirtyBytes(int maxBytes) throws IOException {
+        if (dirtyBytes == 0) {
+            return;
+        }
+        // Elements added since may have reused some of the space.
+        int dirty = min(dirtyBytes, remainingBytes());
+        int length = min(dirty, maxBytes);
+        // Erase the dirty bytes furthest from the first element, so the rest stay just before it.
+        int start = first.position - dirty;
+        if (start < HEADER_LENGTH) {
+            start += fileLength - HEADER_LENGTH;
+        }
+        ringErase(start, length);
+        dirtyBytes = dirty - length;
     }
 
     /** Clears this queue. Truncates the file to the initial size. */
@@ -523,9 +748,11 @@ public class QueueFile implements Closeable {
         writeHeader(INITIAL_LENGTH, 0, 0, 0);
 
         // Zero out data.
-        raf.seek(HEADER_LENGTH);
-        raf.write(ZEROES, 0, INITIAL_LENGTH - HEADER_LENGTH);
+        write(HEADER_LENGTH, ZEROES, 0, INITIAL_LENGTH - HEADER_LENGTH);
 
+        removedCount += elementCount;
+        generation++;
+        dirtyBytes = 0;
         elementCount = 0;
         first = Element.NULL;
         last = Element.NULL;
@@ -536,7 +763,14 @@ public class QueueFile implements Closeable {
     /** Closes the underlying file. */
     @Override
     public synchronized void close() throws IOException {
-        raf.close();
+        try {
+            if (map != null) {
+                map.force();
+                map = null;
+            }
+        } finally {
+            raf.close();
+        }
     }
 
     /** A pointer to an element. */
@@ -575,40 +809,93 @@ public class QueueFile implements Closeable {
         }
     }
 
-    @Private
-    final class ElementInputStream extends InputStream {
-        private int position;
-        private int remaining;
-
-        @Private
-        ElementInputStream(Element element) {
-            position = wrapPosition(element.position + Element.HEADER_LENGTH);
-            remaining = element.length;
+    /**
+     * Elements staged in memory for a single {@link #add(ElementGroup)}. Elements are laid out
+     * exactly as they will be in the file, so the whole group can be copied with one write. Not
+     * thread safe.
+     */
+    public static final class ElementGroup {
+        /** Staged elements, in file format. */
+        byte[] buffer;
+        /** Number of bytes of {@link #buffer} in use. */
+        int length;
+        /** Number of staged elements. */
+        int count;
+        /** Offset of the newest element within {@link #buffer}. */
+        int lastOffset;
+        /** Data length of the newest element. */
+        int lastLength;
+
+        public ElementGroup(int initialCapacity) {
+            buffer = new byte[Math.max(initialCapacity, Element.HEADER_LENGTH)];
         }
 
-        @Override
-        public int read(byte[] buffer, int offset, int length) throws IOException {
-            if ((offset | length) < 0 || length > buffer.length - offset) {
-                throw new ArrayIndexOutOfBoundsException();
+        /**
+         * Stages an element.
+         *
+         * @param data to copy bytes from
+         * @param offset to start from in buffer
+         * @param count number of bytes to copy
+         * @throws IndexOutOfBoundsException if {@code offset < 0} or {@code count < 0}, or if
+         *     {@code offset + count} is bigger than the length of {@code buffer}.
+         */
+        public void add(byte[] data, int offset, int count) {
+            if (data == null) {
+                throw new NullPointerException("data == null");
             }
-            if (remaining == 0) {
-                return -1;
+            if ((offset | count) < 0 || count > data.length - offset) {
+                throw new IndexOutOfBoundsException();
             }
-            if (length > remaining) length = remaining;
-            ringRead(position, buffer, offset, length);
-            position = wrapPosition(position + length);
-            remaining -= length;
+            int required = length + Element.HEADER_LENGTH + count;
+            if (required > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+            }
+            writeInt(buffer, length, count);
+            System.arraycopy(data, offset, buffer, length + Element.HEADER_LENGTH, count);
+            lastOffset = length;
+            lastLength = count;
+            length = required;
+            this.count++;
+        }
+
+        /** Returns the number of staged elements. */
+        public int size() {
+            return count;
+        }
+
+        /** Returns the number of bytes the staged elements will take up in the file. */
+        public int byteCount() {
             return length;
         }
 
+        /** Discards all staged elements, keeping the buffer for reuse. */
+        public void clear() {
+            length = 0;
+            count = 0;
+            lastOffset = 0;
+            lastLength = 0;
+        }
+    }
+
+    /** Reads an element of this file. */
+    private final class FileElementInputStream extends BatchQueue.ElementInputStream {
         @Override
-        public int read() throws IOException {
-            if (remaining == 0) return -1;
+        int wrapPosition(int position) {
+            return QueueFile.this.wrapPosition(position);
+        }
+
+        @Override
+        void ringRead(int position, byte[] buffer, int offset, int count) throws IOException {
+            QueueFile.this.ringRead(position, buffer, offset, count);
+        }
+
+        @Override
+        int ringRead(int position) throws IOException {
+            if (map != null) {
+                return map.get(position) & 0xff;
+            }
             raf.seek(position);
-            int b = raf.read();
-            position = wrapPosition(position + 1);
-            remaining--;
-            return b;
+            return raf.read();
         }
     }
 }
@@ -51,6 +51,11 @@ public class ReadConnection implements Closeable {
         return connection.getResponseMessage();
     }
 
+    /** Returns the value of the named response header, or null if the response doesn't have it. */
+    public String getHeaderField(String name) {
+        return connection.getHeaderField(name);
+    }
+
     public InputStream getInputStream() throws IOException {
         try {
             return connection.getInputStream();
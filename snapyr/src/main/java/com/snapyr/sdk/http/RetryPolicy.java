@@ -0,0 +1,179 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http;
+
+import com.snapyr.sdk.internal.Private;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks failed uploads of the batch at the head of the queue, and decides when and how it is sent
+ * again.
+ *
+ * <p>A batch that could not be uploaded stays at the head of the queue, so its retry metadata is
+ * kept here in memory rather than in the queue entries themselves. It is cleared as soon as a
+ * batch is removed from the queue.
+ *
+ * <ul>
+ *   <li>Retries are delayed exponentially, with a random jitter so that devices that failed at the
+ *       same time don't retry at the same time.
+ *   <li>A {@code Retry-After} sent by the server is honored, up to {@link
+ *       #MAX_RETRY_AFTER_MILLIS}.
+ *   <li>After {@link #SHRINK_AFTER_FAILURES} failures in a row, batches are halved with every
+ *       failure, and grow back as uploads succeed.
+ * </ul>
+ */
+class RetryPolicy {
+    /** Upper bound on the delay of a retry, unless the server asks for a longer one. */
+    @Private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    /** Upper bound on a {@code Retry-After} delay, in case the server sends a bogus value. */
+    @Private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /** Failures in a row after which batches are shrunk. */
+    @Private static final int SHRINK_AFTER_FAILURES = 2;
+    /** No limit on the number of payloads in a batch. */
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final Random random;
+
+    /** How often the batch at the head of the queue failed to upload in a row. */
+    private int failures;
+    /** How many payloads were in the batch the last time it failed. */
+    private int failedPayloads;
+    /** The earliest time, in {@link System#currentTimeMillis()}, the server allows a retry at. */
+    private long retryAfterMillis;
+    private int maxBatchPayloads = UNLIMITED;
+
+    RetryPolicy() {
+        this(new Random());
+    }
+
+    RetryPolicy(Random random) {
+        this.random = random;
+    }
+
+    /** Whether the last upload failed, so flushes should be delayed. */
+    synchronized boolean isBackingOff() {
+        return failures > 0;
+    }
+
+    /** Whether the server asked to wait with a {@code Retry-After} that hasn't passed yet. */
+    synchronized boolean isRetryAfterPending() {
+        return retryAfterMillis > System.currentTimeMillis();
+    }
+
+    /** Returns how long is left of the {@code Retry-After} the server asked for, if any. */
+    synchronized long retryAfterDelay() {
+        return Math.max(0, retryAfterMillis - System.currentTimeMillis());
+    }
+
+    /** How many payloads the next batch may hold at most. */
+    synchronized int maxBatchPayloads() {
+        return maxBatchPayloads;
+    }
+
+    /** Called when a batch of {@code payloadCount} payloads failed and is kept in the queue. */
+    synchronized void onBatchFailed(int payloadCount) {
+        failures++;
+        failedPayloads = payloadCount;
+        if (failures >= SHRINK_AFTER_FAILURES && payloadCount > 1) {
+            maxBatchPayloads = payloadCount / 2;
+        }
+    }
+
+    /** Called when a batch was removed from the queue, whether it was accepted or rejected. */
+    synchronized void onBatchRemoved() {
+        failures = 0;
+        failedPayloads = 0;
+        retryAfterMillis = 0;
+        if (maxBatchPayloads != UNLIMITED) {
+            maxBatchPayloads =
+                    maxBatchPayloads >= BatchUploadQueue.MAX_QUEUE_SIZE / 2
+                            ? UNLIMITED
+                            : maxBatchPayloads * 2;
+        }
+    }
+
+    /** Called when the server asked to wait {@code delayMillis} before the next upload. */
+    synchronized void onRetryAfter(long delayMillis) {
+        long delay = Math.min(delayMillis, MAX_RETRY_AFTER_MILLIS);
+        retryAfterMillis = Math.max(retryAfterMillis, System.currentTimeMillis() + delay);
+    }
+
+    /**
+     * Returns how long to wait before the next upload, if {@link #isBackingOff()}. The delay
+     * doubles with every failure starting from {@code intervalMillis}, and is picked at random
+     * between half of that and all of it.
+     */
+    synchronized long retryDelay(long intervalMillis) {
+        int shift = Math.min(failures - 1, 16);
+        long backoff = Math.min(intervalMillis << shift, MAX_BACKOFF_MILLIS);
+        backoff = Math.max(backoff, intervalMillis);
+        long half = backoff / 2;
+        long delay = half + (long) (random.nextDouble() * (backoff - half));
+        return Math.max(delay, retryAfterMillis - System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryPolicy{"
+                + "failures="
+                + failures
+                + ", failedPayloads="
+                + failedPayloads
+                + ", maxBatchPayloads="
+                + maxBatchPayloads
+                + '}';
+    }
+
+    /**
+     * Parses a {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+     * Returns the delay it asks for in milliseconds, or {@code -1} if the header is missing or
+     * malformed.
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException ignored) {
+            // Not a number of seconds, so it should be a date.
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -23,33 +23,71 @@
  */
 package com.snapyr.sdk.http;
 
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 
 import com.snapyr.sdk.internal.Utils;
 import com.snapyr.sdk.services.Cartographer;
 import com.snapyr.sdk.services.ServiceFacade;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.util.Map;
 
 public class SettingsRequest {
+    /** A settings document as it was downloaded, with the validators the server sent for it. */
+    public static class Response {
+        public final byte[] body;
+        /** The ETag of the document, or null. */
+        public final String etag;
+        /** When the document was last modified, or 0 if the server didn't say. */
+        public final long lastModified;
+
+        Response(byte[] body, String etag, long lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public Map<String, Object> parse() throws IOException {
+            return Cartographer.INSTANCE.fromJson(
+                    new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        }
+    }
+
     public static Map<String, Object> execute() throws IOException {
-        Map<String, Object> results;
+        return execute(null, 0).parse();
+    }
+
+    /**
+     * Downloads the settings, unless the server says they haven't changed since the download that
+     * returned {@code etag} and {@code lastModified}, in which case this returns null.
+     */
+    public static Response execute(String etag, long lastModified) throws IOException {
         HttpURLConnection connection = null;
         try {
-            connection = ServiceFacade.getConnectionFactory().getSettings();
+            connection = ServiceFacade.getConnectionFactory().getSettings(etag, lastModified);
             int responseCode = connection.getResponseCode();
+            if (responseCode == HTTP_NOT_MODIFIED && (etag != null || lastModified > 0)) {
+                return null;
+            }
             if (responseCode != HTTP_OK) {
-                connection.disconnect();
                 throw new IOException(
                         "HTTP " + responseCode + ": " + connection.getResponseMessage());
             }
-            results = Cartographer.INSTANCE.fromJson(Utils.buffer(connection.getInputStream()));
-        } catch (IOException e) {
-            throw e; // rethrow, just catching to close the connection
+            int length = connection.getContentLength();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? length : 4096);
+            Utils.copy(connection.getInputStream(), body);
+            return new Response(
+                    body.toByteArray(),
+                    connection.getHeaderField("ETag"),
+                    connection.getLastModified());
         } finally {
-            connection.disconnect();
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
-        return results;
     }
 }
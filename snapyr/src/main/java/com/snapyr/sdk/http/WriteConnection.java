@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -37,22 +38,41 @@ import java.util.zip.GZIPOutputStream;
 public class WriteConnection extends ReadConnection {
     final HttpURLConnection connection;
     final Boolean gzipped;
+    final int compressionLevel;
     GZIPOutputStream gzipStream = null;
+    /** Counts the compressed bytes sent over the connection, if {@link #gzipped}. */
+    CountingOutputStream compressedBytes = null;
 
     public WriteConnection(HttpURLConnection connection) {
+        this(connection, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel the {@link Deflater} level to compress the request body at, if the
+     *     request has a {@code Content-Encoding: gzip} header
+     */
+    public WriteConnection(HttpURLConnection connection, int compressionLevel) {
         super(connection);
         String contentEncoding = connection.getRequestProperty("Content-Encoding");
         this.gzipped = TextUtils.equals("gzip", contentEncoding);
+        this.compressionLevel = compressionLevel;
         this.connection = connection;
     }
 
     public OutputStream getOutputStream() throws IOException {
-        if (gzipped && gzipStream == null) {
-            gzipStream = new GZIPOutputStream(connection.getOutputStream());
-            return gzipStream;
-        } else {
+        if (!gzipped) {
             return connection.getOutputStream();
         }
+        if (gzipStream == null) {
+            compressedBytes = new CountingOutputStream(connection.getOutputStream());
+            gzipStream = new LeveledGZIPOutputStream(compressedBytes, compressionLevel);
+        }
+        return gzipStream;
+    }
+
+    /** Whether the request body is gzip compressed. */
+    public boolean isGzipped() {
+        return gzipped;
     }
 
     @Override
@@ -63,4 +83,12 @@ public class WriteConnection extends ReadConnection {
             gzipStream.close();
         }
     }
+
+    /** A {@link GZIPOutputStream} that compresses at a given level, rather than the default. */
+    static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
 }
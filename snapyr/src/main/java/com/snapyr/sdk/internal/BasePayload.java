@@ -251,7 +251,13 @@ public abstract class BasePayload extends ValueMap {
         @NonNull
         public B context(@NonNull Map<String, ?> context) {
             assertNotNull(context, "context");
-            this.context = Collections.unmodifiableMap(new LinkedHashMap<>(context));
+            if (context instanceof SnapyrContext
+                    && ((SnapyrContext) context).isUnmodifiableCopy()) {
+                // Already a copy; keep it so it can be written with its encoded entries.
+                this.context = (SnapyrContext) context;
+            } else {
+                this.context = Collections.unmodifiableMap(new LinkedHashMap<>(context));
+            }
             return self();
         }
 
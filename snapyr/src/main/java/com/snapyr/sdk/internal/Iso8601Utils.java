@@ -67,8 +67,150 @@ final class Iso8601Utils {
     /** The GMT timezone, prefetched to avoid more lookups. */
     static final TimeZone TIMEZONE_Z = TimeZone.getTimeZone(GMT_ID);
 
+    /** The length of yyyy-MM-ddThh:mm:ss.sssZ */
+    static final int MILLIS_LENGTH = 24;
+    /** The length of yyyy-MM-ddThh:mm:ss.fffffffffZ */
+    static final int NANOS_LENGTH = 30;
+    /** The length of yyyy-MM-ddThh:mm: */
+    private static final int MINUTE_PREFIX_LENGTH = 17;
+    /** 10000-01-01T00:00:00Z. Dates from 1970 up to this are formatted without a calendar. */
+    private static final long MAX_ARITHMETIC_MILLIS = 253402300800000L;
+
+    private static final ThreadLocal<char[]> FORMAT_BUFFER =
+            new ThreadLocal<char[]>() {
+                @Override
+                protected char[] initialValue() {
+                    return new char[NANOS_LENGTH];
+                }
+            };
+
+    /** Most timestamps formatted in a row fall in the same minute, so its prefix is reused. */
+    private static volatile MinutePrefix minutePrefix = new MinutePrefix(0);
+
     /** Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ */
     public static String format(Date date) {
+        long millis = date.getTime();
+        if (millis < 0 || millis >= MAX_ARITHMETIC_MILLIS) {
+            return formatWithCalendar(date);
+        }
+        char[] buffer = FORMAT_BUFFER.get();
+        writeMillis(millis, buffer);
+        return new String(buffer, 0, MILLIS_LENGTH);
+    }
+
+    /**
+     * Writes {@code millis} formatted as yyyy-MM-ddThh:mm:ss.sssZ to {@code out} as ASCII, and
+     * returns the number of bytes written, which is {@link #MILLIS_LENGTH} unless the year has
+     * more than 4 digits.
+     */
+    static int format(long millis, byte[] out) {
+        if (millis < 0 || millis >= MAX_ARITHMETIC_MILLIS) {
+            String formatted = formatWithCalendar(new Date(millis));
+            for (int i = 0; i < formatted.length(); i++) {
+                out[i] = (byte) formatted.charAt(i);
+            }
+            return formatted.length();
+        }
+        char[] buffer = FORMAT_BUFFER.get();
+        writeMillis(millis, buffer);
+        for (int i = 0; i < MILLIS_LENGTH; i++) {
+            out[i] = (byte) buffer[i];
+        }
+        return MILLIS_LENGTH;
+    }
+
+    /** Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.fffffffffZ */
+    public static String formatNanos(Date date) {
+        long millis = date.getTime();
+        if (millis < 0 || millis >= MAX_ARITHMETIC_MILLIS) {
+            return formatNanosWithCalendar(date);
+        }
+        char[] buffer = FORMAT_BUFFER.get();
+        int offset = writeUpToSeconds(millis, buffer);
+        writeDigits(buffer, offset, fractionNanos(date), 9);
+        buffer[NANOS_LENGTH - 1] = 'Z';
+        return new String(buffer, 0, NANOS_LENGTH);
+    }
+
+    /** Writes yyyy-MM-ddThh:mm:ss.sssZ for {@code millis}, which is in the arithmetic range. */
+    private static void writeMillis(long millis, char[] buffer) {
+        int offset = writeUpToSeconds(millis, buffer);
+        writeDigits(buffer, offset, (int) (millis % 1000), 3);
+        buffer[MILLIS_LENGTH - 1] = 'Z';
+    }
+
+    /** Writes yyyy-MM-ddThh:mm:ss. and returns the offset after it. */
+    private static int writeUpToSeconds(long millis, char[] buffer) {
+        long minute = millis / 60_000;
+        MinutePrefix prefix = minutePrefix;
+        if (prefix.minute != minute) {
+            prefix = new MinutePrefix(minute);
+            minutePrefix = prefix;
+        }
+        System.arraycopy(prefix.chars, 0, buffer, 0, MINUTE_PREFIX_LENGTH);
+        writeDigits(buffer, MINUTE_PREFIX_LENGTH, (int) (millis / 1000 % 60), 2);
+        buffer[MINUTE_PREFIX_LENGTH + 2] = '.';
+        return MINUTE_PREFIX_LENGTH + 3;
+    }
+
+    /** The nanoseconds past the second of {@code date}. */
+    private static int fractionNanos(Date date) {
+        if (date instanceof NanoDate) {
+            long nanos = ((NanoDate) date).nanos();
+            return (int) (((nanos % 1_000_000_000) + 1_000_000_000) % 1_000_000_000);
+        }
+        long millis = date.getTime();
+        return (int) (((millis % 1000) + 1000) % 1000) * 1_000_000;
+    }
+
+    /** Writes {@code value} as {@code length} digits, zero padded on the left. */
+    private static void writeDigits(char[] buffer, int offset, int value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /** yyyy-MM-ddThh:mm: for one minute since the epoch. */
+    private static final class MinutePrefix {
+        final long minute;
+        final char[] chars = new char[MINUTE_PREFIX_LENGTH];
+
+        MinutePrefix(long minute) {
+            this.minute = minute;
+            long days = minute / 1440;
+            int minuteOfDay = (int) (minute % 1440);
+            // Converts days since the epoch to a proleptic Gregorian date, from
+            // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+            long z = days + 719468;
+            long era = z / 146097;
+            long dayOfEra = z - era * 146097;
+            long yearOfEra =
+                    (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+            int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+            int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+            writeDigits(chars, 0, year, 4);
+            chars[4] = '-';
+            writeDigits(chars, 5, month, 2);
+            chars[7] = '-';
+            writeDigits(chars, 8, day, 2);
+            chars[10] = 'T';
+            writeDigits(chars, 11, minuteOfDay / 60, 2);
+            chars[13] = ':';
+            writeDigits(chars, 14, minuteOfDay % 60, 2);
+            chars[16] = ':';
+        }
+    }
+
+    /**
+     * Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ using a calendar, which works for
+     * any date.
+     */
+    static String formatWithCalendar(Date date) {
         Calendar calendar = new GregorianCalendar(TIMEZONE_Z, Locale.US);
         calendar.setTime(date);
 
@@ -92,8 +234,11 @@ final class Iso8601Utils {
         return formatted.toString();
     }
 
-    /** Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.fffffffffZ */
-    public static String formatNanos(Date date) {
+    /**
+     * Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.fffffffffZ using a calendar, which
+     * works for any date.
+     */
+    static String formatNanosWithCalendar(Date date) {
         Calendar calendar = new GregorianCalendar(TIMEZONE_Z, Locale.US);
         calendar.setTime(date);
 
@@ -112,12 +257,7 @@ final class Iso8601Utils {
         formatted.append(':');
         padInt(formatted, calendar.get(Calendar.SECOND), "ss".length());
         formatted.append('.');
-        if (date instanceof NanoDate) {
-            long nanos = ((NanoDate) date).nanos();
-            padLong(formatted, nanos % 1_000_000_000, "fffffffff".length());
-        } else {
-            padLong(formatted, calendar.get(Calendar.MILLISECOND), "fffffffff".length());
-        }
+        padInt(formatted, fractionNanos(date), "fffffffff".length());
         formatted.append('Z');
         return formatted.toString();
     }
@@ -464,21 +604,6 @@ final class Iso8601Utils {
         buffer.append(strValue);
     }
 
-    /**
-     * Zero right pad a number to a specified length
-     *
-     * @param buffer buffer to use for padding
-     * @param value the integer value to pad if necessary.
-     * @param length the length of the string we should zero pad
-     */
-    private static void padLong(StringBuilder buffer, long value, int length) {
-        String strValue = Long.toString(value);
-        buffer.append(strValue);
-        for (int i = length - strValue.length(); i > 0; i--) {
-            buffer.append('0');
-        }
-    }
-
     /**
      * Returns the index of the first character in the string that is not a digit, starting at
      * offset.
@@ -123,6 +123,12 @@ public class TrackPayload extends BasePayload {
             return this;
         }
 
+        /** The event set with {@link #event(String)}, if any. */
+        @Nullable
+        public String event() {
+            return event;
+        }
+
         @NonNull
         public Builder session(@NonNull String session) {
             this.session = session;
@@ -136,6 +142,12 @@ public class TrackPayload extends BasePayload {
             return this;
         }
 
+        /** The properties set with {@link #properties(Map)}, if any. */
+        @Nullable
+        public Map<String, Object> properties() {
+            return properties;
+        }
+
         @Override
         protected TrackPayload realBuild(
                 @NonNull String messageId,
@@ -52,6 +52,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -80,6 +81,8 @@ public final class Utils {
     public static final int DEFAULT_FLUSH_INTERVAL = 30 * 1000; // 30s
     public static final int DEFAULT_FLUSH_QUEUE_SIZE = 20;
     public static final boolean DEFAULT_COLLECT_DEVICE_ID = true;
+    /** Room for any date written by {@link #toISO8601Bytes(long, byte[])}. */
+    public static final int ISO8601_MAX_LENGTH = 32;
 
     private Utils() {
         throw new AssertionError("No instances");
@@ -107,6 +110,15 @@ public final class Utils {
         return Iso8601Utils.formatNanos(date);
     }
 
+    /**
+     * Writes {@code millis} formatted as yyyy-MM-ddThh:mm:ss.sssZ to {@code out} as ASCII, and
+     * returns the number of bytes written. {@code out} must have room for {@link
+     * #ISO8601_MAX_LENGTH} bytes.
+     */
+    public static int toISO8601Bytes(long millis, byte[] out) {
+        return Iso8601Utils.format(millis, out);
+    }
+
     /**
      * Parse a date from ISO-8601 formatted string. It expects a format
      * [yyyy-MM-dd|yyyyMMdd][T(hh:mm[:ss[.sss]]|hhmm[ss[.sss]])]?[Z|[+-]hh:mm]]
@@ -388,6 +400,15 @@ public final class Utils {
         return sb.toString();
     }
 
+    /** Copies the rest of {@code in} to {@code out}. Neither stream is closed. */
+    public static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
     /**
      * Transforms the given map by replacing the keys mapped by {@code mapper}. Any keys not in the
      * mapper preserve their original keys. If a key in the mapper maps to null or a blank string,
@@ -533,19 +554,22 @@ public final class Utils {
      */
     public static class AnalyticsNetworkExecutorService extends ThreadPoolExecutor {
 
-        private static final int DEFAULT_THREAD_COUNT = 1;
         // At most we perform two network requests concurrently
         private static final int MAX_THREAD_COUNT = 2;
+        private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
 
         public AnalyticsNetworkExecutorService() {
+            // The queue is unbounded, so the pool never grows past its core size. Keep both
+            // threads in the core, and let them time out when idle instead.
             //noinspection Convert2Diamond
             super(
-                    DEFAULT_THREAD_COUNT,
                     MAX_THREAD_COUNT,
-                    0,
+                    MAX_THREAD_COUNT,
+                    KEEP_ALIVE_MILLIS,
                     TimeUnit.MILLISECONDS,
                     new LinkedBlockingQueue<Runnable>(),
                     new AnalyticsThreadFactory());
+            allowCoreThreadTimeOut(true);
         }
     }
 
@@ -0,0 +1,201 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.services;
+
+import android.os.Build;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts records with AES-GCM. A record is laid out as the ciphertext, then the 16 byte
+ * authentication tag, then the 12 byte IV. Keeping the IV at the end lets records be encrypted and
+ * decrypted in place.
+ *
+ * <p>Each session keeps its own {@link Cipher}, so a cipher is only looked up once per thread
+ * rather than once per record. IVs are made of 8 random bytes, drawn once per session, followed by
+ * a 4 byte counter, so no IV repeats within a session and sessions are very unlikely to share one.
+ */
+final class AesGcmCrypto extends Crypto {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int COUNTER_OFFSET = 8;
+    private static final int TAG_LENGTH = 16;
+    static final int OVERHEAD = TAG_LENGTH + IV_LENGTH;
+
+    private final SecretKeySpec key;
+
+    AesGcmCrypto(byte[] key) {
+        if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+            throw new IllegalArgumentException("key must be 16, 24 or 32 bytes long.");
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new IllegalStateException("AES-GCM requires API 19 or later.");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    @Override
+    public int maxOverhead() {
+        return OVERHEAD;
+    }
+
+    @Override
+    protected Session newSession() {
+        try {
+            return new AesGcmSession(Cipher.getInstance(TRANSFORMATION));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available.", e);
+        }
+    }
+
+    @Override
+    public OutputStream encrypt(final OutputStream os) {
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                ByteBuffer record = ByteBuffer.allocate(count + OVERHEAD);
+                record.put(buf, 0, count).flip();
+                session().encrypt(record);
+                os.write(record.array(), record.position(), record.remaining());
+                os.close();
+            }
+        };
+    }
+
+    @Override
+    public InputStream decrypt(InputStream is) {
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                data.write(buffer, 0, count);
+            }
+            ByteBuffer record = ByteBuffer.wrap(data.toByteArray());
+            session().decrypt(record);
+            return new ByteArrayInputStream(record.array(), record.position(), record.remaining());
+        } catch (IOException e) {
+            // The stream API can't report failures; fail the read instead.
+            return new FailedInputStream(e);
+        }
+    }
+
+    private final class AesGcmSession extends Session {
+        private final Cipher cipher;
+        private final byte[] iv = new byte[IV_LENGTH];
+        private int counter;
+
+        AesGcmSession(Cipher cipher) {
+            this.cipher = cipher;
+            new SecureRandom().nextBytes(iv);
+            counter = 0;
+        }
+
+        @Override
+        public void encrypt(ByteBuffer record) throws IOException {
+            int start = record.position();
+            if (record.capacity() - record.limit() < OVERHEAD) {
+                throw new IOException("No room to encrypt record in place.");
+            }
+            nextIv();
+            ByteBuffer output = record.duplicate();
+            output.limit(output.capacity());
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+                cipher.doFinal(record, output);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt record.", e);
+            }
+            output.put(iv);
+            record.limit(output.position());
+            record.position(start);
+        }
+
+        @Override
+        public void decrypt(ByteBuffer record) throws IOException {
+            int start = record.position();
+            int end = record.limit();
+            if (end - start < OVERHEAD) {
+                throw new IOException("Record is too short to decrypt.");
+            }
+            byte[] recordIv = new byte[IV_LENGTH];
+            record.position(end - IV_LENGTH);
+            record.get(recordIv);
+            record.position(start).limit(end - IV_LENGTH);
+            ByteBuffer output = record.duplicate();
+            try {
+                cipher.init(
+                        Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, recordIv));
+                cipher.doFinal(record, output);
+            } catch (GeneralSecurityException e) {
+                record.limit(end).position(start);
+                throw new IOException("Could not decrypt record.", e);
+            }
+            record.limit(output.position());
+            record.position(start);
+        }
+
+        /** Advances the counter in the last 4 bytes of the IV. */
+        private void nextIv() {
+            if (counter == -1) {
+                // Every counter value has been used with this prefix; draw a new one.
+                new SecureRandom().nextBytes(iv);
+            }
+            counter++;
+            iv[COUNTER_OFFSET] = (byte) (counter >>> 24);
+            iv[COUNTER_OFFSET + 1] = (byte) (counter >>> 16);
+            iv[COUNTER_OFFSET + 2] = (byte) (counter >>> 8);
+            iv[COUNTER_OFFSET + 3] = (byte) counter;
+        }
+    }
+
+    /** Fails every read with the exception that prevented decryption. */
+    private static final class FailedInputStream extends InputStream {
+        private final IOException cause;
+
+        FailedInputStream(IOException cause) {
+            this.cause = cause;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw cause;
+        }
+    }
+}
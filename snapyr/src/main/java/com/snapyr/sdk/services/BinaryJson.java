@@ -0,0 +1,904 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary form of the JSON {@link Cartographer} writes, for payloads kept in the disk
+ * queue. Names found in most payloads are written as a single byte from a fixed table, any other
+ * name is written once per record and referred to by index afterwards, integers are varints, and
+ * {@link JsonFragment}s are kept as they are. A payload's context, which rarely changes from one
+ * payload to the next, can be kept once in {@link SharedMaps} and referred to by its hash. {@link
+ * Transcoder} turns a record back into the same JSON {@link Cartographer#toJson(Map)} writes for
+ * the map, while the batch is being uploaded.
+ *
+ * <p>Every record starts with {@link #FORMAT_VERSION}, which no JSON document starts with, so
+ * payloads queued as JSON by earlier versions can be told apart with {@link #isBinary}.
+ */
+public final class BinaryJson {
+    /** The first byte of every record. */
+    static final int FORMAT_VERSION = 1;
+
+    // Value tags.
+    static final int NULL = 0;
+    static final int FALSE = 1;
+    static final int TRUE = 2;
+    /** A zig-zag encoded varint. */
+    static final int INTEGER = 3;
+    /** The 8 bytes of a double, big endian. */
+    static final int DOUBLE = 4;
+    /** The 4 bytes of a float, big endian. */
+    static final int FLOAT = 5;
+    /** A varint length, then that many bytes of UTF-8. */
+    static final int STRING = 6;
+    /** Like {@link #STRING}, but holds the text of a number to be written without quotes. */
+    static final int NUMBER = 7;
+    /** Entries, each a name followed by a value, until {@link #END_OF_MAP}. */
+    static final int MAP = 8;
+    /** Like {@link #MAP}, but starts with a {@link #STRING} of members already encoded as JSON. */
+    static final int FRAGMENT_MAP = 9;
+    /** Values until {@link #END_OF_LIST}. */
+    static final int LIST = 10;
+    /**
+     * A double with no fraction below {@link #MAX_WHOLE_DOUBLE}, as in {@link #INTEGER}. Numbers
+     * read from JSON are all doubles, so these are common.
+     */
+    static final int WHOLE_DOUBLE = 11;
+    /** The 8 byte hash of a map kept in {@link SharedMaps}, big endian. */
+    static final int SHARED_MAP = 12;
+
+    static final int END_OF_LIST = 0xff;
+
+    // Names are written as a varint: the end of a map, a new name followed by its UTF-8 as in
+    // STRING, or the index of a name from NAMES or earlier in the record, plus FIRST_NAME.
+    static final int END_OF_MAP = 0;
+    static final int NEW_NAME = 1;
+    static final int FIRST_NAME = 2;
+
+    /** The payload field whose value is kept in {@link SharedMaps}. */
+    private static final String SHARED_NAME = "context";
+    private static final byte[] EMPTY_MAP = {'{', '}'};
+
+    /** Doubles from this magnitude on are written by {@link Double#toString} with an exponent. */
+    private static final double MAX_WHOLE_DOUBLE = 1e7;
+
+    /**
+     * Names that are never written out. Records refer to these by index, and later names by
+     * indices that follow, so changing this table requires a new {@link #FORMAT_VERSION}.
+     */
+    private static final String[] NAMES = {
+        // Payload fields.
+        "anonymousId", "channel", "context", "event", "integrations", "messageId", "name",
+        "properties", "timestamp", "traits", "type", "userId", "groupId", "previousId",
+        "category", "session",
+        // Context fields.
+        "app", "build", "campaign", "device", "library", "locale", "network", "os", "screen",
+        "sdkMeta", "timezone", "userAgent", "version", "namespace", "id", "manufacturer", "model",
+        "token", "adTrackingEnabled", "advertisingId", "bluetooth", "carrier", "cellular", "wifi",
+        "density", "height", "width", "referrer", "location", "latitude", "longitude", "speed",
+        "source", "medium", "term", "content",
+        // Properties and traits.
+        "revenue", "currency", "value", "price", "quantity", "sku", "orderId", "products",
+        "total", "subtotal", "tax", "shipping", "discount", "coupon", "path", "url", "title",
+        "actionToken", "actionId", "deepLinkUrl", "email", "firstName", "lastName", "username",
+        "phone", "createdAt", "address", "city", "country", "postalCode", "state", "street",
+    };
+
+    private static final Map<String, Integer> NAME_INDICES = new HashMap<>();
+    /** The quoted names in {@link #NAMES}, each followed by a colon. */
+    private static final byte[][] ENCODED_NAMES = new byte[NAMES.length][];
+    /** Escape sequences for bytes below 128, or null if the byte can be written as is. */
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    private static final byte[] NULL_BYTES = {'n', 'u', 'l', 'l'};
+    private static final byte[] FALSE_BYTES = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] TRUE_BYTES = {'t', 'r', 'u', 'e'};
+    private static final byte[] LINE_SEPARATOR = {'\\', 'u', '2', '0', '2', '8'};
+    private static final byte[] PARAGRAPH_SEPARATOR = {'\\', 'u', '2', '0', '2', '9'};
+
+    static {
+        Charset utf8 = Charset.forName("UTF-8");
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_INDICES.put(NAMES[i], i);
+            ENCODED_NAMES[i] = ('"' + NAMES[i] + "\":").getBytes(utf8);
+        }
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = String.format("\\u%04x", i).getBytes(utf8);
+        }
+        ESCAPES['"'] = new byte[] {'\\', '"'};
+        ESCAPES['\\'] = new byte[] {'\\', '\\'};
+        ESCAPES['\t'] = new byte[] {'\\', 't'};
+        ESCAPES['\b'] = new byte[] {'\\', 'b'};
+        ESCAPES['\n'] = new byte[] {'\\', 'n'};
+        ESCAPES['\r'] = new byte[] {'\\', 'r'};
+        ESCAPES['\f'] = new byte[] {'\\', 'f'};
+    }
+
+    private static final ThreadLocal<Encoder> ENCODER =
+            new ThreadLocal<Encoder>() {
+                @Override
+                protected Encoder initialValue() {
+                    return new Encoder();
+                }
+            };
+
+    private BinaryJson() {
+        throw new AssertionError("No instances");
+    }
+
+    /**
+     * Keeps maps that many records share, each stored once as a record of its own under the hash of
+     * that record. Must be thread safe.
+     */
+    public interface SharedMaps {
+        /**
+         * Keeps the {@code length} bytes at {@code offset} of {@code record} under {@code hash},
+         * unless they are already kept. Returns false if the map can't be kept, and has to be
+         * written in place instead.
+         */
+        boolean share(long hash, byte[] record, int offset, int length) throws IOException;
+
+        /** Returns the JSON of the map kept under {@code hash}, or null if there is none. */
+        byte[] json(long hash) throws IOException;
+    }
+
+    /** Returns the 64-bit FNV-1a hash of the {@code length} bytes at {@code offset}. */
+    public static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Returns true if the {@code length} bytes at {@code offset} are a binary record. */
+    public static boolean isBinary(byte[] record, int offset, int length) {
+        return length > 0 && record[offset] == FORMAT_VERSION;
+    }
+
+    /**
+     * Writes {@code map} to {@code out} as a binary record, and returns the length of the JSON it
+     * transcodes to. If {@code shared} isn't null, the map's context is kept there.
+     *
+     * @throws IllegalArgumentException if a number is NaN or infinite, and {@code lenient} is
+     *     false.
+     */
+    static long encode(Map<?, ?> map, OutputStream out, boolean lenient, SharedMaps shared)
+            throws IOException {
+        return ENCODER.get().encode(map, out, lenient, shared);
+    }
+
+    /** A {@link ByteArrayOutputStream} whose bytes can be read without a copy. */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** Writes maps as binary records. Not thread safe. */
+    private static final class Encoder {
+        /** Indices of the names written so far that aren't in {@link #NAMES}. */
+        private final Map<String, Integer> names = new HashMap<>();
+        private final byte[] buffer = new byte[1024];
+        private int position;
+        private OutputStream out;
+        private boolean lenient;
+        /** The length of the JSON written so far. */
+        private long jsonLength;
+        /** The UTF-8 length of the string last passed to {@link #measure(String)}. */
+        private int utf8Length;
+
+        private SharedMaps shared;
+        /** Encodes shared maps into {@link #sharedRecord}. Created on first use. */
+        private Encoder sharedEncoder;
+
+        private RecordBuffer sharedRecord;
+
+        long encode(Map<?, ?> map, OutputStream out, boolean lenient, SharedMaps shared)
+                throws IOException {
+            this.out = out;
+            this.lenient = lenient;
+            this.shared = shared;
+            names.clear();
+            position = 0;
+            jsonLength = 0;
+            try {
+                writeByte(FORMAT_VERSION);
+                writeMap(map, true);
+                flushBuffer();
+            } finally {
+                this.out = null;
+                this.shared = null;
+            }
+            return jsonLength;
+        }
+
+        private void writeMap(Map<?, ?> map, boolean topLevel) throws IOException {
+            JsonFragment fragment = null;
+            if (map instanceof JsonFragment.Source) {
+                fragment = ((JsonFragment.Source) map).jsonFragment();
+            }
+            jsonLength += 2; // {}
+            boolean first = true;
+            if (fragment != null) {
+                writeByte(FRAGMENT_MAP);
+                writeByte(STRING);
+                writeString(fragment.members());
+                // The members are written out as they are, without quotes.
+                jsonLength += utf8Length;
+                first = false;
+            } else {
+                writeByte(MAP);
+            }
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                String name = String.valueOf(entry.getKey());
+                if (fragment != null && fragment.contains(name)) {
+                    continue;
+                }
+                if (!first) {
+                    jsonLength++; // ,
+                }
+                first = false;
+                writeName(name);
+                Object value = entry.getValue();
+                if (topLevel
+                        && shared != null
+                        && value instanceof Map
+                        && SHARED_NAME.equals(name)
+                        && writeShared((Map<?, ?>) value)) {
+                    continue;
+                }
+                writeValue(value);
+            }
+            writeVarint(END_OF_MAP);
+        }
+
+        /**
+         * Encodes {@code map} as a record of its own, keeps it in {@link #shared}, and writes a
+         * reference to it. Returns false, having written nothing, if it can't be kept.
+         */
+        private boolean writeShared(Map<?, ?> map) throws IOException {
+            if (sharedEncoder == null) {
+                sharedEncoder = new Encoder();
+                sharedRecord = new RecordBuffer();
+            }
+            sharedRecord.reset();
+            long length = sharedEncoder.encode(map, sharedRecord, lenient, null);
+            byte[] record = sharedRecord.bytes();
+            int size = sharedRecord.size();
+            long hash = hash(record, 0, size);
+            if (!shared.share(hash, record, 0, size)) {
+                return false;
+            }
+            writeByte(SHARED_MAP);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (hash >>> shift));
+            }
+            jsonLength += length;
+            return true;
+        }
+
+        private void writeName(String name) throws IOException {
+            Integer index = NAME_INDICES.get(name);
+            if (index != null) {
+                writeVarint(FIRST_NAME + index);
+                jsonLength += ENCODED_NAMES[index].length;
+                return;
+            }
+            index = names.get(name);
+            if (index != null) {
+                writeVarint(FIRST_NAME + index);
+                jsonLength += measure(name) + 1; // :
+                return;
+            }
+            names.put(name, NAMES.length + names.size());
+            writeVarint(NEW_NAME);
+            jsonLength += writeString(name) + 1; // :
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL);
+                jsonLength += NULL_BYTES.length;
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                jsonLength += writeString((String) value);
+            } else if (value instanceof Number) {
+                writeNumber((Number) value);
+            } else if (value instanceof Boolean) {
+                writeBoolean((Boolean) value);
+            } else if (value instanceof List) {
+                writeByte(LIST);
+                jsonLength += 2; // []
+                boolean first = true;
+                for (Object element : (List<?>) value) {
+                    if (!first) {
+                        jsonLength++; // ,
+                    }
+                    first = false;
+                    writeValue(element);
+                }
+                writeByte(END_OF_LIST);
+            } else if (value instanceof Map) {
+                writeMap((Map<?, ?>) value, false);
+            } else if (value.getClass().isArray()) {
+                writeArray(value);
+            } else {
+                writeByte(STRING);
+                jsonLength += writeString(String.valueOf(value));
+            }
+        }
+
+        private void writeArray(Object array) throws IOException {
+            writeByte(LIST);
+            int size = Array.getLength(array);
+            // Brackets and commas.
+            jsonLength += size == 0 ? 2 : size + 1;
+            if (array instanceof Object[]) {
+                for (Object value : (Object[]) array) {
+                    writeValue(value);
+                }
+            } else if (array instanceof int[]) {
+                for (int value : (int[]) array) {
+                    writeLong(value);
+                }
+            } else if (array instanceof long[]) {
+                for (long value : (long[]) array) {
+                    writeLong(value);
+                }
+            } else if (array instanceof double[]) {
+                for (double value : (double[]) array) {
+                    writeDouble(value);
+                }
+            } else if (array instanceof float[]) {
+                for (float value : (float[]) array) {
+                    writeFloat(value);
+                }
+            } else if (array instanceof boolean[]) {
+                for (boolean value : (boolean[]) array) {
+                    writeBoolean(value);
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    writeValue(Array.get(array, i));
+                }
+            }
+            writeByte(END_OF_LIST);
+        }
+
+        private void writeBoolean(boolean value) throws IOException {
+            writeByte(value ? TRUE : FALSE);
+            jsonLength += value ? TRUE_BYTES.length : FALSE_BYTES.length;
+        }
+
+        private void writeNumber(Number value) throws IOException {
+            if (value instanceof Integer
+                    || value instanceof Long
+                    || value instanceof Short
+                    || value instanceof Byte) {
+                writeLong(value.longValue());
+            } else if (value instanceof Double) {
+                writeDouble(value.doubleValue());
+            } else if (value instanceof Float) {
+                writeFloat(value.floatValue());
+            } else {
+                String string = value.toString();
+                if (!lenient
+                        && (string.equals("-Infinity")
+                                || string.equals("Infinity")
+                                || string.equals("NaN"))) {
+                    throw new IllegalArgumentException(
+                            "Numeric values must be finite, but was " + value);
+                }
+                writeByte(NUMBER);
+                writeString(string);
+                jsonLength += utf8Length;
+            }
+        }
+
+        private void writeLong(long value) throws IOException {
+            writeByte(INTEGER);
+            writeVarint((value << 1) ^ (value >> 63));
+            jsonLength += length(value);
+        }
+
+        /** Returns the length of {@code value} in decimal. */
+        private static int length(long value) {
+            if (value == Long.MIN_VALUE) {
+                return 20;
+            }
+            int length = value < 0 ? 2 : 1;
+            for (long rest = value / 10; rest != 0; rest /= 10) {
+                length++;
+            }
+            return length;
+        }
+
+        private void writeDouble(double value) throws IOException {
+            if (!lenient && (Double.isNaN(value) || Double.isInfinite(value))) {
+                throw new IllegalArgumentException(
+                        "Numeric values must be finite, but was " + value);
+            }
+            long whole = (long) value;
+            if (whole == value
+                    && Math.abs(value) < MAX_WHOLE_DOUBLE
+                    && (whole != 0 || 1 / value > 0)) {
+                // Written as the digits followed by ".0", and -0.0 is left to the general case.
+                writeByte(WHOLE_DOUBLE);
+                writeVarint((whole << 1) ^ (whole >> 63));
+                jsonLength += length(whole) + 2;
+                return;
+            }
+            writeByte(DOUBLE);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (bits >>> shift));
+            }
+            jsonLength += Double.toString(value).length();
+        }
+
+        private void writeFloat(float value) throws IOException {
+            if (!lenient && (Float.isNaN(value) || Float.isInfinite(value))) {
+                throw new IllegalArgumentException(
+                        "Numeric values must be finite, but was " + value);
+            }
+            writeByte(FLOAT);
+            int bits = Float.floatToRawIntBits(value);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte(bits >>> shift);
+            }
+            jsonLength += Float.toString(value).length();
+        }
+
+        /**
+         * Writes the length of {@code value} in UTF-8, then its UTF-8. Unpaired surrogates become
+         * {@code '?'}, as they do when JSON is encoded by the platform. Returns the length of
+         * {@code value} as a quoted, escaped JSON string.
+         */
+        private int writeString(String value) throws IOException {
+            int quotedLength = measure(value);
+            writeVarint(utf8Length);
+            for (int i = 0, length = value.length(); i < length; i++) {
+                if (position > buffer.length - 4) {
+                    flushBuffer();
+                }
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (isSurrogatePair(value, i)) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return quotedLength;
+        }
+
+        /**
+         * Sets {@link #utf8Length} to the length of {@code value} in UTF-8, and returns its length
+         * as a quoted, escaped JSON string.
+         */
+        private int measure(String value) {
+            int utf8Length = 0;
+            int escapes = 0;
+            for (int i = 0, length = value.length(); i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                    if (ESCAPES[c] != null) {
+                        escapes += ESCAPES[c].length - 1;
+                    }
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (isSurrogatePair(value, i)) {
+                    utf8Length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    utf8Length++;
+                } else {
+                    utf8Length += 3;
+                    if (c == '\u2028' || c == '\u2029') {
+                        escapes += LINE_SEPARATOR.length - 3;
+                    }
+                }
+            }
+            this.utf8Length = utf8Length;
+            return utf8Length + escapes + 2;
+        }
+
+        private static boolean isSurrogatePair(String value, int index) {
+            return Character.isHighSurrogate(value.charAt(index))
+                    && index + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(index + 1));
+        }
+
+        private void writeVarint(long value) throws IOException {
+            if (position > buffer.length - 10) {
+                flushBuffer();
+            }
+            while ((value & ~0x7fL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Turns binary records back into JSON. The JSON is collected in an array owned by the
+     * transcoder, so it can be measured before it is written out. Not thread safe.
+     */
+    public static final class Transcoder {
+        private byte[] out = new byte[4096];
+        private int count;
+        private byte[] in;
+        private int position;
+        private int end;
+        /** Where the names of the current record that aren't in {@link #NAMES} start in it. */
+        private int[] nameOffsets = new int[16];
+
+        private int[] nameLengths = new int[16];
+        private int nameCount;
+        private SharedMaps shared;
+
+        /**
+         * Transcodes the record held in the {@code length} bytes at {@code offset} of {@code
+         * record}, and returns the length of the JSON, which is then found at the start of {@link
+         * #bytes()}.
+         *
+         * @throws IOException if the record is malformed.
+         */
+        public int transcode(byte[] record, int offset, int length) throws IOException {
+            return transcode(record, offset, length, null);
+        }
+
+        /**
+         * Like {@link #transcode(byte[], int, int)}, but inlines the maps the record refers to from
+         * {@code shared}. A map that isn't found there, because it was lost, is written as an empty
+         * map, so the rest of the record still gets through.
+         */
+        public int transcode(byte[] record, int offset, int length, SharedMaps shared)
+                throws IOException {
+            this.shared = shared;
+            in = record;
+            position = offset;
+            end = offset + length;
+            count = 0;
+            nameCount = 0;
+            try {
+                if (readByte() != FORMAT_VERSION) {
+                    throw new IOException("Unknown payload format " + record[offset] + ".");
+                }
+                int tag = readByte();
+                if (tag != MAP && tag != FRAGMENT_MAP) {
+                    throw malformed();
+                }
+                readValue(tag);
+                if (position != end) {
+                    throw malformed();
+                }
+            } finally {
+                in = null;
+                this.shared = null;
+            }
+            return count;
+        }
+
+        /** Returns the JSON of the last record transcoded. */
+        public byte[] bytes() {
+            return out;
+        }
+
+        private void readValue(int tag) throws IOException {
+            switch (tag) {
+                case NULL:
+                    write(NULL_BYTES);
+                    break;
+                case FALSE:
+                    write(FALSE_BYTES);
+                    break;
+                case TRUE:
+                    write(TRUE_BYTES);
+                    break;
+                case INTEGER:
+                    writeLong(readSigned());
+                    break;
+                case WHOLE_DOUBLE:
+                    long whole = readSigned();
+                    if (Math.abs(whole) >= MAX_WHOLE_DOUBLE) {
+                        throw malformed();
+                    }
+                    writeLong(whole);
+                    write('.');
+                    write('0');
+                    break;
+                case DOUBLE:
+                    writeAscii(Double.toString(Double.longBitsToDouble(readBits(8))));
+                    break;
+                case FLOAT:
+                    writeAscii(Float.toString(Float.intBitsToFloat((int) readBits(4))));
+                    break;
+                case STRING:
+                    int length = readLength();
+                    writeQuoted(position, length);
+                    position += length;
+                    break;
+                case NUMBER:
+                    length = readLength();
+                    write(in, position, length);
+                    position += length;
+                    break;
+                case MAP:
+                case FRAGMENT_MAP:
+                    readMap(tag);
+                    break;
+                case LIST:
+                    readList();
+                    break;
+                case SHARED_MAP:
+                    long hash = readBits(8);
+                    byte[] json = shared == null ? null : shared.json(hash);
+                    write(json == null ? EMPTY_MAP : json);
+                    break;
+                default:
+                    throw malformed();
+            }
+        }
+
+        private void readMap(int tag) throws IOException {
+            write('{');
+            boolean first = true;
+            if (tag == FRAGMENT_MAP) {
+                if (readByte() != STRING) {
+                    throw malformed();
+                }
+                int length = readLength();
+                write(in, position, length);
+                position += length;
+                first = false;
+            }
+            long name;
+            while ((name = readVarint()) != END_OF_MAP) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                writeName(name);
+                readValue(readByte());
+            }
+            write('}');
+        }
+
+        private void readList() throws IOException {
+            write('[');
+            boolean first = true;
+            int tag;
+            while ((tag = readByte()) != END_OF_LIST) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                readValue(tag);
+            }
+            write(']');
+        }
+
+        private void writeName(long name) throws IOException {
+            if (name == NEW_NAME) {
+                if (nameCount == nameOffsets.length) {
+                    nameOffsets = Arrays.copyOf(nameOffsets, nameCount * 2);
+                    nameLengths = Arrays.copyOf(nameLengths, nameCount * 2);
+                }
+                int length = readLength();
+                nameOffsets[nameCount] = position;
+                nameLengths[nameCount] = length;
+                nameCount++;
+                writeQuoted(position, length);
+                position += length;
+                write(':');
+                return;
+            }
+            long index = name - FIRST_NAME;
+            if (index < NAMES.length) {
+                write(ENCODED_NAMES[(int) index]);
+                return;
+            }
+            index -= NAMES.length;
+            if (index >= nameCount) {
+                throw malformed();
+            }
+            writeQuoted(nameOffsets[(int) index], nameLengths[(int) index]);
+            write(':');
+        }
+
+        /** Writes the UTF-8 at {@code offset} of the record as a quoted, escaped JSON string. */
+        private void writeQuoted(int offset, int length) {
+            // Escaping at most grows each byte six fold.
+            ensureCapacity(length * 6 + 2);
+            byte[] out = this.out;
+            int count = this.count;
+            out[count++] = '"';
+            int last = offset;
+            int stop = offset + length;
+            for (int i = offset; i < stop; i++) {
+                int b = in[i];
+                byte[] escape;
+                int escaped = 1;
+                if (b >= 0) {
+                    escape = ESCAPES[b];
+                } else if (b == (byte) 0xe2
+                        && i + 2 < stop
+                        && in[i + 1] == (byte) 0x80
+                        && (in[i + 2] == (byte) 0xa8 || in[i + 2] == (byte) 0xa9)) {
+                    // U+2028 and U+2029, which JavaScript interprets as newlines.
+                    escape = in[i + 2] == (byte) 0xa8 ? LINE_SEPARATOR : PARAGRAPH_SEPARATOR;
+                    escaped = 3;
+                } else {
+                    escape = null;
+                }
+                if (escape == null) {
+                    continue;
+                }
+                System.arraycopy(in, last, out, count, i - last);
+                count += i - last;
+                System.arraycopy(escape, 0, out, count, escape.length);
+                count += escape.length;
+                i += escaped - 1;
+                last = i + 1;
+            }
+            System.arraycopy(in, last, out, count, stop - last);
+            count += stop - last;
+            out[count++] = '"';
+            this.count = count;
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(20);
+            if (value == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return;
+            }
+            if (value < 0) {
+                out[count++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest != 0; rest /= 10) {
+                digits++;
+            }
+            for (int i = count + digits - 1; i >= count; i--) {
+                out[i] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            count += digits;
+        }
+
+        private void writeAscii(String value) {
+            int length = value.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                out[count++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void write(int b) {
+            ensureCapacity(1);
+            out[count++] = (byte) b;
+        }
+
+        private void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        private void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, out, count, length);
+            count += length;
+        }
+
+        private void ensureCapacity(int n) {
+            if (count + n > out.length) {
+                out = Arrays.copyOf(out, Math.max(count + n, out.length * 2));
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (position == end) {
+                throw malformed();
+            }
+            return in[position++] & 0xff;
+        }
+
+        private long readBits(int bytes) throws IOException {
+            long bits = 0;
+            for (int i = 0; i < bytes; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return bits;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw malformed();
+        }
+
+        private long readSigned() throws IOException {
+            long zigZag = readVarint();
+            return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+
+        /** Reads the length of a string, and makes sure the record holds that many more bytes. */
+        private int readLength() throws IOException {
+            long length = readVarint();
+            if (length > end - position) {
+                throw malformed();
+            }
+            return (int) length;
+        }
+
+        private IOException malformed() {
+            return new IOException("Malformed payload record at byte " + position + ".");
+        }
+    }
+}
@@ -25,8 +25,8 @@ package com.snapyr.sdk.services;
 
 import android.util.JsonReader;
 import android.util.JsonToken;
-import android.util.JsonWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -97,18 +97,33 @@ public class Cartographer {
         }
     }
 
-    /** Encode the given {@link Map} into the {@link JsonWriter}. */
-    private static void mapToWriter(Map<?, ?> map, JsonWriter writer) throws IOException {
+    /**
+     * Encode the given {@link Map} into the {@link StreamingJsonWriter}. If the map is a {@link
+     * JsonFragment.Source}, the entries its fragment covers are copied from the fragment instead.
+     */
+    private static void mapToWriter(Map<?, ?> map, StreamingJsonWriter writer)
+            throws IOException {
+        JsonFragment fragment = null;
+        if (map instanceof JsonFragment.Source && !writer.isPrettyPrinting()) {
+            fragment = ((JsonFragment.Source) map).jsonFragment();
+        }
         writer.beginObject();
+        if (fragment != null) {
+            writer.jsonMembers(fragment.members());
+        }
         for (Map.Entry<?, ?> entry : map.entrySet()) {
-            writer.name(String.valueOf(entry.getKey()));
+            String name = String.valueOf(entry.getKey());
+            if (fragment != null && fragment.contains(name)) {
+                continue;
+            }
+            writer.name(name);
             writeValue(entry.getValue(), writer);
         }
         writer.endObject();
     }
 
     /** Print the json representation of a List to the given writer. */
-    private static void listToWriter(List<?> list, JsonWriter writer) throws IOException {
+    private static void listToWriter(List<?> list, StreamingJsonWriter writer) throws IOException {
         writer.beginArray();
         for (Object value : list) {
             writeValue(value, writer);
@@ -120,29 +135,59 @@ public class Cartographer {
 
     /**
      * Print the json representation of an array to the given writer. Primitive arrays cannot be
-     * cast to Object[], to this method accepts the raw object and uses {@link
-     * Array#getLength(Object)} and {@link Array#get(Object, int)} to read the array.
+     * cast to Object[], so the common element types are written directly to avoid boxing each
+     * element; any other array falls back to {@link Array#getLength(Object)} and {@link
+     * Array#get(Object, int)}.
      */
-    private static void arrayToWriter(Object array, JsonWriter writer) throws IOException {
+    private static void arrayToWriter(Object array, StreamingJsonWriter writer)
+            throws IOException {
         writer.beginArray();
-        for (int i = 0, size = Array.getLength(array); i < size; i++) {
-            writeValue(Array.get(array, i), writer);
+        if (array instanceof Object[]) {
+            for (Object value : (Object[]) array) {
+                writeValue(value, writer);
+            }
+        } else if (array instanceof int[]) {
+            for (int value : (int[]) array) {
+                writer.value(value);
+            }
+        } else if (array instanceof long[]) {
+            for (long value : (long[]) array) {
+                writer.value(value);
+            }
+        } else if (array instanceof double[]) {
+            for (double value : (double[]) array) {
+                writer.value(value);
+            }
+        } else if (array instanceof float[]) {
+            for (float value : (float[]) array) {
+                writer.value(value);
+            }
+        } else if (array instanceof boolean[]) {
+            for (boolean value : (boolean[]) array) {
+                writer.value(value);
+            }
+        } else {
+            for (int i = 0, size = Array.getLength(array); i < size; i++) {
+                writeValue(Array.get(array, i), writer);
+            }
         }
         writer.endArray();
     }
 
     /**
-     * Writes the given {@link Object} to the {@link JsonWriter}.
+     * Writes the given {@link Object} to the {@link StreamingJsonWriter}.
      *
      * @throws IOException
      */
-    private static void writeValue(Object value, JsonWriter writer) throws IOException {
+    private static void writeValue(Object value, StreamingJsonWriter writer) throws IOException {
         if (value == null) {
             writer.nullValue();
+        } else if (value instanceof String) {
+            writer.value((String) value);
         } else if (value instanceof Number) {
             writer.value((Number) value);
         } else if (value instanceof Boolean) {
-            writer.value((Boolean) value);
+            writer.value((boolean) (Boolean) value);
         } else if (value instanceof List) {
             listToWriter((List) value, writer);
         } else if (value instanceof Map) {
@@ -249,7 +294,7 @@ public class Cartographer {
             throw new IllegalArgumentException("writer == null");
         }
 
-        JsonWriter jsonWriter = new JsonWriter(writer);
+        StreamingJsonWriter jsonWriter = new StreamingJsonWriter(writer);
         jsonWriter.setLenient(isLenient);
         if (prettyPrint) {
             jsonWriter.setIndent("  ");
@@ -261,6 +306,30 @@ public class Cartographer {
         }
     }
 
+    /**
+     * Serializes the map into the compact binary form described in {@link BinaryJson}, for storage.
+     * {@link BinaryJson.Transcoder} turns it back into the json {@link #toJson(Map)} returns when
+     * this Cartographer doesn't pretty print. Returns the length of that json.
+     */
+    public long toBinary(Map<?, ?> map, OutputStream out) throws IOException {
+        return toBinary(map, out, null);
+    }
+
+    /**
+     * Like {@link #toBinary(Map, OutputStream)}, but keeps the map's context in {@code shared},
+     * unless it is null, and only refers to it from the record.
+     */
+    public long toBinary(Map<?, ?> map, OutputStream out, BinaryJson.SharedMaps shared)
+            throws IOException {
+        if (map == null) {
+            throw new IllegalArgumentException("map == null");
+        }
+        if (out == null) {
+            throw new IllegalArgumentException("out == null");
+        }
+        return BinaryJson.encode(map, out, isLenient, shared);
+    }
+
     /** Fluent API to construct instances of {@link Cartographer}. */
     public static class Builder {
         private boolean isLenient;
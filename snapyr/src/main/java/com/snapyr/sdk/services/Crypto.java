@@ -23,10 +23,32 @@
  */
 package com.snapyr.sdk.services;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Encrypts payloads before they are stored in the queue, and decrypts them before they are
+ * uploaded. Implementations can either transform streams, by overriding {@link
+ * #encrypt(OutputStream)} and {@link #decrypt(InputStream)}, or transform whole records in place,
+ * by overriding {@link #newSession()}. The SDK works with records through {@link #session()}, so
+ * implementations that keep expensive cipher state should do the latter.
+ */
 public abstract class Crypto {
+    /** Returned by {@link #maxOverhead()} when the overhead isn't known up front. */
+    public static final int UNKNOWN_OVERHEAD = -1;
+
+    private final ThreadLocal<Session> sessions =
+            new ThreadLocal<Session>() {
+                @Override
+                protected Session initialValue() {
+                    return newSession();
+                }
+            };
+
     public static Crypto none() {
         return new Crypto() {
             @Override
@@ -38,10 +60,192 @@ public abstract class Crypto {
             public OutputStream encrypt(OutputStream os) {
                 return os;
             }
+
+            @Override
+            public boolean isIdentity() {
+                return true;
+            }
+
+            @Override
+            public int maxOverhead() {
+                return 0;
+            }
+
+            @Override
+            protected Session newSession() {
+                return new Session() {
+                    @Override
+                    public void encrypt(ByteBuffer record) {}
+
+                    @Override
+                    public void decrypt(ByteBuffer record) {}
+                };
+            }
         };
     }
 
+    /**
+     * Returns a crypto that encrypts each record with AES in GCM mode, which also authenticates
+     * them. {@code key} must be 16, 24 or 32 bytes long. Requires API 19 or later.
+     */
+    public static Crypto aesGcm(byte[] key) {
+        return new AesGcmCrypto(key);
+    }
+
     public abstract InputStream decrypt(InputStream is);
 
     public abstract OutputStream encrypt(OutputStream os);
+
+    /**
+     * Whether {@link #encrypt} and {@link #decrypt} leave data untouched, so callers can skip
+     * them.
+     */
+    public boolean isIdentity() {
+        return false;
+    }
+
+    /**
+     * The most bytes encrypting a record adds to it, or {@link #UNKNOWN_OVERHEAD}. Buffers passed
+     * to {@link Session#encrypt} need this much room past their limit.
+     */
+    public int maxOverhead() {
+        return UNKNOWN_OVERHEAD;
+    }
+
+    /** Returns the calling thread's session, creating it on first use. */
+    public final Session session() {
+        return sessions.get();
+    }
+
+    /**
+     * Creates a session for {@link #session()}. Sessions are confined to the thread that created
+     * them, so they can hold on to cipher instances and other state between records. The default
+     * session runs records through {@link #encrypt(OutputStream)} and {@link
+     * #decrypt(InputStream)}.
+     */
+    protected Session newSession() {
+        return new StreamSession(this);
+    }
+
+    /**
+     * Encrypts and decrypts whole records in place. Each method transforms the bytes between the
+     * buffer's position and limit, and on return the buffer's position and limit bound the result.
+     * Not thread safe.
+     */
+    public abstract static class Session {
+        /**
+         * Encrypts the record in {@code record}. The result may be up to {@link #maxOverhead()}
+         * bytes longer, and is written over the record and the room past its limit.
+         *
+         * @throws IOException if the record can't be encrypted, or the result doesn't fit in the
+         *     buffer
+         */
+        public abstract void encrypt(ByteBuffer record) throws IOException;
+
+        /**
+         * Decrypts the record in {@code record}, writing the result over it.
+         *
+         * @throws IOException if the record can't be decrypted, or fails authentication
+         */
+        public abstract void decrypt(ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Adapts the stream methods of a crypto to records. The buffers records are read through and
+     * decrypted into are kept between records, so only the crypto's own streams are allocated per
+     * record.
+     */
+    private static final class StreamSession extends Session {
+        private static final byte[] EMPTY = new byte[0];
+
+        private final Crypto crypto;
+        private final RecordInputStream input = new RecordInputStream();
+        private final RecordOutputStream output = new RecordOutputStream();
+        private final byte[] readBuffer = new byte[4096];
+        /** Holds records that aren't backed by an array, or null until one is seen. */
+        private byte[] scratch;
+
+        StreamSession(Crypto crypto) {
+            this.crypto = crypto;
+        }
+
+        @Override
+        public void encrypt(ByteBuffer record) throws IOException {
+            output.reset();
+            OutputStream os = crypto.encrypt(output);
+            if (record.hasArray()) {
+                int offset = record.arrayOffset() + record.position();
+                os.write(record.array(), offset, record.remaining());
+            } else {
+                os.write(copy(record), 0, record.remaining());
+            }
+            os.close();
+            replace(record);
+        }
+
+        @Override
+        public void decrypt(ByteBuffer record) throws IOException {
+            output.reset();
+            if (record.hasArray()) {
+                int offset = record.arrayOffset() + record.position();
+                input.wrap(record.array(), offset, record.remaining());
+            } else {
+                input.wrap(copy(record), 0, record.remaining());
+            }
+            try {
+                InputStream is = crypto.decrypt(input);
+                int count;
+                while ((count = is.read(readBuffer)) != -1) {
+                    output.write(readBuffer, 0, count);
+                }
+                is.close();
+            } finally {
+                input.wrap(EMPTY, 0, 0);
+            }
+            replace(record);
+        }
+
+        /** Copies the record into {@link #scratch}, growing it if needed. */
+        private byte[] copy(ByteBuffer record) {
+            if (scratch == null || scratch.length < record.remaining()) {
+                scratch = new byte[record.remaining()];
+            }
+            record.duplicate().get(scratch, 0, record.remaining());
+            return scratch;
+        }
+
+        /** Writes the output over {@code record}. */
+        private void replace(ByteBuffer record) throws IOException {
+            int start = record.position();
+            if (output.size() > record.capacity() - start) {
+                throw new IOException(
+                        "Record of " + output.size() + " bytes doesn't fit in the buffer.");
+            }
+            record.limit(start + output.size());
+            record.put(output.buffer(), 0, output.size());
+            record.position(start);
+        }
+    }
+
+    /** An input stream over a range of an array that can be pointed at another range. */
+    private static final class RecordInputStream extends ByteArrayInputStream {
+        RecordInputStream() {
+            super(StreamSession.EMPTY);
+        }
+
+        void wrap(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.count = offset + length;
+            this.mark = offset;
+        }
+    }
+
+    /** An output stream whose bytes can be read without copying them. */
+    private static final class RecordOutputStream extends ByteArrayOutputStream {
+        /** Returns the underlying array. Only the first {@link #size()} bytes are valid. */
+        byte[] buffer() {
+            return buf;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.services;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Some entries of a {@link Map}, already encoded as JSON object members. {@link Cartographer}
+ * writes the fragment as is in place of the entries it covers, so values that rarely change can be
+ * encoded once rather than for every payload.
+ */
+public final class JsonFragment {
+    /** A {@link Map} that can supply some of its entries pre-encoded. */
+    public interface Source {
+        /**
+         * Returns a fragment covering some of this map's entries, or null if every entry must be
+         * encoded.
+         */
+        JsonFragment jsonFragment();
+    }
+
+    private final Map<String, Object> values;
+    private final String members;
+
+    private JsonFragment(Map<String, Object> values, String members) {
+        this.values = values;
+        this.members = members;
+    }
+
+    /**
+     * Encodes {@code values}, which must not be modified afterwards. Returns null if {@code values}
+     * is empty.
+     */
+    public static JsonFragment encode(Map<String, Object> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        String json = Cartographer.INSTANCE.toJson(values);
+        // Strip the enclosing braces.
+        return new JsonFragment(
+                Collections.unmodifiableMap(values), json.substring(1, json.length() - 1));
+    }
+
+    /** Returns true if this fragment encodes {@code key}. */
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Returns true if {@code map} holds the very same values this fragment was encoded from, for
+     * every key this fragment covers.
+     */
+    public boolean matches(Map<?, ?> map) {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (map.get(entry.getKey()) != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The encoded members, without the enclosing braces. */
+    public String members() {
+        return members;
+    }
+}
@@ -0,0 +1,539 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.services;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a JSON encoded value to a stream, one token at a time. Produces the same output as {@code
+ * android.util.JsonWriter}, but is built for serializing payloads: strings are escaped from a
+ * lookup table, output is collected in a {@code char[]} and handed to the underlying {@link Writer}
+ * in bulk, numbers and primitive arrays are written without boxing, and the names of well known
+ * payload fields are written from pre-escaped copies. It has no Android dependencies, so it can be
+ * used and measured on a plain JVM.
+ */
+public final class StreamingJsonWriter implements Closeable, Flushable {
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    /**
+     * Escape sequences for chars below 128, or null if the char can be written as is. From RFC
+     * 4627, "All Unicode characters may be placed within the quotation marks except for the
+     * characters that must be escaped: quotation mark, reverse solidus, and the control characters
+     * (U+0000 through U+001F)."
+     */
+    private static final String[] REPLACEMENT_CHARS = new String[128];
+    /** Quoted, escaped names of fields found in most payloads. */
+    private static final Map<String, char[]> CACHED_NAMES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+
+        String[] names = {
+            // Payload fields.
+            "anonymousId", "channel", "context", "event", "integrations", "messageId", "name",
+            "properties", "timestamp", "traits", "type", "userId", "groupId", "previousId",
+            "category", "session",
+            // Context fields.
+            "app", "build", "campaign", "device", "library", "locale", "network", "os", "screen",
+            "sdkMeta", "timezone", "userAgent", "version", "namespace", "id", "manufacturer",
+            "model", "token", "adTrackingEnabled", "advertisingId", "bluetooth", "carrier",
+            "cellular", "wifi", "density", "height", "width",
+        };
+        for (String name : names) {
+            StringBuilder quoted = new StringBuilder(name.length() + 2);
+            quoted.append('"').append(name).append('"');
+            CACHED_NAMES.put(name, quoted.toString().toCharArray());
+        }
+    }
+
+    private final Writer out;
+    private final char[] buffer = new char[1024];
+    private int position;
+
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+
+    /**
+     * A string containing a full set of spaces for a single level of indentation, or null for no
+     * pretty printing.
+     */
+    private String indent;
+    /** The name/value separator; either ":" or ": ". */
+    private String separator = ":";
+
+    private boolean lenient;
+
+    public StreamingJsonWriter(Writer out) {
+        if (out == null) {
+            throw new NullPointerException("out == null");
+        }
+        this.out = out;
+        push(EMPTY_DOCUMENT);
+    }
+
+    /**
+     * Sets the indentation string to be repeated for each level of indentation in the encoded
+     * document. If {@code indent.isEmpty()} the encoded document will be compact. Otherwise the
+     * encoded document will be more human-readable.
+     */
+    public void setIndent(String indent) {
+        if (indent.isEmpty()) {
+            this.indent = null;
+            this.separator = ":";
+        } else {
+            this.indent = indent;
+            this.separator = ": ";
+        }
+    }
+
+    /**
+     * Configure this writer to relax its syntax rules. By default, this writer only emits
+     * well-formed JSON. When lenient, top-level values other than objects and arrays, and numbers
+     * that are NaN or infinite, are permitted.
+     */
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * Begins encoding a new array. Each call to this method must be paired with a call to {@link
+     * #endArray}.
+     */
+    public StreamingJsonWriter beginArray() throws IOException {
+        return open(EMPTY_ARRAY, '[');
+    }
+
+    /** Ends encoding the current array. */
+    public StreamingJsonWriter endArray() throws IOException {
+        return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+    }
+
+    /**
+     * Begins encoding a new object. Each call to this method must be paired with a call to {@link
+     * #endObject}.
+     */
+    public StreamingJsonWriter beginObject() throws IOException {
+        return open(EMPTY_OBJECT, '{');
+    }
+
+    /** Ends encoding the current object. */
+    public StreamingJsonWriter endObject() throws IOException {
+        return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+    }
+
+    /** Encodes the property name. */
+    public StreamingJsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        beforeName();
+        char[] cached = CACHED_NAMES.get(name);
+        if (cached != null) {
+            write(cached, 0, cached.length);
+        } else {
+            string(name);
+        }
+        return this;
+    }
+
+    /** Encodes {@code value}, or null if {@code value} is null. */
+    public StreamingJsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue(false);
+        string(value);
+        return this;
+    }
+
+    /**
+     * Writes {@code json}, which must already be a complete, encoded JSON value, without
+     * re-encoding it.
+     */
+    public StreamingJsonWriter jsonValue(String json) throws IOException {
+        if (json == null) {
+            return nullValue();
+        }
+        beforeValue(false);
+        write(json, 0, json.length());
+        return this;
+    }
+
+    /**
+     * Writes {@code members}, which must already be one or more complete, encoded name/value pairs
+     * separated by commas, into the current object without re-encoding them.
+     */
+    public StreamingJsonWriter jsonMembers(String members) throws IOException {
+        int context = peek();
+        if (context == NONEMPTY_OBJECT) {
+            write(',');
+        } else if (context != EMPTY_OBJECT) {
+            throw new IllegalStateException("Nesting problem: " + stackToString());
+        }
+        newline();
+        write(members, 0, members.length());
+        replaceTop(NONEMPTY_OBJECT);
+        return this;
+    }
+
+    /** Returns true if this writer indents its output. */
+    public boolean isPrettyPrinting() {
+        return indent != null;
+    }
+
+    /** Encodes {@code null}. */
+    public StreamingJsonWriter nullValue() throws IOException {
+        beforeValue(false);
+        write("null", 0, 4);
+        return this;
+    }
+
+    /** Encodes {@code value}. */
+    public StreamingJsonWriter value(boolean value) throws IOException {
+        beforeValue(false);
+        if (value) {
+            write("true", 0, 4);
+        } else {
+            write("false", 0, 5);
+        }
+        return this;
+    }
+
+    /**
+     * Encodes {@code value}.
+     *
+     * @throws IllegalArgumentException if {@code value} is NaN or infinite, and this writer isn't
+     *     lenient.
+     */
+    public StreamingJsonWriter value(double value) throws IOException {
+        if (!lenient && (Double.isNaN(value) || Double.isInfinite(value))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        beforeValue(false);
+        String string = Double.toString(value);
+        write(string, 0, string.length());
+        return this;
+    }
+
+    /**
+     * Encodes {@code value}.
+     *
+     * @throws IllegalArgumentException if {@code value} is NaN or infinite, and this writer isn't
+     *     lenient.
+     */
+    public StreamingJsonWriter value(float value) throws IOException {
+        if (!lenient && (Float.isNaN(value) || Float.isInfinite(value))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        beforeValue(false);
+        String string = Float.toString(value);
+        write(string, 0, string.length());
+        return this;
+    }
+
+    /** Encodes {@code value}. */
+    public StreamingJsonWriter value(long value) throws IOException {
+        beforeValue(false);
+        if (value == Long.MIN_VALUE) {
+            write("-9223372036854775808", 0, 20);
+            return this;
+        }
+        if (position + 20 > buffer.length) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        // Write the digits backwards, then move them into place.
+        int end = position + 19;
+        int start = end;
+        do {
+            buffer[--start] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        int digits = end - start;
+        System.arraycopy(buffer, start, buffer, position, digits);
+        position += digits;
+        return this;
+    }
+
+    /**
+     * Encodes {@code value}, or null if {@code value} is null.
+     *
+     * @throws IllegalArgumentException if {@code value} is NaN or infinite, and this writer isn't
+     *     lenient.
+     */
+    public StreamingJsonWriter value(Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof Integer
+                || value instanceof Long
+                || value instanceof Short
+                || value instanceof Byte) {
+            return value(value.longValue());
+        }
+        if (value instanceof Double) {
+            return value(value.doubleValue());
+        }
+        if (value instanceof Float) {
+            return value(value.floatValue());
+        }
+        String string = value.toString();
+        if (!lenient
+                && (string.equals("-Infinity")
+                        || string.equals("Infinity")
+                        || string.equals("NaN"))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        beforeValue(false);
+        write(string, 0, string.length());
+        return this;
+    }
+
+    /** Writes any buffered output to the underlying writer, and flushes it. */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes this writer and the underlying {@link Writer}.
+     *
+     * @throws IOException if the JSON document is incomplete.
+     */
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+
+        int size = stackSize;
+        if (size > 1 || size == 1 && stack[size - 1] != NONEMPTY_DOCUMENT) {
+            throw new IOException("Incomplete document");
+        }
+        stackSize = 0;
+    }
+
+    private StreamingJsonWriter open(int empty, char openBracket) throws IOException {
+        beforeValue(true);
+        push(empty);
+        write(openBracket);
+        return this;
+    }
+
+    private StreamingJsonWriter close(int empty, int nonempty, char closeBracket)
+            throws IOException {
+        int context = peek();
+        if (context != nonempty && context != empty) {
+            throw new IllegalStateException("Nesting problem: " + stackToString());
+        }
+        stackSize--;
+        if (context == nonempty) {
+            newline();
+        }
+        write(closeBracket);
+        return this;
+    }
+
+    private void push(int newTop) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = newTop;
+    }
+
+    private int peek() {
+        if (stackSize == 0) {
+            throw new IllegalStateException("JsonWriter is closed.");
+        }
+        return stack[stackSize - 1];
+    }
+
+    private void replaceTop(int topOfStack) {
+        stack[stackSize - 1] = topOfStack;
+    }
+
+    private String stackToString() {
+        return Arrays.toString(Arrays.copyOf(stack, stackSize));
+    }
+
+    private void string(String value) throws IOException {
+        write('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = REPLACEMENT_CHARS[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c == '\u2028') {
+                // JavaScript interprets these as newlines, which would break eval().
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            if (last < i) {
+                write(value, last, i - last);
+            }
+            write(replacement, 0, replacement.length());
+            last = i + 1;
+        }
+        if (last < length) {
+            write(value, last, length - last);
+        }
+        write('"');
+    }
+
+    private void newline() throws IOException {
+        if (indent == null) {
+            return;
+        }
+        write('\n');
+        for (int i = 1; i < stackSize; i++) {
+            write(indent, 0, indent.length());
+        }
+    }
+
+    /**
+     * Inserts any necessary separators and whitespace before a name. Also adjusts the stack to
+     * expect the name's value.
+     */
+    private void beforeName() throws IOException {
+        int context = peek();
+        if (context == NONEMPTY_OBJECT) { // first in object
+            write(',');
+        } else if (context != EMPTY_OBJECT) { // not in an object!
+            throw new IllegalStateException("Nesting problem: " + stackToString());
+        }
+        newline();
+        replaceTop(DANGLING_NAME);
+    }
+
+    /**
+     * Inserts any necessary separators and whitespace before a literal value, inline array, or
+     * inline object. Also adjusts the stack to expect either a closing bracket or another element.
+     *
+     * @param root true if the value is a new array or object, the two values permitted as top-level
+     *     elements.
+     */
+    private void beforeValue(boolean root) throws IOException {
+        switch (peek()) {
+            case EMPTY_DOCUMENT: // first in document
+                if (!lenient && !root) {
+                    throw new IllegalStateException("JSON must start with an array or an object.");
+                }
+                replaceTop(NONEMPTY_DOCUMENT);
+                break;
+
+            case EMPTY_ARRAY: // first in array
+                replaceTop(NONEMPTY_ARRAY);
+                newline();
+                break;
+
+            case NONEMPTY_ARRAY: // another in array
+                write(',');
+                newline();
+                break;
+
+            case DANGLING_NAME: // value for name
+                write(separator, 0, separator.length());
+                replaceTop(NONEMPTY_OBJECT);
+                break;
+
+            case NONEMPTY_DOCUMENT:
+                throw new IllegalStateException("JSON must have only one top-level value.");
+
+            default:
+                throw new IllegalStateException("Nesting problem: " + stackToString());
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = c;
+    }
+
+    private void write(String s, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int chunk = Math.min(count, buffer.length - position);
+            s.getChars(offset, offset + chunk, buffer, position);
+            position += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void write(char[] chars, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int chunk = Math.min(count, buffer.length - position);
+            System.arraycopy(chars, offset, buffer, position, chunk);
+            position += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -23,14 +23,22 @@
  */
 package com.snapyr.sdk
 
+import com.nhaarman.mockitokotlin2.whenever
 import com.snapyr.sdk.http.BatchQueue
 import com.snapyr.sdk.http.BatchUploadRequest
+import com.snapyr.sdk.http.WriteConnection
+import com.snapyr.sdk.services.Cartographer
 import com.snapyr.sdk.services.Crypto
+import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.net.HttpURLConnection
+import java.util.zip.Deflater
+import java.util.zip.GZIPInputStream
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
 
@@ -67,6 +75,89 @@ class BatchPayloadWriterTest {
             .contains("\"batch\":[{ \"foobarbazqux\" : 10 }]")
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun batchPayloadWriterCopiesPayloadBytes() {
+        val large = "{\"large\":\"" + "é".repeat(10000) + "\"}"
+        val queue = BatchQueue.MemoryQueue()
+        queue.add(" { \"a\" : 1 }\n".toByteArray())
+        queue.add(large.toByteArray())
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        val written = BatchUploadRequest.execute(queue, byteArrayOutputStream, Crypto.none())
+
+        assertThat(written).isEqualTo(2)
+        assertThat(byteArrayOutputStream.toString("UTF-8"))
+            .startsWith("{\"batch\":[ { \"a\" : 1 }\n,$large],\"sentAt\":\"")
+            .endsWith("\"}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun batchPayloadWriterTranscodesBinaryPayloads() {
+        val payload = linkedMapOf<String, Any>(
+            "type" to "track", "event" to "Order \"Completed\"", "properties" to mapOf("total" to 2.5)
+        )
+        val binary = ByteArrayOutputStream()
+        Cartographer.INSTANCE.toBinary(payload, binary)
+        val queue = BatchQueue.MemoryQueue()
+        queue.add(binary.toByteArray())
+        queue.add("{\"a\":1}".toByteArray())
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        val written = BatchUploadRequest.execute(queue, byteArrayOutputStream, Crypto.none())
+
+        assertThat(written).isEqualTo(2)
+        assertThat(byteArrayOutputStream.toString("UTF-8"))
+            .startsWith("{\"batch\":[${Cartographer.INSTANCE.toJson(payload)},{\"a\":1}],\"sentAt\":\"")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun batchPayloadWriterDropsUnreadablePayloads() {
+        val binary = ByteArrayOutputStream()
+        Cartographer.INSTANCE.toBinary(linkedMapOf<String, Any>("type" to "track"), binary)
+        val truncated = binary.toByteArray().copyOf(binary.size() / 2)
+        val queue = BatchQueue.MemoryQueue()
+        queue.add(truncated)
+        queue.add("{\"a\":1}".toByteArray())
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        val written = BatchUploadRequest.execute(queue, byteArrayOutputStream, Crypto.none())
+
+        // The truncated payload is counted, so it's removed with the batch, but isn't sent.
+        assertThat(written).isEqualTo(2)
+        assertThat(byteArrayOutputStream.toString("UTF-8"))
+            .startsWith("{\"batch\":[{\"a\":1}],\"sentAt\":\"")
+
+        queue.remove(2)
+        queue.add(truncated)
+        byteArrayOutputStream.reset()
+        assertThat(BatchUploadRequest.execute(queue, byteArrayOutputStream, Crypto.none()))
+            .isEqualTo(1)
+        assertThat(byteArrayOutputStream.toString("UTF-8")).startsWith("{\"batch\":[],\"sentAt\":\"")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun batchPayloadWriterAddsAdvertisingInfoToDevice() {
+        val queue = BatchQueue.MemoryQueue()
+        queue.add("{\"context\":{\"device\":{\"id\":\"d\"}},\"a\":1}".toByteArray())
+        queue.add("{\"context\":{\"device\":{\"adTrackingEnabled\":false}}}".toByteArray())
+        queue.add("{\"a\":{\"device\":{}}}".toByteArray())
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        val deviceFields = "\"advertisingId\":\"adId\"".toByteArray()
+        BatchUploadRequest.execute(
+            queue, byteArrayOutputStream, Crypto.none(), 0, Int.MAX_VALUE, null, deviceFields
+        )
+
+        // Only devices in a payload's context without advertising info of their own get it.
+        assertThat(byteArrayOutputStream.toString("UTF-8")).startsWith(
+            "{\"batch\":[" +
+                "{\"context\":{\"device\":{\"id\":\"d\",\"advertisingId\":\"adId\"}},\"a\":1}," +
+                "{\"context\":{\"device\":{\"adTrackingEnabled\":false}}}," +
+                "{\"a\":{\"device\":{}}}" +
+                "],\"sentAt\":\""
+        )
+    }
+
     @Test
     @Throws(IOException::class)
     fun batchPayloadWriterFailsForNoItem() {
@@ -78,4 +169,28 @@ class BatchPayloadWriterTest {
             assertThat(exception).hasMessage("Incomplete document")
         }
     }
+
+    @Test
+    @Throws(IOException::class)
+    fun compressedBatchIsLimitedByCompressedSize() {
+        val bytes = ByteArray(1432) { 'a'.toByte() }
+        val queue = BatchQueue.MemoryQueue()
+        for (i in 0..499) {
+            queue.add(bytes)
+        }
+        val body = ByteArrayOutputStream()
+        val httpConnection = mock(HttpURLConnection::class.java)
+        whenever(httpConnection.getRequestProperty("Content-Encoding")).thenReturn("gzip")
+        whenever(httpConnection.outputStream).thenReturn(body)
+
+        val written = BatchUploadRequest.execute(
+            queue, WriteConnection(httpConnection, Deflater.BEST_SPEED), Crypto.none()
+        )
+
+        // ~716KB of uncompressed payloads would only fit 331 payloads, but they compress well.
+        assertThat(written).isEqualTo(500)
+        val json = GZIPInputStream(ByteArrayInputStream(body.toByteArray()))
+            .bufferedReader().readText()
+        assertThat(json).startsWith("{\"batch\":[")
+    }
 }
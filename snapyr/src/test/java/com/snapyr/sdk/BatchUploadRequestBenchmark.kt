@@ -0,0 +1,153 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.http.BatchQueue
+import com.snapyr.sdk.http.BatchUploadRequest
+import com.snapyr.sdk.http.QueueFile
+import com.snapyr.sdk.services.Crypto
+import java.io.FilterInputStream
+import java.io.FilterOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Measures how fast queued payloads are written out as batches by [BatchUploadRequest], from
+ * memory and from disk, with and without a [Crypto] that transforms every byte. Skipped unless run
+ * with `-Dsnapyr.benchmark=true`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class BatchUploadRequestBenchmark {
+
+    @Rule
+    @JvmField
+    val folder = TemporaryFolder()
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+    }
+
+    @Test
+    fun writeBatches() {
+        val memoryQueue = BatchQueue.MemoryQueue(EVENTS)
+        val persistentQueue = BatchQueue.PersistentQueue(QueueFile(folder.newFile()))
+        val xor = XorCrypto()
+        repeat(EVENTS) {
+            val payload = payload(it)
+            memoryQueue.add(payload)
+            persistentQueue.add(xor.encode(payload))
+        }
+        val plainQueue = BatchQueue.PersistentQueue(QueueFile(folder.newFile()))
+        repeat(EVENTS) { plainQueue.add(payload(it)) }
+
+        report("memory, no crypto", measure(memoryQueue, Crypto.none()))
+        report("file, no crypto", measure(plainQueue, Crypto.none()))
+        report("file, xor crypto", measure(persistentQueue, xor))
+    }
+
+    private fun report(name: String, eventsPerSecond: Double) {
+        println("BatchUploadRequestBenchmark: %s %.0f events/sec".format(name, eventsPerSecond))
+    }
+
+    /** Writes every queued payload out in batches, and returns how many were written per second. */
+    private fun measure(queue: BatchQueue, crypto: Crypto): Double {
+        repeat(WARMUP) { writeAll(queue, crypto) }
+        val start = System.nanoTime()
+        repeat(ROUNDS) { writeAll(queue, crypto) }
+        val elapsed = System.nanoTime() - start
+        return ROUNDS * EVENTS * 1_000_000_000.0 / elapsed
+    }
+
+    private fun writeAll(queue: BatchQueue, crypto: Crypto) {
+        var written = 0
+        while (written < queue.size()) {
+            written += BatchUploadRequest.execute(
+                queue, NullOutputStream, crypto, written, Int.MAX_VALUE, null, null
+            )
+        }
+    }
+
+    private fun payload(index: Int): ByteArray {
+        return (
+            "{\"messageId\":\"0f3c6c7e-2a5d-4c1b-8b8e-$index\",\"type\":\"track\"," +
+                "\"channel\":\"mobile\",\"anonymousId\":\"5b1a9d2c-7e3f-4a6b-9c8d-0e1f2a3b4c5d\"," +
+                "\"timestamp\":\"2021-06-01T12:34:56.789Z\",\"event\":\"Checkout Completed\"," +
+                "\"context\":{\"app\":{\"name\":\"Benchmark\",\"version\":\"1.0\"}," +
+                "\"device\":{\"manufacturer\":\"Google\",\"model\":\"Pixel\"}," +
+                "\"library\":{\"name\":\"snapyr-android\",\"version\":\"1.0.0\"}," +
+                "\"os\":{\"name\":\"Android\",\"version\":\"11\"},\"timezone\":\"America/New_York\"}," +
+                "\"properties\":{\"revenue\":19.99,\"currency\":\"USD\",\"quantity\":3}}"
+            ).toByteArray()
+    }
+
+    private object NullOutputStream : OutputStream() {
+        override fun write(b: Int) {}
+
+        override fun write(b: ByteArray, off: Int, len: Int) {}
+    }
+
+    /** Flips every byte, decoding in small chunks like a block cipher would. */
+    private class XorCrypto : Crypto() {
+        fun encode(data: ByteArray) = ByteArray(data.size) { (data[it].toInt() xor KEY).toByte() }
+
+        override fun decrypt(input: InputStream): InputStream = object : FilterInputStream(input) {
+            override fun read(): Int {
+                val b = super.read()
+                return if (b == -1) b else b xor KEY
+            }
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                val count = super.read(b, off, Math.min(len, CHUNK))
+                for (i in off until off + count) {
+                    b[i] = (b[i].toInt() xor KEY).toByte()
+                }
+                return count
+            }
+        }
+
+        override fun encrypt(os: OutputStream): OutputStream = object : FilterOutputStream(os) {
+            override fun write(b: Int) {
+                super.write(b xor KEY)
+            }
+        }
+    }
+
+    companion object {
+        private const val WARMUP = 3
+        private const val ROUNDS = 10
+        private const val EVENTS = 10_000
+        private const val KEY = 0x5a
+        private const val CHUNK = 16
+    }
+}
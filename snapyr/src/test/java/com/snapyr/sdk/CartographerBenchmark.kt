@@ -0,0 +1,172 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import android.util.JsonWriter
+import com.snapyr.sdk.services.BinaryJson
+import com.snapyr.sdk.services.Cartographer
+import java.io.ByteArrayOutputStream
+import java.io.StringWriter
+import java.io.Writer
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Compares payload serialization through [Cartographer] with the [JsonWriter] based encoder it
+ * replaced. Skipped unless run with `-Dsnapyr.benchmark=true`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class CartographerBenchmark {
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+    }
+
+    @Test
+    fun serializeTrackPayloads() {
+        val payload = trackPayload()
+        val cartographer = Cartographer.INSTANCE
+
+        val before = measure { writer -> writeJsonWriter(payload, writer) }
+        val after = measure { writer -> cartographer.toJson(payload, writer) }
+
+        println("CartographerBenchmark: android.util.JsonWriter %.0f events/sec".format(before))
+        println("CartographerBenchmark: StreamingJsonWriter %.0f events/sec".format(after))
+    }
+
+    @Test
+    fun storeTrackPayloads() {
+        val payload = trackPayload()
+        val cartographer = Cartographer.INSTANCE
+        val json = cartographer.toJson(payload).toByteArray()
+        val binary = ByteArrayOutputStream(1024)
+        cartographer.toBinary(payload, binary)
+        val record = binary.toByteArray()
+        val transcoder = BinaryJson.Transcoder()
+
+        val encode = measureRuns {
+            binary.reset()
+            cartographer.toBinary(payload, binary)
+        }
+        val transcode = measureRuns { transcoder.transcode(record, 0, record.size) }
+
+        println(
+            "CartographerBenchmark: %d JSON bytes, %d binary bytes".format(json.size, record.size)
+        )
+        println("CartographerBenchmark: BinaryJson encode %.0f events/sec".format(encode))
+        println("CartographerBenchmark: BinaryJson transcode %.0f events/sec".format(transcode))
+    }
+
+    private fun measure(encode: (Writer) -> Unit): Double {
+        repeat(WARMUP) { encode(StringWriter(1024)) }
+        val start = System.nanoTime()
+        repeat(EVENTS) { encode(StringWriter(1024)) }
+        val elapsed = System.nanoTime() - start
+        return EVENTS * 1_000_000_000.0 / elapsed
+    }
+
+    private fun measureRuns(run: () -> Unit): Double {
+        repeat(WARMUP) { run() }
+        val start = System.nanoTime()
+        repeat(EVENTS) { run() }
+        val elapsed = System.nanoTime() - start
+        return EVENTS * 1_000_000_000.0 / elapsed
+    }
+
+    private fun trackPayload(): Map<String, Any> {
+        val context = linkedMapOf<String, Any>(
+            "app" to linkedMapOf("name" to "Benchmark", "version" to "1.0", "build" to "42"),
+            "device" to linkedMapOf(
+                "id" to "8c6a5c1b-4d4f-4ae4-9d2e-1a2b3c4d5e6f",
+                "manufacturer" to "Google",
+                "model" to "Pixel",
+                "adTrackingEnabled" to true
+            ),
+            "library" to linkedMapOf("name" to "snapyr-android", "version" to "1.0.0"),
+            "locale" to "en-US",
+            "network" to linkedMapOf("wifi" to true, "carrier" to "Carrier"),
+            "os" to linkedMapOf("name" to "Android", "version" to "11"),
+            "screen" to linkedMapOf("density" to 2.75f, "width" to 1080, "height" to 2280),
+            "timezone" to "America/New_York",
+            "userAgent" to "Dalvik/2.1.0 (Linux; U; Android 11; Pixel Build/RQ3A)"
+        )
+        return linkedMapOf(
+            "messageId" to "0f3c6c7e-2a5d-4c1b-8b8e-3d9f2e1a0b7c",
+            "type" to "track",
+            "channel" to "mobile",
+            "context" to context,
+            "anonymousId" to "5b1a9d2c-7e3f-4a6b-9c8d-0e1f2a3b4c5d",
+            "timestamp" to "2021-06-01T12:34:56.789Z",
+            "integrations" to linkedMapOf<String, Any>(),
+            "event" to "Checkout Completed",
+            "properties" to linkedMapOf(
+                "revenue" to 19.99,
+                "currency" to "USD",
+                "quantity" to 3,
+                "sku" to listOf("a-1", "b-2", "c-3"),
+                "description" to "Line one\nLine \"two\""
+            )
+        )
+    }
+
+    /** Mirrors the encoding [Cartographer] performed with [JsonWriter]. */
+    private fun writeJsonWriter(map: Map<*, *>, writer: Writer) {
+        val jsonWriter = JsonWriter(writer)
+        jsonWriter.setLenient(true)
+        jsonWriter.use { writeValue(map, it) }
+    }
+
+    private fun writeValue(value: Any?, writer: JsonWriter) {
+        when (value) {
+            null -> writer.nullValue()
+            is Number -> writer.value(value)
+            is Boolean -> writer.value(value)
+            is List<*> -> {
+                writer.beginArray()
+                value.forEach { writeValue(it, writer) }
+                writer.endArray()
+            }
+            is Map<*, *> -> {
+                writer.beginObject()
+                value.forEach { (k, v) ->
+                    writer.name(k.toString())
+                    writeValue(v, writer)
+                }
+                writer.endObject()
+            }
+            else -> writer.value(value.toString())
+        }
+    }
+
+    companion object {
+        private const val WARMUP = 2_000
+        private const val EVENTS = 10_000
+    }
+}
@@ -24,7 +24,9 @@
 package com.snapyr.sdk
 
 import com.google.common.collect.ImmutableMap
+import com.snapyr.sdk.services.BinaryJson
 import com.snapyr.sdk.services.Cartographer
+import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.io.Reader
 import java.io.StringWriter
@@ -530,4 +532,60 @@ class CartographerTest {
         val writer = StringWriter()
         cartographer.toJson(map, writer)
     }
+
+    @Test
+    @Throws(IOException::class)
+    fun binaryTranscodesToJson() {
+        val nested = LinkedHashMap<String, Any?>()
+        nested["name"] = "caf\u00e9 \ud83d\ude00 \u2028 \"quoted\"\n"
+        nested["custom key"] = listOf(1, -2L, 3.5, 4.0, -0.0, 1e7, 2.5f, null, true)
+        val map = LinkedHashMap<String, Any?>()
+        map["type"] = "track"
+        map["properties"] = nested
+        map["repeated"] = listOf(nested, nested)
+        map["long"] = Long.MIN_VALUE
+        map["decimal"] = java.math.BigDecimal("12.50")
+        map["doubles"] = doubleArrayOf(1.0, 0.1)
+        map["ints"] = intArrayOf(7, -7)
+        map["nan"] = Double.NaN
+        val cartographer = Cartographer.INSTANCE
+        val json = cartographer.toJson(map).toByteArray()
+
+        val binary = ByteArrayOutputStream()
+        val jsonLength = cartographer.toBinary(map, binary)
+        val record = binary.toByteArray()
+        assertThat(record.size).isLessThan(json.size)
+        assertThat(BinaryJson.isBinary(record, 0, record.size)).isTrue
+        assertThat(BinaryJson.isBinary(json, 0, json.size)).isFalse
+
+        val transcoder = BinaryJson.Transcoder()
+        val length = transcoder.transcode(record, 0, record.size)
+        assertThat(jsonLength).isEqualTo(json.size.toLong())
+        assertThat(transcoder.bytes().copyOf(length)).isEqualTo(json)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun binaryDisallowsNonFiniteNumbersWhenStrict() {
+        try {
+            cartographer.toBinary(mapOf("nan" to Double.NaN), ByteArrayOutputStream())
+            fail("NaN should throw Exception")
+        } catch (e: IllegalArgumentException) {
+            assertThat(e).hasMessage("Numeric values must be finite, but was NaN")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun transcoderRejectsTruncatedRecords() {
+        val binary = ByteArrayOutputStream()
+        cartographer.toBinary(mapOf("event" to "foo", "bar" to listOf(1, 2)), binary)
+        val record = binary.toByteArray()
+        try {
+            BinaryJson.Transcoder().transcode(record, 0, record.size - 1)
+            fail("truncated record should throw Exception")
+        } catch (e: IOException) {
+            assertThat(e.message).startsWith("Malformed payload record")
+        }
+    }
 }
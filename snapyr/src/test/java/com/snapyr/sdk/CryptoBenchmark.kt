@@ -0,0 +1,122 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.services.Crypto
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.CipherInputStream
+import javax.crypto.CipherOutputStream
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Compares encrypting and decrypting payloads through [Crypto.aesGcm] sessions with a stream based
+ * AES-GCM crypto that sets up a cipher for every payload. Skipped unless run with
+ * `-Dsnapyr.benchmark=true`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class CryptoBenchmark {
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+    }
+
+    @Test
+    fun encryptAndDecryptPayloads() {
+        val key = ByteArray(16).also { SecureRandom().nextBytes(it) }
+        val payload = ByteArray(PAYLOAD_SIZE) { 'a'.toByte() }
+
+        val streams = measure { roundTripStreams(StreamAesGcm(key), payload) }
+        val aesGcm = Crypto.aesGcm(key)
+        val record = ByteArray(PAYLOAD_SIZE + aesGcm.maxOverhead())
+        val sessions = measure { roundTripRecord(aesGcm, payload, record) }
+
+        println("CryptoBenchmark: per payload cipher streams %.0f events/sec".format(streams))
+        println("CryptoBenchmark: AES-GCM sessions %.0f events/sec".format(sessions))
+    }
+
+    private fun measure(roundTrip: () -> Unit): Double {
+        repeat(WARMUP) { roundTrip() }
+        val start = System.nanoTime()
+        repeat(EVENTS) { roundTrip() }
+        val elapsed = System.nanoTime() - start
+        return EVENTS * 1_000_000_000.0 / elapsed
+    }
+
+    private fun roundTripStreams(crypto: Crypto, payload: ByteArray) {
+        val encrypted = ByteArrayOutputStream()
+        crypto.encrypt(encrypted).use { it.write(payload) }
+        crypto.decrypt(encrypted.toByteArray().inputStream()).use { it.readBytes() }
+    }
+
+    private fun roundTripRecord(crypto: Crypto, payload: ByteArray, bytes: ByteArray) {
+        System.arraycopy(payload, 0, bytes, 0, payload.size)
+        val record = ByteBuffer.wrap(bytes, 0, payload.size)
+        crypto.session().encrypt(record)
+        crypto.session().decrypt(record)
+    }
+
+    /** AES-GCM over the stream API, initializing a new cipher for every payload. */
+    private class StreamAesGcm(key: ByteArray) : Crypto() {
+        private val key = SecretKeySpec(key, "AES")
+        private val random = SecureRandom()
+
+        override fun encrypt(os: OutputStream): OutputStream {
+            val iv = ByteArray(12).also { random.nextBytes(it) }
+            os.write(iv)
+            return CipherOutputStream(os, cipher(Cipher.ENCRYPT_MODE, iv))
+        }
+
+        override fun decrypt(input: InputStream): InputStream {
+            val iv = ByteArray(12)
+            input.read(iv)
+            return CipherInputStream(input, cipher(Cipher.DECRYPT_MODE, iv))
+        }
+
+        private fun cipher(mode: Int, iv: ByteArray): Cipher {
+            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+            cipher.init(mode, key, GCMParameterSpec(128, iv))
+            return cipher
+        }
+    }
+
+    companion object {
+        private const val WARMUP = 2_000
+        private const val EVENTS = 10_000
+        private const val PAYLOAD_SIZE = 700
+    }
+}
@@ -24,11 +24,17 @@
 package com.snapyr.sdk
 
 import com.snapyr.sdk.services.Crypto
+import java.io.FilterInputStream
+import java.io.FilterOutputStream
 import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
 import okio.Buffer
 import okio.ByteString
 import okio.Okio
 import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
@@ -61,4 +67,143 @@ class CryptoTest {
         assertThat(Okio.buffer(Okio.source(crypto.decrypt(buffer.inputStream()))).readByteString())
             .isEqualTo(foo)
     }
+
+    @Test
+    fun aesGcmEncryptsRecordsInPlace() {
+        val crypto = Crypto.aesGcm(ByteArray(16) { it.toByte() })
+        val plaintext = "{\"event\":\"foo\"}".toByteArray()
+        val bytes = plaintext.copyOf(plaintext.size + crypto.maxOverhead())
+        val record = ByteBuffer.wrap(bytes, 0, plaintext.size)
+
+        crypto.session().encrypt(record)
+        assertThat(record.position()).isEqualTo(0)
+        assertThat(record.remaining()).isEqualTo(plaintext.size + crypto.maxOverhead())
+        assertThat(bytes.copyOf(plaintext.size)).isNotEqualTo(plaintext)
+
+        crypto.session().decrypt(record)
+        assertThat(record.remaining()).isEqualTo(plaintext.size)
+        assertThat(bytes.copyOf(plaintext.size)).isEqualTo(plaintext)
+    }
+
+    @Test
+    fun aesGcmNeverReusesIvs() {
+        val crypto = Crypto.aesGcm(ByteArray(32))
+        val first = ByteBuffer.allocate(64)
+        first.put("foo".toByteArray()).flip()
+        val second = ByteBuffer.allocate(64)
+        second.put("foo".toByteArray()).flip()
+
+        crypto.session().encrypt(first)
+        crypto.session().encrypt(second)
+
+        assertThat(first).isNotEqualTo(second)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun aesGcmStreamsRoundTrip() {
+        val crypto = Crypto.aesGcm(ByteArray(24))
+        val foo: ByteString = ByteString.encodeUtf8("foo")
+        val buffer = Buffer()
+
+        val os = crypto.encrypt(buffer.outputStream())
+        foo.write(os)
+        os.close()
+        assertThat(buffer.size()).isEqualTo(3L + crypto.maxOverhead())
+
+        assertThat(Okio.buffer(Okio.source(crypto.decrypt(buffer.inputStream()))).readByteString())
+            .isEqualTo(foo)
+    }
+
+    @Test
+    fun aesGcmRejectsTamperedRecords() {
+        val crypto = Crypto.aesGcm(ByteArray(16))
+        val record = ByteBuffer.allocate(64)
+        record.put("foo".toByteArray()).flip()
+        crypto.session().encrypt(record)
+        record.put(0, (record.get(0).toInt() xor 1).toByte())
+
+        try {
+            crypto.session().decrypt(record)
+            fail("Tampered record should not decrypt.")
+        } catch (expected: IOException) {
+            assertThat(expected).hasMessage("Could not decrypt record.")
+        }
+    }
+
+    @Test
+    fun aesGcmNeedsRoomToEncryptInPlace() {
+        val crypto = Crypto.aesGcm(ByteArray(16))
+        try {
+            crypto.session().encrypt(ByteBuffer.wrap("foo".toByteArray()))
+            fail("Record without room should not encrypt.")
+        } catch (expected: IOException) {
+            assertThat(expected).hasMessage("No room to encrypt record in place.")
+        }
+    }
+
+    @Test
+    fun aesGcmRejectsInvalidKeys() {
+        try {
+            Crypto.aesGcm(ByteArray(15))
+            fail("15 byte key should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("key must be 16, 24 or 32 bytes long.")
+        }
+    }
+
+    @Test
+    fun streamCryptoSessionUsesStreams() {
+        val crypto = xorCrypto()
+        val bytes = "foo".toByteArray().copyOf(8)
+        val record = ByteBuffer.wrap(bytes, 0, 3)
+
+        crypto.session().encrypt(record)
+        assertThat(bytes.copyOf(3)).isNotEqualTo("foo".toByteArray())
+        crypto.session().decrypt(record)
+
+        assertThat(record.remaining()).isEqualTo(3)
+        assertThat(bytes.copyOf(3)).isEqualTo("foo".toByteArray())
+    }
+
+    @Test
+    fun streamCryptoSessionReusesBuffersAcrossRecords() {
+        val crypto = xorCrypto()
+        val long = "a".repeat(10000).toByteArray()
+        val first = ByteBuffer.wrap(long.copyOf(long.size))
+        crypto.session().encrypt(first)
+        crypto.session().decrypt(first)
+        assertThat(first.array()).isEqualTo(long)
+
+        // A shorter record, not at the start of its buffer, and not backed by an array.
+        val second = ByteBuffer.allocateDirect(8)
+        second.put("__bar".toByteArray()).flip().position(2)
+        crypto.session().encrypt(second)
+        crypto.session().decrypt(second)
+
+        val decrypted = ByteArray(second.remaining())
+        second.get(decrypted)
+        assertThat(String(decrypted)).isEqualTo("bar")
+    }
+
+    private fun xorCrypto(): Crypto {
+        return object : Crypto() {
+            override fun decrypt(input: InputStream): InputStream = object : FilterInputStream(input) {
+                override fun read(b: ByteArray, off: Int, len: Int): Int {
+                    // Decrypt one byte at a time, to make sure short reads are handled.
+                    val count = super.read(b, off, Math.min(len, 1))
+                    for (i in off until off + count) {
+                        b[i] = (b[i].toInt() xor 0x5a).toByte()
+                    }
+                    return count
+                }
+            }
+
+            override fun encrypt(os: OutputStream): OutputStream = object : FilterOutputStream(os) {
+                override fun write(b: Int) {
+                    super.write(b xor 0x5a)
+                }
+            }
+        }
+    }
 }
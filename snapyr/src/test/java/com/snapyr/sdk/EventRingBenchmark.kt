@@ -0,0 +1,109 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Measures what handing a track call to the analytics thread costs the calling thread, through an
+ * [EventRing] and through submitting a task per call. Skipped unless run with
+ * `-Dsnapyr.benchmark=true`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class EventRingBenchmark {
+
+    private lateinit var executor: ExecutorService
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+        executor = Executors.newSingleThreadExecutor()
+    }
+
+    @After
+    fun tearDown() {
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    @Test
+    fun handOffTrackCalls() {
+        val properties = Properties().putValue("revenue", 19.99)
+        val ring = EventRing(
+            EventRing.DEFAULT_CAPACITY,
+            executor,
+            EventRing.Consumer { _, _, _, _, _, _ -> }
+        )
+
+        val submit = measure {
+            executor.submit { consume("Checkout Completed", properties) }
+            true
+        }
+        val publish = measure {
+            ring.publish(EventRing.TRACK, null, "Checkout Completed", properties, null, 0)
+        }
+
+        println("EventRingBenchmark: executor submit %.0f ns/call".format(submit))
+        println("EventRingBenchmark: ring publish %.0f ns/call".format(publish))
+    }
+
+    /** Returns the average nanoseconds per call, leaving out calls that found the ring full. */
+    private fun measure(call: () -> Boolean): Double {
+        repeat(WARMUP) { call() }
+        drain()
+        var calls = 0
+        var elapsed = 0L
+        repeat(ROUNDS) {
+            val start = System.nanoTime()
+            repeat(EVENTS_PER_ROUND) { if (call()) calls++ }
+            elapsed += System.nanoTime() - start
+            drain()
+        }
+        return elapsed.toDouble() / calls
+    }
+
+    /** Waits for the analytics thread to catch up, so every round starts with an empty ring. */
+    private fun drain() {
+        executor.submit {}.get(10, TimeUnit.SECONDS)
+    }
+
+    @Suppress("UNUSED_PARAMETER")
+    private fun consume(event: String, properties: Properties) {}
+
+    companion object {
+        private const val WARMUP = 10_000
+        private const val ROUNDS = 100
+        private const val EVENTS_PER_ROUND = 1_000
+    }
+}
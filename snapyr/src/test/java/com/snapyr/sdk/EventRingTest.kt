@@ -0,0 +1,152 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class EventRingTest {
+
+    private val consumed = mutableListOf<String>()
+    private val consumer = EventRing.Consumer { _, _, name, _, _, _ -> consumed.add(name) }
+
+    @Test
+    fun consumesEventsInOrder() {
+        val ring = EventRing(4, TestUtils.SynchronousExecutor(), consumer)
+
+        for (i in 0 until 10) {
+            ring.publish(EventRing.TRACK, null, "event $i", null, null, 0)
+        }
+
+        assertThat(consumed).containsExactly(*Array(10) { "event $it" })
+    }
+
+    @Test
+    fun passesArgumentsThrough() {
+        val properties = Properties().putValue("a", 1)
+        val options = Options()
+        var received: Array<Any?>? = null
+        val ring = EventRing(
+            1,
+            TestUtils.SynchronousExecutor(),
+            EventRing.Consumer { kind, category, name, p, o, timestamp ->
+                received = arrayOf(kind, category, name, p, o, timestamp)
+            }
+        )
+
+        ring.publish(EventRing.SCREEN, "category", "name", properties, options, 42L)
+
+        assertThat(received).containsExactly(EventRing.SCREEN, "category", "name", properties, options, 42L)
+    }
+
+    @Test
+    fun overflowsInOrderWhenFull() {
+        val executor = Executors.newSingleThreadExecutor()
+        val blocked = CountDownLatch(1)
+        executor.submit { blocked.await() }
+        val ring = EventRing(3, executor, consumer)
+
+        // Capacity is rounded up to 4, so the last two events overflow the ring.
+        for (i in 0 until 6) {
+            ring.publish(EventRing.TRACK, null, "event $i", null, null, 0)
+        }
+
+        blocked.countDown()
+        executor.submit {}.get(5, TimeUnit.SECONDS)
+        assertThat(consumed).containsExactly(*Array(6) { "event $it" })
+
+        // Once the overflow is consumed, events go back into the ring.
+        ring.publish(EventRing.TRACK, null, "event 6", null, null, 0)
+        executor.submit {}.get(5, TimeUnit.SECONDS)
+        assertThat(consumed).containsExactly(*Array(7) { "event $it" })
+        executor.shutdown()
+    }
+
+    @Test
+    fun runsTasksInPublishOrder() {
+        val executor = Executors.newSingleThreadExecutor()
+        val blocked = CountDownLatch(1)
+        executor.submit { blocked.await() }
+        val ring = EventRing(4, executor, consumer)
+
+        // The drain scheduled for the first event is pending while the rest are published.
+        ring.publish(EventRing.TRACK, null, "before", null, null, 0)
+        ring.publish(Runnable { consumed.add("task") })
+        ring.publish(EventRing.TRACK, null, "after", null, null, 0)
+        blocked.countDown()
+        executor.submit {}.get(5, TimeUnit.SECONDS)
+
+        assertThat(consumed).containsExactly("before", "task", "after")
+        executor.shutdown()
+    }
+
+    @Test
+    fun consumesEventsBeforeLaterTasks() {
+        val executor = Executors.newSingleThreadExecutor()
+        val order = mutableListOf<String>()
+        val ring = EventRing(
+            16, executor, EventRing.Consumer { _, _, name, _, _, _ -> order.add(name) }
+        )
+
+        for (i in 0 until 100) {
+            ring.publish(EventRing.TRACK, null, "event $i", null, null, 0)
+            executor.submit { order.add("task $i") }
+        }
+        executor.submit {}.get(5, TimeUnit.SECONDS)
+
+        for (i in 0 until 100) {
+            assertThat(order.indexOf("event $i")).isLessThan(order.indexOf("task $i"))
+        }
+        executor.shutdown()
+    }
+
+    @Test
+    fun keepsGoingAfterConsumerThrows() {
+        var fail = true
+        val ring = EventRing(
+            4,
+            TestUtils.SynchronousExecutor(),
+            EventRing.Consumer { _, _, name, _, _, _ ->
+                if (fail) {
+                    fail = false
+                    throw IllegalStateException()
+                }
+                consumed.add(name)
+            }
+        )
+
+        ring.publish(EventRing.TRACK, null, "first", null, null, 0)
+        ring.publish(EventRing.TRACK, null, "second", null, null, 0)
+
+        assertThat(consumed).containsExactly("second")
+    }
+}
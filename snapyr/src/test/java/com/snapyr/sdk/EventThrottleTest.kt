@@ -0,0 +1,116 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.services.Cartographer
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class EventThrottleTest {
+
+    private fun throttle(sampleRate: Double, maxEvents: Int, periodMillis: Long): EventThrottle {
+        return EventThrottle(EventThrottle.Limits(sampleRate, maxEvents, periodMillis, emptyMap()))
+    }
+
+    @Test
+    fun rateLimitsEachEventName() {
+        val throttle = throttle(1.0, 2, 1000)
+
+        assertThat(throttle.allow("foo", "user", 0)).isTrue
+        assertThat(throttle.allow("foo", "user", 0)).isTrue
+        assertThat(throttle.allow("foo", "user", 0)).isFalse
+        assertThat(throttle.allow("bar", "user", 0)).isTrue
+
+        // Half the period refills one of the two tokens.
+        assertThat(throttle.allow("foo", "user", 500)).isTrue
+        assertThat(throttle.allow("foo", "user", 500)).isFalse
+    }
+
+    @Test
+    fun sdkEventsAreNeverDropped() {
+        val throttle = throttle(0.0, 1, 1000)
+
+        for (i in 0 until 10) {
+            assertThat(throttle.allow("snapyr.sessionStart", "user", 0)).isTrue
+        }
+        assertThat(throttle.allow("foo", "user", 0)).isFalse
+    }
+
+    @Test
+    fun samplesUsersByAnonymousId() {
+        val throttle = throttle(0.5, 0, 1000)
+        var sampled = 0
+        for (i in 0 until 1000) {
+            val anonymousId = "user-$i"
+            val allowed = throttle.allow("foo", anonymousId, 0)
+            assertThat(allowed).isEqualTo(EventThrottle.fraction(anonymousId) < 0.5)
+            // A user is always sampled the same way.
+            assertThat(throttle.allow("bar", anonymousId, 0)).isEqualTo(allowed)
+            if (allowed) {
+                sampled++
+            }
+        }
+        assertThat(sampled).isGreaterThan(450).isLessThan(550)
+    }
+
+    @Test
+    fun summarizesDroppedEvents() {
+        val throttle = throttle(1.0, 1, 60000)
+        assertThat(throttle.allow("foo", "user", 0)).isTrue
+        assertThat(throttle.allow("foo", "user", 0)).isFalse
+        assertThat(throttle.allow("foo", "user", 10)).isFalse
+        assertThat(throttle.takeSummary(10)).isNull()
+
+        val summary = throttle.takeSummary(EventThrottle.SUMMARY_INTERVAL_MILLIS)
+        assertThat(summary).containsEntry("droppedEvents", 2)
+        assertThat(summary!!["events"]).isEqualTo(mapOf("foo" to 2))
+        assertThat(throttle.takeSummary(2 * EventThrottle.SUMMARY_INTERVAL_MILLIS)).isNull()
+    }
+
+    @Test
+    fun settingsOverrideLimits() {
+        val throttle = throttle(1.0, 0, 60000)
+        val settings =
+            Cartographer.INSTANCE.fromJson(
+                "{\"plan\":{\"throttle\":{\"maxEvents\":1,\"events\":{\"bar\":3}}}}"
+            )
+        throttle.configure(ProjectSettings.create(settings))
+
+        assertThat(throttle.allow("foo", "user", 0)).isTrue
+        assertThat(throttle.allow("foo", "user", 0)).isFalse
+        for (i in 0 until 3) {
+            assertThat(throttle.allow("bar", "user", 0)).isTrue
+        }
+        assertThat(throttle.allow("bar", "user", 0)).isFalse
+
+        // Without overrides, the limits set through the builder apply again.
+        throttle.configure(null)
+        assertThat(throttle.allow("foo", "user", 0)).isTrue
+    }
+}
@@ -23,19 +23,27 @@
  */
 package com.snapyr.sdk
 
+import com.snapyr.sdk.internal.Utils.getSnapyrSharedPreferences
 import com.snapyr.sdk.services.Cartographer
 import java.io.IOException
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
+import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
 import org.robolectric.annotation.Config
 
 @RunWith(RobolectricTestRunner::class)
 @Config(manifest = Config.NONE)
 class ProjectSettingsTest {
 
+    @Before
+    fun setUp() {
+        newCache().delete()
+    }
+
     @Test
     @Throws(IOException::class)
     fun deserialization() {
@@ -83,4 +91,71 @@ class ProjectSettingsTest {
         } catch (ignored: UnsupportedOperationException) {
         }
     }
+
+    @Test
+    @Throws(IOException::class)
+    fun cacheKeepsDocumentAndValidators() {
+        val body = """{"integrations":{"Snapyr":{"apiKey":"x"}},"metadata":{}}"""
+        val settings = ProjectSettings.create(Cartographer.INSTANCE.fromJson(body))
+        newCache().set(settings, body.toByteArray(), "\"v1\"", 1000L)
+
+        val cache = newCache()
+        assertThat(cache.get()).isEqualTo(settings)
+        assertThat(cache.etag()).isEqualTo("\"v1\"")
+        assertThat(cache.lastModified()).isEqualTo(1000L)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun touchRefreshesTimestamp() {
+        val body = """{"integrations":{}}"""
+        val map = Cartographer.INSTANCE.fromJson(body)
+        map["timestamp"] = 1L
+        newCache().set(ProjectSettings(map), body.toByteArray(), null, 0L)
+
+        val touched = newCache().touch()
+        assertThat(touched.timestamp()).isGreaterThan(1L)
+        assertThat(touched.integrations()).isEmpty()
+        assertThat(newCache().get().timestamp()).isEqualTo(touched.timestamp())
+        assertThat(newCache().etag()).isNull()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun touchLeavesLegacySettingsInPreferences() {
+        val preferences = getSnapyrSharedPreferences(RuntimeEnvironment.application, TAG)
+        preferences.edit()
+            .putString("project-settings-plan-$TAG", """{"integrations":{},"timestamp":1}""")
+            .commit()
+
+        assertThat(newCache().touch().timestamp()).isGreaterThan(1L)
+        assertThat(newCache().get().timestamp()).isEqualTo(1L)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun cacheReadsSettingsFromPreferencesUntilSet() {
+        val preferences = getSnapyrSharedPreferences(RuntimeEnvironment.application, TAG)
+        preferences.edit()
+            .putString("project-settings-plan-$TAG", """{"integrations":{},"timestamp":1}""")
+            .commit()
+        assertThat(newCache().get().timestamp()).isEqualTo(1L)
+
+        val body = """{"integrations":{}}"""
+        newCache().set(
+            ProjectSettings.create(Cartographer.INSTANCE.fromJson(body)),
+            body.toByteArray(),
+            null,
+            0L
+        )
+        assertThat(preferences.contains("project-settings-plan-$TAG")).isFalse
+        assertThat(newCache().get().timestamp()).isGreaterThan(1L)
+    }
+
+    private fun newCache() =
+        ProjectSettings.Cache(RuntimeEnvironment.application, Cartographer.INSTANCE, TAG)
+
+    companion object {
+        private const val TAG = "project-settings-test"
+    }
 }
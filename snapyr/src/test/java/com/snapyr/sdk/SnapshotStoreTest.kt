@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import java.io.File
+import java.io.RandomAccessFile
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class SnapshotStoreTest {
+    @Rule
+    @JvmField
+    val folder = TemporaryFolder()
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        file = File(folder.root, "snapshot")
+    }
+
+    @Test
+    fun readsNothingBeforeFirstWrite() {
+        assertThat(SnapshotStore(file).exists()).isFalse
+        assertThat(SnapshotStore(file).read()).isNull()
+    }
+
+    @Test
+    fun roundTripsJsonValues() {
+        val map = linkedMapOf<String, Any?>(
+            "userId" to "foo",
+            "age" to 30,
+            "createdAt" to 1234567890123L,
+            "score" to 1.5,
+            "premium" to true,
+            "nickname" to null,
+            "address" to linkedMapOf("city" to "Vancouver"),
+            "tags" to listOf("a", 1, null),
+            "lucky" to intArrayOf(7, 8)
+        )
+        SnapshotStore(file).write(map)
+
+        val read = SnapshotStore(file).read()
+        assertThat(read).containsEntry("userId", "foo")
+            .containsEntry("age", 30)
+            .containsEntry("createdAt", 1234567890123L)
+            .containsEntry("score", 1.5)
+            .containsEntry("premium", true)
+            .containsEntry("nickname", null)
+            .containsEntry("address", mapOf("city" to "Vancouver"))
+            .containsEntry("tags", listOf("a", 1, null))
+            .containsEntry("lucky", listOf(7, 8))
+    }
+
+    @Test
+    fun writesOnlyChangedKeys() {
+        val map = linkedMapOf<String, Any?>("userId" to "foo", "name" to "x".repeat(1000))
+        val store = SnapshotStore(file)
+        store.write(map)
+        val length = file.length()
+
+        store.write(map)
+        assertThat(file.length()).isEqualTo(length)
+
+        map["userId"] = "bar"
+        map.remove("name")
+        store.write(map)
+        assertThat(file.length() - length).isLessThan(100)
+        assertThat(SnapshotStore(file).read()).isEqualTo(mapOf("userId" to "bar"))
+    }
+
+    @Test
+    fun compactsStaleRecords() {
+        val map = linkedMapOf<String, Any?>("userId" to "foo")
+        val store = SnapshotStore(file)
+        for (i in 0 until 1000) {
+            map["userId"] = "user $i"
+            store.write(map)
+        }
+        assertThat(file.length()).isLessThan(8192)
+        assertThat(SnapshotStore(file).read()).isEqualTo(mapOf("userId" to "user 999"))
+    }
+
+    @Test
+    fun ignoresWriteThatWasCutShort() {
+        val map = linkedMapOf<String, Any?>("userId" to "foo")
+        SnapshotStore(file).write(map)
+        RandomAccessFile(file, "rw").use {
+            it.seek(it.length())
+            it.write(byteArrayOf(0, 0, 0, 50, 1, 2, 3))
+        }
+
+        val store = SnapshotStore(file)
+        val read = store.read()
+        assertThat(read).isEqualTo(map)
+
+        read["userId"] = "bar"
+        store.write(read)
+        assertThat(SnapshotStore(file).read()).isEqualTo(mapOf("userId" to "bar"))
+    }
+}
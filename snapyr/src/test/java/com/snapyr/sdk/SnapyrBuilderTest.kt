@@ -183,6 +183,111 @@ class SnapyrBuilderTest {
         }
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun invalidQueueCommitWindowThrowsException() {
+        try {
+            Builder(context, "foo").queueCommitWindow(-1, TimeUnit.MILLISECONDS)
+            fail("queueCommitWindow < 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("window must not be negative.")
+        }
+
+        try {
+            Builder(context, "foo").queueCommitWindow(1, null)
+            fail("null unit should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("timeUnit must not be null.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidPriorityEventsThrowsException() {
+        try {
+            Builder(context, "foo").priorityEvents("Order Completed", "")
+            fail("empty event name should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("event names must not be null or empty.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidGzipBatchesThrowsException() {
+        try {
+            Builder(context, "foo").gzipBatches(10, 0)
+            fail("level > 9 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("level must be between 1 and 9, or -1 for the default.")
+        }
+
+        try {
+            Builder(context, "foo").gzipBatches(6, -1)
+            fail("thresholdBytes < 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("thresholdBytes must not be negative.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidMaxInFlightBatchesThrowsException() {
+        try {
+            Builder(context, "foo").maxInFlightBatches(0)
+            fail("maxInFlightBatches = 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("maxInFlightBatches must be greater than zero.")
+        }
+
+        try {
+            Builder(context, "foo").maxInFlightBatches(5)
+            fail("maxInFlightBatches = 5 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("maxInFlightBatches must be less than or equal to 4.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidMeteredFlushMultiplierThrowsException() {
+        try {
+            Builder(context, "foo").meteredFlushMultiplier(0)
+            fail("multiplier = 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("multiplier must be greater than zero.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidRateLimitThrowsException() {
+        try {
+            Builder(context, "foo").rateLimitEvents(0, 1, TimeUnit.MINUTES)
+            fail("maxEvents = 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("maxEvents must be greater than zero.")
+        }
+
+        try {
+            Builder(context, "foo").rateLimitEvents(10, 0, TimeUnit.MINUTES)
+            fail("period = 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("period must be greater than zero.")
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun invalidSampleRateThrowsException() {
+        try {
+            Builder(context, "foo").sampleUsers(1.5)
+            fail("sampleRate = 1.5 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("sampleRate must be between 0 and 1.")
+        }
+    }
+
     @Test
     @Throws(Exception::class)
     fun invalidOptionsThrowsException() {
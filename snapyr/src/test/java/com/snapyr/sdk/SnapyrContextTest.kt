@@ -30,6 +30,10 @@ import com.google.common.collect.ImmutableMap
 import com.nhaarman.mockitokotlin2.whenever
 import com.snapyr.sdk.Utils.createContext
 import com.snapyr.sdk.core.BuildConfig
+import com.snapyr.sdk.services.BinaryJson
+import com.snapyr.sdk.services.Cartographer
+import com.snapyr.sdk.services.Logger
+import java.io.ByteArrayOutputStream
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
 import org.assertj.core.data.MapEntry
@@ -128,6 +132,20 @@ class SnapyrContextTest {
             .containsEntry("type", "android")
     }
 
+    @Test
+    fun createLazilyLeavesOutDeviceInfo() {
+        context = SnapyrContext.createLazily(traits)
+        assertThat(context)
+            .containsKeys("library", "locale", "os", "timezone", "traits")
+            .doesNotContainKey("app")
+            .doesNotContainKey("device")
+            .doesNotContainKey("network")
+            .doesNotContainKey("screen")
+
+        context.putDeviceInfo(RuntimeEnvironment.application, true)
+        assertThat(context).containsKeys("app", "device", "network", "screen")
+    }
+
     @Test
     fun copyReturnsSameMappings() {
         val copy = context.unmodifiableCopy()
@@ -188,6 +206,31 @@ class SnapyrContextTest {
         device.putAdvertisingInfo("adId", true)
         assertThat(device).containsEntry("advertisingId", "adId")
         assertThat(device).containsEntry("adTrackingEnabled", true)
+
+        device.putAdvertisingInfo(null, false)
+        assertThat(device).doesNotContainKey("advertisingId")
+        assertThat(device).containsEntry("adTrackingEnabled", false)
+    }
+
+    @Test
+    fun advertisingInfoIsRememberedForTheNextLaunch() {
+        val application = RuntimeEnvironment.application
+        val logger = Logger.with(Snapyr.LogLevel.NONE)
+        val first = SnapyrContext.create(application, traits, true)
+        first.attachAdvertisingId(application, logger)
+        first.putAdvertisingInfo("adId", true)
+
+        val second = SnapyrContext.create(application, traits, true)
+        assertThat(second.device()).doesNotContainKey("advertisingId")
+        second.attachAdvertisingId(application, logger)
+        assertThat(second.device()).containsEntry("advertisingId", "adId")
+        assertThat(second.device().advertisingId()).isEqualTo("adId")
+
+        second.putAdvertisingInfo(null, false)
+        val third = SnapyrContext.create(application, traits, true)
+        third.attachAdvertisingId(application, logger)
+        assertThat(third.device()).doesNotContainKey("advertisingId")
+        assertThat(third.device()).containsEntry("adTrackingEnabled", false)
     }
 
     @Test
@@ -251,4 +294,60 @@ class SnapyrContextTest {
                     .build()
             )
     }
+
+    @Test
+    fun snapshotSharesEncodedStableEntries() {
+        context = SnapyrContext.create(RuntimeEnvironment.application, traits, true)
+        val snapshot = context.snapshot(ImmutableMap.of<String, Any>("foo", "bar"))
+
+        assertThat(snapshot.jsonFragment()).isNotNull
+        assertThat(snapshot).containsEntry("foo", "bar").containsKeys("app", "device", "traits")
+        assertThat(context.snapshot(emptyMap()).jsonFragment())
+            .isSameAs(snapshot.jsonFragment())
+
+        val expected = LinkedHashMap<String, Any?>(context)
+        expected["foo"] = "bar"
+        val cartographer = Cartographer.INSTANCE
+        assertThat(cartographer.fromJson(cartographer.toJson(snapshot)))
+            .isEqualTo(cartographer.fromJson(cartographer.toJson(expected)))
+    }
+
+    @Test
+    fun binarySnapshotKeepsEncodedStableEntries() {
+        context = SnapyrContext.create(RuntimeEnvironment.application, traits, true)
+        val snapshot = context.snapshot(ImmutableMap.of<String, Any>("foo", "bar"))
+        val cartographer = Cartographer.INSTANCE
+        val binary = ByteArrayOutputStream()
+        cartographer.toBinary(snapshot, binary)
+        val record = binary.toByteArray()
+        val transcoder = BinaryJson.Transcoder()
+        val length = transcoder.transcode(record, 0, record.size)
+
+        assertThat(String(transcoder.bytes(), 0, length, Charsets.UTF_8))
+            .isEqualTo(cartographer.toJson(snapshot))
+    }
+
+    @Test
+    fun deviceChangesDiscardEncodedStableEntries() {
+        context = SnapyrContext.create(RuntimeEnvironment.application, traits, true)
+        val snapshot = context.snapshot(emptyMap())
+        assertThat(snapshot.jsonFragment()).isNotNull
+
+        context.putDeviceToken("token")
+
+        assertThat(snapshot.jsonFragment()).isNull()
+        val json = Cartographer.INSTANCE.toJson(context.snapshot(emptyMap()))
+        assertThat(json).contains("\"token\":\"token\"")
+    }
+
+    @Test
+    fun overriddenStableEntriesAreNotShared() {
+        context = SnapyrContext.create(RuntimeEnvironment.application, traits, true)
+        val library = ImmutableMap.of<String, Any>("name", "analytics-test")
+        val snapshot = context.snapshot(ImmutableMap.of<String, Any>("library", library))
+
+        assertThat(snapshot.jsonFragment()).isNull()
+        assertThat(Cartographer.INSTANCE.toJson(snapshot))
+            .contains("\"library\":{\"name\":\"analytics-test\"}")
+    }
 }
@@ -69,6 +69,7 @@ import org.mockito.Matchers.any
 import org.mockito.Mockito
 import org.mockito.Mockito.`when`
 import org.mockito.Mockito.anyInt
+import org.mockito.Mockito.doNothing
 import org.mockito.Mockito.doThrow
 import org.mockito.Mockito.mock
 import org.mockito.Mockito.never
@@ -126,6 +127,35 @@ class snapyrQueueTest {
         assertThat(payloadQueue.size()).isEqualTo(1)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun groupCommitStagesPayloadsUntilCommit() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile, BatchUploadQueue.MAX_PAYLOAD_SIZE)
+        val snapyrQueue = SnapyrBuilder().payloadQueue(payloadQueue).build()
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        assertThat(payloadQueue.size()).isEqualTo(2)
+        assertThat(queueFile.size()).isEqualTo(0)
+
+        payloadQueue.commit()
+        assertThat(queueFile.size()).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun flushUploadsStagedPayloads() {
+        val connection = createTestConnection()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile, BatchUploadQueue.MAX_PAYLOAD_SIZE)
+        val snapyrQueue = SnapyrBuilder().payloadQueue(payloadQueue).build()
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+
+        snapyrQueue.submitFlush()
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        verify(connection.outputStream).write(
+            any(ByteArray::class.java), anyInt(), anyInt()
+        )
+    }
+
     @Test
     @Throws(IOException::class)
     fun enqueueLimitsQueueSize() {
@@ -137,7 +167,7 @@ class snapyrQueueTest {
         snapyrQueue.performEnqueue(TRACK_PAYLOAD)
 
         verify(payloadQueue).remove(1) // Oldest entry is removed.
-        verify(payloadQueue).add(any(ByteArray::class.java)) // Newest entry is added.
+        verify(payloadQueue).add(any(ByteArray::class.java), anyInt(), anyInt()) // Newest entry is added.
     }
 
     @Test
@@ -154,7 +184,7 @@ class snapyrQueueTest {
             fail("did not expect QueueFile to throw an error.")
         }
 
-        verify(payloadQueue, never()).add(any(ByteArray::class.java))
+        verify(payloadQueue, never()).add(any(ByteArray::class.java), anyInt(), anyInt())
     }
 
     private fun createTestConnection(): WriteConnection {
@@ -293,6 +323,66 @@ class snapyrQueueTest {
         assertThat(snapyrQueue.flushesPerformed == 0)
     }
 
+    @Test
+    @Config(sdk = [24])
+    @Throws(IOException::class)
+    fun flushWhenDisconnectedWaitsForNetwork() {
+        val connection = createTestConnection()
+        val networkInfo = Mockito.mock(NetworkInfo::class.java)
+        whenever(networkInfo.isConnectedOrConnecting).thenReturn(false)
+        val connectivityManager = Mockito.mock(ConnectivityManager::class.java)
+        whenever(connectivityManager.activeNetworkInfo).thenReturn(networkInfo)
+        val context: Context = TestUtils.mockApplication()
+        whenever(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(
+            connectivityManager
+        )
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val snapyrQueue = SnapyrBuilder()
+            .context(context)
+            .payloadQueue(payloadQueue)
+            .build()
+        payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+
+        snapyrQueue.submitFlush()
+
+        verifyZeroInteractions(connection)
+        verify(connectivityManager).registerDefaultNetworkCallback(
+            any(ConnectivityManager.NetworkCallback::class.java)
+        )
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun failedUploadDelaysQueueSizeFlushes() {
+        val connection = createTestConnection()
+        doThrow(HTTPException(503, "Service Unavailable", "service unavailable"))
+            .doNothing()
+            .`when`(connection).close()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val snapyrQueue = SnapyrBuilder()
+            .flushSize(2)
+            .payloadQueue(payloadQueue)
+            .build()
+
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        assertThat(queueFile.size()).isEqualTo(2)
+
+        // Backing off, so reaching the flush queue size again doesn't upload.
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        verify(connection, times(1)).close()
+
+        // Flushes requested by the app wait for the retry the scheduler planned.
+        snapyrQueue.submitRequestedFlush()
+        verify(connection, times(1)).close()
+
+        // The planned retry uploads.
+        snapyrQueue.submitFlush()
+        verify(connection, times(2)).close()
+        assertThat(queueFile.size()).isEqualTo(0)
+    }
+
     @Test
     @Throws(IOException::class)
     fun removesRejectedPayloads() {
@@ -373,6 +463,138 @@ class snapyrQueueTest {
         )
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun compressesBatchesAboveThreshold() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val connection = createTestConnection()
+        val connFactory = ServiceFacade.getConnectionFactory()
+        `when`(connFactory.postBatch(anyInt())).thenReturn(connection)
+        val threshold = TRACK_PAYLOAD_JSON.toByteArray().size * 2
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .config(BatchUploadQueue.Config().setGzip(true, 6, threshold))
+            .build()
+
+        // Below the threshold, the batch is sent uncompressed.
+        payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        snapyrQueue.submitFlush()
+        verify(connFactory).postBatch()
+        verify(connFactory, never()).postBatch(anyInt())
+
+        for (i in 0..3) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+        snapyrQueue.submitFlush()
+        verify(connFactory).postBatch(6)
+        assertThat(queueFile.size()).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun compressionThresholdCountsJsonBytes() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val connection = createTestConnection()
+        val connFactory = ServiceFacade.getConnectionFactory()
+        `when`(connFactory.postBatch(anyInt())).thenReturn(connection)
+        val record = ByteArrayOutputStream()
+        val jsonLength = Cartographer.INSTANCE.toBinary(
+            Cartographer.INSTANCE.fromJson(TRACK_PAYLOAD_JSON), record
+        ).toInt()
+        assertThat(record.size()).isLessThan(jsonLength)
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .config(BatchUploadQueue.Config().setGzip(true, 6, jsonLength))
+            .build()
+
+        // The binary record is smaller than the threshold, but the JSON it's uploaded as isn't.
+        payloadQueue.add(record.toByteArray())
+        snapyrQueue.submitFlush()
+        verify(connFactory).postBatch(6)
+        assertThat(queueFile.size()).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun disablesCompressionWhenRejected() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val connection = createTestConnection()
+        val compressedConnection = mock(WriteConnection::class.java)
+        `when`(compressedConnection.outputStream).thenReturn(mock(OutputStream::class.java))
+        `when`(compressedConnection.close()).thenThrow(
+            HTTPException(415, "Unsupported Media Type", "unsupported media type")
+        )
+        val connFactory = ServiceFacade.getConnectionFactory()
+        `when`(connFactory.postBatch(anyInt())).thenReturn(compressedConnection)
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .config(BatchUploadQueue.Config().setGzip(true, 6, 0))
+            .build()
+        for (i in 0..3) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+
+        // The rejected payloads are kept, and resent uncompressed.
+        snapyrQueue.submitFlush()
+        assertThat(queueFile.size()).isEqualTo(4)
+        snapyrQueue.submitFlush()
+        verify(connFactory, times(1)).postBatch(anyInt())
+        verify(connection.outputStream).write(
+            any(ByteArray::class.java), anyInt(), anyInt()
+        )
+        assertThat(queueFile.size()).isEqualTo(0)
+    }
+
+    private fun largePayload(): ByteArray {
+        // 15 of these fit in a batch.
+        return ("{\"type\":\"track\",\"event\":\"" + "x".repeat(30000) + "\"}").toByteArray()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun pipelinedFlushUploadsEveryBatch() {
+        val connection = createTestConnection()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .config(BatchUploadQueue.Config().setMaxInFlightBatches(2))
+            .build()
+        for (i in 0 until 40) {
+            payloadQueue.add(largePayload())
+        }
+
+        snapyrQueue.submitFlush()
+
+        verify(ServiceFacade.getConnectionFactory(), times(3)).postBatch()
+        verify(connection, times(3)).close()
+        assertThat(queueFile.size()).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun pipelinedFlushKeepsBatchesAfterAFailure() {
+        val connection = createTestConnection()
+        doNothing()
+            .doThrow(HTTPException(500, "Internal Server Error", "internal server error"))
+            .doNothing()
+            .`when`(connection).close()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .config(BatchUploadQueue.Config().setMaxInFlightBatches(3))
+            .build()
+        for (i in 0 until 40) {
+            payloadQueue.add(largePayload())
+        }
+
+        snapyrQueue.submitFlush()
+
+        // Only the first batch is acknowledged; the third was uploaded, but follows the failed
+        // second batch, so it is kept to be sent again.
+        verify(ServiceFacade.getConnectionFactory(), times(3)).postBatch()
+        assertThat(queueFile.size()).isEqualTo(25)
+    }
+
     @Test
     @Throws(IOException::class)
     fun serializationErrorSkipsAddingPayload() {
@@ -387,12 +609,12 @@ class snapyrQueueTest {
         // Serialized json is null.
         whenever(cartographer.toJson(any(Map::class.java))).thenReturn(null)
         snapyrQueue.performEnqueue(payload)
-        verify(payloadQueue, never()).add(any<Any>() as ByteArray?)
+        verify(payloadQueue, never()).add(any(ByteArray::class.java), anyInt(), anyInt())
 
         // Serialized json is empty.
         whenever(cartographer.toJson(any(Map::class.java))).thenReturn("")
         snapyrQueue.performEnqueue(payload)
-        verify(payloadQueue, never()).add(any<Any>() as ByteArray?)
+        verify(payloadQueue, never()).add(any(ByteArray::class.java), anyInt(), anyInt())
 
         // Serialized json is too large (> MAX_PAYLOAD_SIZE).
         val stringBuilder = StringBuilder()
@@ -401,7 +623,124 @@ class snapyrQueueTest {
         }
         whenever(cartographer.toJson(any(Map::class.java))).thenReturn(stringBuilder.toString())
         snapyrQueue.performEnqueue(payload)
-        verify(payloadQueue, never()).add(any<Any>() as ByteArray?)
+        verify(payloadQueue, never()).add(any(ByteArray::class.java), anyInt(), anyInt())
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun oversizedPayloadIsNotAdded() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val snapyrQueue = SnapyrBuilder().payloadQueue(payloadQueue).build()
+        val properties = mapOf("blob" to "a".repeat(BatchUploadQueue.MAX_PAYLOAD_SIZE))
+        val payload = Builder().event("event").userId("userId").properties(properties).build()
+
+        snapyrQueue.performEnqueue(payload)
+        assertThat(payloadQueue.size()).isEqualTo(0)
+
+        // The serialization buffer is reused for the next payload.
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        assertThat(payloadQueue.size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun priorityEventsAreUploadedRightAway() {
+        val connection = createTestConnection()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val priorityQueue = BatchQueue.PersistentQueue(QueueFile(File(folder.root, "priority")))
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .priorityQueue(priorityQueue)
+            .build()
+
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        verifyZeroInteractions(connection)
+
+        snapyrQueue.performEnqueue(Builder().event("Order Completed").userId("userId").build())
+        verify(connection.outputStream).write(any(ByteArray::class.java), anyInt(), anyInt())
+        assertThat(priorityQueue.size()).isEqualTo(0)
+        // Bulk payloads wait for their own flush.
+        assertThat(payloadQueue.size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun priorityEventsWaitForRetryAfter() {
+        val connection = createTestConnection()
+        doThrow(HTTPException(429, "Too Many Requests", "too many requests", 60_000))
+            .doNothing()
+            .`when`(connection).close()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val priorityQueue = BatchQueue.PersistentQueue(QueueFile(File(folder.root, "priority")))
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .priorityQueue(priorityQueue)
+            .build()
+
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        snapyrQueue.submitFlush()
+        verify(connection, times(1)).close()
+
+        // The server asked to wait, so priority events are held back too.
+        snapyrQueue.performEnqueue(Builder().event("Order Completed").userId("userId").build())
+        verify(connection, times(1)).close()
+        assertThat(priorityQueue.size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun priorityRetryAfterHoldsBackScheduledFlushes() {
+        val connection = createTestConnection()
+        doThrow(HTTPException(429, "Too Many Requests", "too many requests", 60_000))
+            .doNothing()
+            .`when`(connection).close()
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val priorityQueue = BatchQueue.PersistentQueue(QueueFile(File(folder.root, "priority")))
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .priorityQueue(priorityQueue)
+            .build()
+
+        snapyrQueue.performEnqueue(Builder().event("Order Completed").userId("userId").build())
+        verify(connection, times(1)).close()
+
+        // Only the priority lane was told to wait, but neither lane uploads until it has passed.
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        snapyrQueue.submitFlush()
+        verify(connection, times(1)).close()
+        assertThat(priorityQueue.size()).isEqualTo(1)
+        assertThat(payloadQueue.size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun fullQueueEvictsBulkPayloadsFirst() {
+        val payloadQueue = BatchQueue.PersistentQueue(queueFile)
+        val priorityFile = QueueFile(File(folder.root, "priority"))
+        val priorityQueue = BatchQueue.PersistentQueue(priorityFile)
+        val snapyrQueue = SnapyrBuilder()
+            .payloadQueue(payloadQueue)
+            .priorityQueue(priorityQueue)
+            .flushSize(BatchUploadQueue.MAX_QUEUE_SIZE + 1)
+            .build()
+        val bytes = TRACK_PAYLOAD_JSON.toByteArray()
+        priorityFile.add(bytes)
+        for (i in 1 until BatchUploadQueue.MAX_QUEUE_SIZE) {
+            queueFile.add(bytes)
+        }
+
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        assertThat(payloadQueue.size()).isEqualTo(BatchUploadQueue.MAX_QUEUE_SIZE - 1)
+        assertThat(priorityQueue.size()).isEqualTo(1)
+
+        // Priority payloads are only evicted once there are no bulk payloads left.
+        payloadQueue.remove(payloadQueue.size())
+        for (i in 1 until BatchUploadQueue.MAX_QUEUE_SIZE) {
+            priorityFile.add(bytes)
+        }
+        snapyrQueue.performEnqueue(TRACK_PAYLOAD)
+        assertThat(payloadQueue.size()).isEqualTo(1)
+        assertThat(priorityQueue.size()).isEqualTo(BatchUploadQueue.MAX_QUEUE_SIZE - 1)
     }
 
     @Test
@@ -489,6 +828,7 @@ class snapyrQueueTest {
 
     internal class SnapyrBuilder {
         var payloadQueue: BatchQueue? = null
+        var priorityQueue: BatchQueue? = null
         var context: Context? = null
         var cartographer: Cartographer? = null
         var integrations: Map<String, Boolean>? = null
@@ -496,6 +836,7 @@ class snapyrQueueTest {
         var flushSize = DEFAULT_FLUSH_QUEUE_SIZE
         var logger = with(Snapyr.LogLevel.NONE)
         var networkExecutor: ExecutorService? = null
+        var config = BatchUploadQueue.Config()
 
         fun SnapyrBuilder() {
             initMocks(this)
@@ -510,6 +851,11 @@ class snapyrQueueTest {
             return this
         }
 
+        fun priorityQueue(priorityQueue: BatchQueue): SnapyrBuilder {
+            this.priorityQueue = priorityQueue
+            return this
+        }
+
         fun context(context: Context): SnapyrBuilder {
             this.context = context
             return this
@@ -545,6 +891,11 @@ class snapyrQueueTest {
             return this
         }
 
+        fun config(config: BatchUploadQueue.Config): SnapyrBuilder {
+            this.config = config
+            return this
+        }
+
         fun build(): BatchUploadQueue {
             if (context == null) {
                 context = mockApplication()
@@ -573,7 +924,9 @@ class snapyrQueueTest {
                 context,
                 flushInterval.toLong(),
                 flushSize,
-                payloadQueue
+                payloadQueue,
+                priorityQueue,
+                config
             )
         }
     }
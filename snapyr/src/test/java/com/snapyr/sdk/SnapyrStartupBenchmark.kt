@@ -0,0 +1,97 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.TestUtils.grantPermission
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+/**
+ * Measures how long [Snapyr.Builder.build] blocks the calling thread, and how long it takes until
+ * the first event is enqueued, with and without [Snapyr.Builder.lazyInit]. Skipped unless run with
+ * `-Dsnapyr.benchmark=true`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class SnapyrStartupBenchmark {
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+        grantPermission(RuntimeEnvironment.application, android.Manifest.permission.INTERNET)
+    }
+
+    @Test
+    fun build() {
+        repeat(WARMUP) { measure(false) }
+        repeat(WARMUP) { measure(true) }
+
+        val eager = (0 until ROUNDS).map { measure(false) }
+        val lazy = (0 until ROUNDS).map { measure(true) }
+
+        println(
+            "SnapyrStartupBenchmark: build() %.0f us, ready %.0f us"
+                .format(eager.map { it.first }.average(), eager.map { it.second }.average())
+        )
+        println(
+            "SnapyrStartupBenchmark: lazy build() %.0f us, ready %.0f us"
+                .format(lazy.map { it.first }.average(), lazy.map { it.second }.average())
+        )
+    }
+
+    /**
+     * Returns the microseconds [Snapyr.Builder.build] took, and the microseconds until a track
+     * call made right after it was enqueued.
+     */
+    private fun measure(lazyInit: Boolean): Pair<Double, Double> {
+        val executor: ExecutorService = Executors.newSingleThreadExecutor()
+        val start = System.nanoTime()
+        val snapyr = Snapyr.Builder(RuntimeEnvironment.application, "foo")
+            .tag("startup-benchmark")
+            .executor(executor)
+            .experimentalUseNewLifecycleMethods(false)
+            .lazyInit(lazyInit)
+            .build()
+        val built = System.nanoTime()
+        snapyr.track("Application Opened")
+        executor.submit {}.get(10, TimeUnit.SECONDS)
+        val ready = System.nanoTime()
+        snapyr.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+        return Pair((built - start) / 1000.0, (ready - start) / 1000.0)
+    }
+
+    companion object {
+        private const val WARMUP = 5
+        private const val ROUNDS = 20
+    }
+}
@@ -50,8 +50,10 @@ import com.snapyr.sdk.ProjectSettings.create
 import com.snapyr.sdk.TestUtils.NoDescriptionMatcher
 import com.snapyr.sdk.TestUtils.grantPermission
 import com.snapyr.sdk.TestUtils.mockApplication
+import com.snapyr.sdk.http.BatchUploadQueue
 import com.snapyr.sdk.http.ConnectionFactory
 import com.snapyr.sdk.http.SettingsRequest
+import com.snapyr.sdk.internal.BasePayload
 import com.snapyr.sdk.internal.TrackPayload
 import com.snapyr.sdk.internal.Utils.AnalyticsNetworkExecutorService
 import com.snapyr.sdk.internal.Utils.DEFAULT_FLUSH_INTERVAL
@@ -65,6 +67,8 @@ import java.io.IOException
 import java.io.OutputStream
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
@@ -131,7 +135,10 @@ open class SnapyrTest {
     private lateinit var traits: Traits
     private lateinit var snapyrContext: SnapyrContext
 
-    fun makeAnalytics(): Snapyr {
+    fun makeAnalytics(
+        lazyInit: Boolean = false,
+        executor: ExecutorService = analyticsExecutor
+    ): Snapyr {
         val created = Snapyr(
             application,
             null,
@@ -147,9 +154,9 @@ open class SnapyrTest {
             ConnectionFactory.Environment.DEV,
             DEFAULT_FLUSH_QUEUE_SIZE,
             DEFAULT_FLUSH_INTERVAL.toLong(),
-            analyticsExecutor,
+            BatchUploadQueue.Config(),
+            executor,
             true,
-            CountDownLatch(0),
             false,
             true,
             optOut,
@@ -160,7 +167,9 @@ open class SnapyrTest {
             true,
             false,
             null,
-            false
+            false,
+            lazyInit,
+            EventThrottle.Limits.NONE
         )
         connectionFactory = `mock`(ConnectionFactory::class.java)
         ServiceFacade.getInstance().setConnectionFactory(connectionFactory)
@@ -209,6 +218,48 @@ open class SnapyrTest {
             .commit()
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun lazyInitOpensQueueOnAnalyticsThread() {
+        val executor = Executors.newSingleThreadExecutor()
+        val started = CountDownLatch(1)
+        executor.submit { started.await() }
+
+        val analytics = makeAnalytics(true, executor)
+        assertThat(analytics.sendQueue).isNull()
+
+        started.countDown()
+        executor.submit {}.get(10, TimeUnit.SECONDS)
+        assertThat(analytics.sendQueue).isNotNull
+        executor.shutdown()
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun identifyAppliesOnlyToEventsRecordedAfterIt() {
+        val executor = Executors.newSingleThreadExecutor()
+        val analytics = makeAnalytics(false, executor)
+        val sendQueue = mock(BatchUploadQueue::class.java)
+        executor.submit { analytics.sendQueue = sendQueue }.get(10, TimeUnit.SECONDS)
+        val started = CountDownLatch(1)
+        executor.submit { started.await() }
+
+        // The drain scheduled for A is still pending when identify and B are recorded.
+        analytics.track("A")
+        analytics.identify("userId")
+        analytics.track("B")
+        started.countDown()
+        executor.submit {}.get(10, TimeUnit.SECONDS)
+
+        val payloads = ArgumentCaptor.forClass(BasePayload::class.java)
+        verify(sendQueue, Mockito.atLeast(3)).performEnqueue(payloads.capture())
+        val tracks = payloads.allValues.filterIsInstance<TrackPayload>()
+            .associateBy { it.event() }
+        assertThat(tracks["A"]!!.userId()).isNull()
+        assertThat(tracks["B"]!!.userId()).isEqualTo("userId")
+        executor.shutdown()
+    }
+
     @Test
     fun invalidIdentity() {
         try {
@@ -523,9 +574,9 @@ open class SnapyrTest {
             ConnectionFactory.Environment.DEV,
             DEFAULT_FLUSH_QUEUE_SIZE,
             DEFAULT_FLUSH_INTERVAL.toLong(),
+            BatchUploadQueue.Config(),
             analyticsExecutor,
             true,
-            CountDownLatch(0),
             false,
             false,
             optOut,
@@ -536,7 +587,9 @@ open class SnapyrTest {
             true,
             false,
             null,
-            false
+            false,
+            false,
+            EventThrottle.Limits.NONE
         )
 
         callback.get().onCreate(mockLifecycleOwner)
@@ -620,9 +673,9 @@ open class SnapyrTest {
             ConnectionFactory.Environment.DEV,
             DEFAULT_FLUSH_QUEUE_SIZE,
             DEFAULT_FLUSH_INTERVAL.toLong(),
+            BatchUploadQueue.Config(),
             analyticsExecutor,
             true,
-            CountDownLatch(0),
             false,
             true,
             optOut,
@@ -633,7 +686,9 @@ open class SnapyrTest {
             true,
             false,
             null,
-            false
+            false,
+            false,
+            EventThrottle.Limits.NONE
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -688,9 +743,9 @@ open class SnapyrTest {
             ConnectionFactory.Environment.DEV,
             DEFAULT_FLUSH_QUEUE_SIZE,
             DEFAULT_FLUSH_INTERVAL.toLong(),
+            BatchUploadQueue.Config(),
             analyticsExecutor,
             true,
-            CountDownLatch(0),
             false,
             true,
             optOut,
@@ -701,7 +756,9 @@ open class SnapyrTest {
             true,
             false,
             null,
-            false
+            false,
+            false,
+            EventThrottle.Limits.NONE
         )
         Snapyr.setSingletonInstance(analytics)
 
@@ -987,9 +1044,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 true,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1000,7 +1057,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             assertThat(analytics.shutdown).isFalse
@@ -1057,9 +1116,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 false,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1070,7 +1129,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             assertThat(analytics.shutdown).isFalse
@@ -1129,9 +1190,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 true,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1142,7 +1203,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             assertThat(analytics.projectSettings).hasSize(3)
@@ -1174,9 +1237,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 true,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1187,7 +1250,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             assertThat(analytics.projectSettings).hasSize(3)
@@ -1230,9 +1295,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 true,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1243,7 +1308,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             assertThat(analytics.projectSettings).hasSize(3)
@@ -1288,9 +1355,9 @@ open class SnapyrTest {
                 ConnectionFactory.Environment.DEV,
                 DEFAULT_FLUSH_QUEUE_SIZE,
                 DEFAULT_FLUSH_INTERVAL.toLong(),
+                BatchUploadQueue.Config(),
                 analyticsExecutor,
                 true,
-                CountDownLatch(0),
                 false,
                 false,
                 optOut,
@@ -1301,7 +1368,9 @@ open class SnapyrTest {
                 true,
                 false,
                 null,
-                false
+                false,
+                false,
+                EventThrottle.Limits.NONE
             )
 
             analytics.track("event")
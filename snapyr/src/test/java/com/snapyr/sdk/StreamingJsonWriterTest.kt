@@ -0,0 +1,171 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.services.StreamingJsonWriter
+import java.io.IOException
+import java.io.StringWriter
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
+import org.junit.Test
+
+class StreamingJsonWriterTest {
+
+    @Test
+    @Throws(IOException::class)
+    fun escapesStrings() {
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.beginArray()
+                .value("quote\" backslash\\ tab\t newline\n return\r")
+                .value("feed\u000c backspace\b nul\u0000 separators\u2028\u2029 é")
+                .endArray()
+        }
+
+        assertThat(writer.toString()).isEqualTo(
+            "[\"quote\\\" backslash\\\\ tab\\t newline\\n return\\r\"," +
+                "\"feed\\f backspace\\b nul\\u0000 separators\\u2028\\u2029 é\"]"
+        )
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writesNumbers() {
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.beginArray()
+                .value(0L)
+                .value(-42L)
+                .value(Long.MIN_VALUE)
+                .value(Long.MAX_VALUE)
+                .value(23f)
+                .value(Math.PI)
+                .value(12 as Number)
+                .value(null as Number?)
+                .endArray()
+        }
+
+        assertThat(writer.toString()).isEqualTo(
+            "[0,-42,-9223372036854775808,9223372036854775807,23.0,3.141592653589793,12,null]"
+        )
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun rejectsNonFiniteNumbersUnlessLenient() {
+        try {
+            StreamingJsonWriter(StringWriter()).beginArray().value(Double.NaN)
+            fail("NaN should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("Numeric values must be finite, but was NaN")
+        }
+
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.setLenient(true)
+            it.beginArray().value(Double.POSITIVE_INFINITY).endArray()
+        }
+        assertThat(writer.toString()).isEqualTo("[Infinity]")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writesRawJsonValues() {
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.beginObject()
+                .name("batch")
+                .beginArray()
+                .jsonValue("{\"type\":\"track\"}")
+                .jsonValue("{\"type\":\"screen\"}")
+                .endArray()
+                .endObject()
+        }
+
+        assertThat(writer.toString())
+            .isEqualTo("{\"batch\":[{\"type\":\"track\"},{\"type\":\"screen\"}]}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun indentsNestedValues() {
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.setIndent("  ")
+            it.beginObject()
+                .name("event").value("foo")
+                .name("properties").beginObject().endObject()
+                .name("list").beginArray().value(true).endArray()
+                .endObject()
+        }
+
+        assertThat(writer.toString()).isEqualTo(
+            """
+                |{
+                |  "event": "foo",
+                |  "properties": {},
+                |  "list": [
+                |    true
+                |  ]
+                |}
+            """.trimMargin()
+        )
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writesLongStrings() {
+        val value = "abc\"".repeat(1000)
+        val writer = StringWriter()
+        StreamingJsonWriter(writer).use {
+            it.beginObject().name(value).value(value).endObject()
+        }
+
+        val escaped = "\"" + "abc\\\"".repeat(1000) + "\""
+        assertThat(writer.toString()).isEqualTo("{$escaped:$escaped}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun incompleteDocumentThrowsOnClose() {
+        val writer = StreamingJsonWriter(StringWriter())
+        writer.beginObject().name("batch").beginArray()
+        try {
+            writer.close()
+            fail("Incomplete document should throw exception.")
+        } catch (expected: IOException) {
+            assertThat(expected).hasMessage("Incomplete document")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun nameOutsideObjectThrowsException() {
+        try {
+            StreamingJsonWriter(StringWriter()).beginArray().name("foo")
+            fail("name outside of an object should throw exception.")
+        } catch (expected: IllegalStateException) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk
+
+import com.snapyr.sdk.services.Cartographer
+import java.util.Random
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class TrackingPlanTest {
+
+    private fun compile(trackingPlanJson: String): TrackingPlan {
+        val settings = Cartographer.INSTANCE.fromJson("{\"plan\":{\"track\":$trackingPlanJson}}")
+        return TrackingPlan.compile(ProjectSettings.create(settings))
+    }
+
+    @Test
+    fun emptyPlanKeepsEverything() {
+        assertThat(TrackingPlan.compile(null)).isSameAs(TrackingPlan.EMPTY)
+        assertThat(TrackingPlan.compile(ProjectSettings.create(LinkedHashMap<String, Any>())))
+            .isSameAs(TrackingPlan.EMPTY)
+        assertThat(compile("{\"foo\":{\"enabled\":true}}")).isSameAs(TrackingPlan.EMPTY)
+
+        val properties = mapOf<String, Any>("a" to 1)
+        assertThat(TrackingPlan.EMPTY.apply("foo", properties)).isSameAs(properties)
+    }
+
+    @Test
+    fun dropsDisabledEvents() {
+        val plan = compile("{\"foo\":{\"enabled\":false},\"bar\":{\"enabled\":true}}")
+        val properties = mapOf<String, Any>("a" to 1)
+
+        assertThat(plan.apply("foo", properties)).isNull()
+        assertThat(plan.apply("bar", properties)).isSameAs(properties)
+        assertThat(plan.apply("baz", properties)).isSameAs(properties)
+    }
+
+    @Test
+    fun defaultRuleAppliesToUnplannedEvents() {
+        val plan = compile("{\"__default\":{\"enabled\":false},\"bar\":{\"enabled\":true}}")
+        val properties = mapOf<String, Any>("a" to 1)
+
+        assertThat(plan.apply("foo", properties)).isNull()
+        assertThat(plan.apply("bar", properties)).isSameAs(properties)
+        // Events tracked by the SDK itself are only dropped if the plan names them.
+        assertThat(plan.apply("snapyr.hidden.fcmTokenSet", properties)).isSameAs(properties)
+    }
+
+    @Test
+    fun stripsDisallowedProperties() {
+        val plan = compile("{\"foo\":{\"allowedProperties\":[\"a\",\"c\"]}}")
+        val allowed = mapOf<String, Any>("a" to 1, "c" to 3)
+        assertThat(plan.apply("foo", allowed)).isSameAs(allowed)
+
+        val properties = linkedMapOf<String, Any>("a" to 1, "b" to 2, "c" to 3)
+        val trimmed = plan.apply("foo", properties)
+        assertThat(trimmed).isEqualTo(mapOf<String, Any>("a" to 1, "c" to 3))
+        assertThat(trimmed!!.keys).containsExactly("a", "c")
+        assertThat(properties).hasSize(3)
+    }
+
+    @Test
+    fun samplesEvents() {
+        assertThat(compile("{\"foo\":{\"sampleRate\":0}}").apply("foo", null)).isNull()
+
+        val rules = mapOf("foo" to TrackingPlan.Rule(true, 0.25, null))
+        val random = object : Random() {
+            var next = 0.0
+            override fun nextDouble(): Double = next
+        }
+        val plan = TrackingPlan(rules, null, random)
+        val properties = mapOf<String, Any>("a" to 1)
+
+        random.next = 0.2
+        assertThat(plan.apply("foo", properties)).isSameAs(properties)
+        random.next = 0.3
+        assertThat(plan.apply("foo", properties)).isNull()
+    }
+}
@@ -23,6 +23,7 @@
  */
 package com.snapyr.sdk
 
+import com.snapyr.sdk.internal.Utils.getSnapyrSharedPreferences
 import com.snapyr.sdk.services.Cartographer
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.Before
@@ -78,4 +79,27 @@ class ValueMapCacheTest {
             )
         assertThat(traitsCacheDuplicate.isSet).isTrue
     }
+
+    @Test
+    @Throws(Exception::class)
+    fun readsValueSavedInPreferences() {
+        val preferences = getSnapyrSharedPreferences(RuntimeEnvironment.application, "tag")
+        preferences.edit().putString("traits-cache-test", """{"foo":"bar"}""").commit()
+        assertThat(newCache().get()).containsEntry("foo", "bar")
+
+        val cache = newCache()
+        val traits = cache.get().putValue("baz", "qux")
+        cache.set(traits)
+        assertThat(preferences.contains("traits-cache-test")).isFalse
+        assertThat(newCache().get()).isEqualTo(traits)
+    }
+
+    private fun newCache() =
+        ValueMap.Cache<Traits>(
+            RuntimeEnvironment.application,
+            cartographer,
+            "traits-cache-test",
+            "tag",
+            Traits::class.java
+        )
 }
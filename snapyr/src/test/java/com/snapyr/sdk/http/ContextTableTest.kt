@@ -0,0 +1,155 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http
+
+import com.snapyr.sdk.services.BinaryJson
+import com.snapyr.sdk.services.Cartographer
+import com.snapyr.sdk.services.Crypto
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class ContextTableTest {
+
+    @Rule
+    @JvmField
+    val folder = TemporaryFolder()
+
+    private val cartographer = Cartographer.INSTANCE
+
+    @Test
+    @Throws(IOException::class)
+    fun payloadsShareOneContext() {
+        val queue = BatchQueue.MemoryQueue()
+        val first = encode(payload("1", "wifi"), queue.contexts())
+        val second = encode(payload("2", "wifi"), queue.contexts())
+        queue.add(first)
+        queue.add(second)
+
+        val payloads = cartographer.toJson(payload("1", "wifi")) + "," +
+            cartographer.toJson(payload("2", "wifi"))
+        assertThat(queue.contexts().size()).isEqualTo(1)
+        assertThat(second.size).isLessThan(encode(payload("2", "wifi"), null).size)
+        assertThat(upload(queue)).startsWith("{\"batch\":[$payloads]")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun contextsAreReadBackFromFile() {
+        val file = folder.newFile()
+        file.delete()
+        val record = encode(payload("1", "cellular"), ContextTable(file))
+
+        val reopened = ContextTable(file)
+        val transcoder = BinaryJson.Transcoder()
+        val length = transcoder.transcode(record, 0, record.size, reopened)
+
+        assertThat(reopened.size()).isEqualTo(1)
+        assertThat(String(transcoder.bytes(), 0, length, Charsets.UTF_8))
+            .isEqualTo(cartographer.toJson(payload("1", "cellular")))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun missingContextIsWrittenEmpty() {
+        val record = encode(payload("1", "wifi"), ContextTable())
+        val transcoder = BinaryJson.Transcoder()
+        val length = transcoder.transcode(record, 0, record.size, ContextTable())
+
+        assertThat(String(transcoder.bytes(), 0, length, Charsets.UTF_8))
+            .contains("\"context\":{},")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun emptyQueueDropsContextsNotSharedSinceLastPrune() {
+        val file = folder.newFile()
+        file.delete()
+        val contexts = ContextTable(file)
+        val queue = BatchQueue.PersistentQueue(QueueFile(folder.newFile()), 0, contexts)
+        queue.add(encode(payload("1", "wifi"), contexts))
+        queue.add(encode(payload("2", "cellular"), contexts))
+        queue.remove(2)
+        // Both contexts were shared since the queue was created, so they stay for now.
+        assertThat(contexts.size()).isEqualTo(2)
+
+        queue.add(encode(payload("3", "wifi"), contexts))
+        queue.remove(1)
+
+        assertThat(contexts.size()).isEqualTo(1)
+        assertThat(ContextTable(file).size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun fullTableKeepsContextsInPlace() {
+        val contexts = ContextTable()
+        for (i in 0 until ContextTable.MAX_ENTRIES) {
+            encode(payload("1", "network $i"), contexts)
+        }
+        val record = encode(payload("2", "wifi"), contexts)
+        val transcoder = BinaryJson.Transcoder()
+        val length = transcoder.transcode(record, 0, record.size)
+
+        assertThat(contexts.size()).isEqualTo(ContextTable.MAX_ENTRIES)
+        assertThat(String(transcoder.bytes(), 0, length, Charsets.UTF_8))
+            .isEqualTo(cartographer.toJson(payload("2", "wifi")))
+    }
+
+    private fun encode(payload: Map<String, Any>, contexts: ContextTable?): ByteArray {
+        val out = ByteArrayOutputStream()
+        cartographer.toBinary(payload, out, contexts)
+        return out.toByteArray()
+    }
+
+    private fun upload(queue: BatchQueue): String {
+        val out = ByteArrayOutputStream()
+        BatchUploadRequest.execute(queue, out, Crypto.none())
+        return out.toString("UTF-8")
+    }
+
+    private fun payload(messageId: String, network: String): Map<String, Any> {
+        val context = linkedMapOf<String, Any>(
+            "app" to linkedMapOf("name" to "Test", "version" to "1.0"),
+            "device" to linkedMapOf("id" to "device", "model" to "Pixel"),
+            "network" to linkedMapOf(network to true),
+            "traits" to linkedMapOf("anonymousId" to "anonymous")
+        )
+        return linkedMapOf(
+            "messageId" to messageId,
+            "type" to "track",
+            "event" to "Viewed",
+            "context" to context,
+            "properties" to linkedMapOf("value" to 1)
+        )
+    }
+}
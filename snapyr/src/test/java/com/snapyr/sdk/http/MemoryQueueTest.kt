@@ -0,0 +1,103 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http
+
+import java.io.IOException
+import java.io.InputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class MemoryQueueTest {
+
+    @Test
+    @Throws(IOException::class)
+    fun addEvictsEldestWhenFull() {
+        val queue = BatchQueue.MemoryQueue(3)
+        for (i in 0 until 5) {
+            queue.add(byteArrayOf(i.toByte()))
+        }
+
+        assertThat(queue.isBounded).isTrue
+        assertThat(queue.size()).isEqualTo(3)
+        assertThat(readQueue(queue)).containsExactly(
+            byteArrayOf(2), byteArrayOf(3), byteArrayOf(4)
+        )
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun removeAccountsForElementsEvictedDuringVisit() {
+        val queue = BatchQueue.MemoryQueue(3)
+        for (i in 0 until 3) {
+            queue.add(byteArrayOf(i.toByte()))
+        }
+
+        // Visit everything, as an upload would, then evict two of the visited elements.
+        assertThat(readQueue(queue)).hasSize(3)
+        queue.add(byteArrayOf(3))
+        queue.add(byteArrayOf(4))
+
+        // Removing the visited elements must not remove the ones added since.
+        queue.remove(3)
+        assertThat(readQueue(queue)).containsExactly(byteArrayOf(3), byteArrayOf(4))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun growsAndWrapsAroundSlab() {
+        val queue = BatchQueue.MemoryQueue(10)
+        val expected = ArrayList<ByteArray>()
+        for (i in 0 until 40) {
+            val data = ByteArray(1000) { (i + it).toByte() }
+            queue.add(data)
+            expected.add(data)
+            if (queue.size() == 10) {
+                queue.remove(3)
+                expected.subList(0, 3).clear()
+            }
+        }
+
+        assertThat(queue.size()).isEqualTo(expected.size)
+        assertThat(readQueue(queue)).containsExactlyElementsOf(expected)
+    }
+
+    @Throws(IOException::class)
+    private fun readQueue(queue: BatchQueue): List<ByteArray> {
+        val seen: MutableList<ByteArray> = ArrayList()
+        queue.forEach(
+            object : BatchQueue.ElementVisitor {
+                @Throws(IOException::class)
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    var read = 0
+                    while (read < length) {
+                        read += input.read(data, read, length - read)
+                    }
+                    seen.add(data)
+                    return true
+                }
+            })
+        return seen
+    }
+}
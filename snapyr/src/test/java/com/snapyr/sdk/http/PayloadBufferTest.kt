@@ -0,0 +1,74 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http
+
+import java.io.IOException
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
+import org.junit.Test
+
+class PayloadBufferTest {
+
+    @Test
+    @Throws(IOException::class)
+    fun writeFailsOnceLimitIsExceeded() {
+        val buffer = PayloadBuffer(16)
+        buffer.write("a".repeat(16).toByteArray())
+        assertThat(buffer.size()).isEqualTo(16)
+
+        try {
+            buffer.write("a".toByteArray())
+            fail("writing past the limit should throw exception.")
+        } catch (expected: PayloadBuffer.PayloadTooLargeException) {
+            assertThat(expected).hasMessage("Payload exceeds 16 bytes.")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun resetReusesBuffer() {
+        val buffer = PayloadBuffer(1024)
+        buffer.write("first payload".toByteArray())
+        val bytes = buffer.bytes()
+
+        buffer.reset()
+        buffer.write("second".toByteArray())
+        assertThat(buffer.bytes()).isSameAs(bytes)
+        assertThat(String(buffer.bytes(), 0, buffer.size(), Charsets.UTF_8)).isEqualTo("second")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun asRecordLeavesRoomUpToLimit() {
+        val buffer = PayloadBuffer(1024)
+        buffer.write("payload".toByteArray())
+
+        val record = buffer.asRecord(100)
+        assertThat(record.remaining()).isEqualTo(7)
+        assertThat(record.capacity() - record.limit()).isGreaterThanOrEqualTo(100)
+
+        buffer.asRecord(2048)
+        assertThat(buffer.bytes().size).isEqualTo(1024)
+    }
+}
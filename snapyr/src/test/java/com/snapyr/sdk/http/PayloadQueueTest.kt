@@ -41,18 +41,30 @@ class BatchQueueTest {
     private enum class QueueFactory {
         FILE {
             @Throws(IOException::class)
-            override fun create(queueFile: QueueFile?): BatchQueue {
-                return BatchQueue.PersistentQueue(queueFile)
+            override fun create(file: File): BatchQueue {
+                return BatchQueue.PersistentQueue(QueueFile(file))
+            }
+        },
+        GROUPED {
+            @Throws(IOException::class)
+            override fun create(file: File): BatchQueue {
+                return BatchQueue.PersistentQueue(QueueFile(file), 1024)
+            }
+        },
+        MAPPED {
+            @Throws(IOException::class)
+            override fun create(file: File): BatchQueue {
+                return BatchQueue.PersistentQueue(QueueFile(file, true))
             }
         },
         MEMORY {
-            override fun create(queueFile: QueueFile?): BatchQueue {
+            override fun create(file: File): BatchQueue {
                 return BatchQueue.MemoryQueue()
             }
         };
 
         @Throws(IOException::class)
-        abstract fun create(queueFile: QueueFile?): BatchQueue?
+        abstract fun create(file: File): BatchQueue?
     }
 
     @Rule
@@ -68,9 +80,8 @@ class BatchQueueTest {
     fun setUp() {
         val parent = folder.root
         val file = File(parent, "payload-queue")
-        val queueFile = QueueFile(file)
 
-        queue = factory.create(queueFile)!!
+        queue = factory.create(file)!!
         queue.add(bytes("one"))
         queue.add(bytes("two"))
         queue.add(bytes("three"))
@@ -107,6 +118,15 @@ class BatchQueueTest {
         assertThat(seen).containsExactly(bytes("three"))
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun commitKeepsElements() {
+        queue.commit()
+        assertThat(queue.size()).isEqualTo(3)
+        assertThat(readQueue(queue.size() + 1))
+            .containsExactly(bytes("one"), bytes("two"), bytes("three"))
+    }
+
     private fun bytes(s: String): ByteArray {
         return ByteString.encodeUtf8(s).toByteArray()
     }
@@ -27,6 +27,7 @@ import com.snapyr.sdk.http.QueueFile.Element
 import com.snapyr.sdk.http.QueueFile.HEADER_LENGTH
 import java.io.ByteArrayOutputStream
 import java.io.File
+import java.io.FilterInputStream
 import java.io.IOException
 import java.io.RandomAccessFile
 import java.util.LinkedList
@@ -463,6 +464,158 @@ class QueueFileTest {
         queue.close()
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testAddGroup() {
+        var queue = QueueFile(file)
+        queue.add(values[1])
+        val group = QueueFile.ElementGroup(16)
+        for (i in 2 until 6) {
+            group.add(values[i], 0, values[i]!!.size)
+        }
+        queue.add(group)
+        assertThat(queue.size()).isEqualTo(5)
+        assertThat(group.size()).isEqualTo(4)
+        queue.close()
+
+        // The group is visible once the file is reopened, in the order it was staged.
+        queue = QueueFile(file)
+        for (i in 1 until 6) {
+            assertThat(queue.peek()).isEqualTo(values[i])
+            queue.remove()
+        }
+        assertThat(queue.isEmpty).isTrue
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testAddGroupToEmptyQueue() {
+        val queue = QueueFile(file)
+        val group = QueueFile.ElementGroup(16)
+        group.add(values[10], 0, values[10]!!.size)
+        group.add(values[20], 0, values[20]!!.size)
+        queue.add(group)
+
+        assertThat(queue.peek()).isEqualTo(values[10])
+        queue.remove()
+        assertThat(queue.peek()).isEqualTo(values[20])
+        queue.remove()
+        assertThat(queue.isEmpty).isTrue
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testAddEmptyGroupDoesNothing() {
+        val queue = QueueFile(file)
+        queue.add(QueueFile.ElementGroup(16))
+        assertThat(queue.isEmpty).isTrue
+        assertThat(queue.fileLength).isEqualTo(4096)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testAddGroupSplitExpansion() {
+        val expected: Queue<ByteArray> = LinkedList()
+        val queue = QueueFile(file)
+
+        for (i in 0 until 80) {
+            expected.add(values[i])
+            queue.add(values[i])
+        }
+
+        // Remove all but 1, so the next group starts near the end of the ring buffer.
+        for (i in 1 until 80) {
+            assertThat(queue.peek()).isEqualTo(expected.remove())
+            queue.remove()
+        }
+
+        // This group wraps around and forces an expansion.
+        val group = QueueFile.ElementGroup(16)
+        for (i in 0 until N) {
+            expected.add(values[i])
+            group.add(values[i], 0, values[i]!!.size)
+        }
+        queue.add(group)
+        group.clear()
+        assertThat(group.size()).isEqualTo(0)
+        assertThat(group.byteCount()).isEqualTo(0)
+
+        while (!expected.isEmpty()) {
+            assertThat(queue.peek()).isEqualTo(expected.remove())
+            queue.remove()
+        }
+        queue.close()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testMappedQueueReadsExistingFile() {
+        // Files written before the queue was memory mapped must be readable once it is.
+        var queue = QueueFile(file)
+        for (i in 0 until 10) {
+            queue.add(values[i])
+        }
+        queue.close()
+
+        queue = QueueFile(file, true)
+        assertThat(queue.size()).isEqualTo(10)
+        for (i in 0 until 10) {
+            assertThat(queue.peek()).isEqualTo(values[i])
+            queue.remove()
+        }
+        queue.close()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testFileWrittenByMappedQueueIsReadable() {
+        var queue = QueueFile(file, true)
+        for (i in 0 until 10) {
+            queue.add(values[i])
+        }
+        queue.close()
+
+        queue = QueueFile(file)
+        assertThat(queue.size()).isEqualTo(10)
+        for (i in 0 until 10) {
+            assertThat(queue.peek()).isEqualTo(values[i])
+            queue.remove()
+        }
+        queue.close()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testMappedQueueSplitExpansion() {
+        val expected: Queue<ByteArray> = LinkedList()
+        var queue = QueueFile(file, true)
+
+        for (i in 0 until 80) {
+            expected.add(values[i])
+            queue.add(values[i])
+        }
+
+        // Remove all but 1.
+        for (i in 1 until 80) {
+            assertThat(queue.peek()).isEqualTo(expected.remove())
+            queue.remove()
+        }
+
+        // This should wrap around before expanding, and remap the grown file.
+        for (i in 0 until N) {
+            expected.add(values[i])
+            queue.add(values[i])
+        }
+        queue.close()
+
+        queue = QueueFile(file, true)
+        while (!expected.isEmpty()) {
+            assertThat(queue.peek()).isEqualTo(expected.remove())
+            queue.remove()
+        }
+        queue.close()
+    }
+
     @Test
     @Throws(IOException::class)
     fun testFailedAdd() {
@@ -626,16 +779,16 @@ class QueueFileTest {
                 var count: Int
                 while (input.read(buffer).also { count = it } != -1) {
                     if (count == 0) {
-                        // In the past, the ElementInputStream.read(byte[], int, int) method would return 0
-                        // when no more bytes were available for reading. This test detects that error.
+                        // In the past, QueueFile's element stream returned 0 from
+                        // read(byte[], int, int) when no more bytes were available for reading,
+                        // where BatchQueue.ElementInputStream returns -1. This test detects that
+                        // error.
                         //
-                        // Note: 0 is a valid return value for InputStream.read(byte[], int, int), which
-                        // happens
+                        // Note: 0 is a valid return value for InputStream.read(byte[], int, int)
                         // when the passed length is zero. We could trigger that through
-                        // InputStream.read(byte[])
-                        // by passing a zero-length buffer. However, since we won't do that during this
-                        // test,
-                        // we can safely assume that a return value of 0 indicates the past error in logic.
+                        // InputStream.read(byte[]) by passing a zero-length buffer. However, since
+                        // we won't do that during this test, we can safely assume that a return
+                        // value of 0 indicates the past error in logic.
                         Assert.fail("This test should never receive a result of 0 from InputStream.read(byte[])")
                     }
                     baos.write(buffer, 0, count)
@@ -648,6 +801,39 @@ class QueueFileTest {
         assertThat(baos.toByteArray()).isEqualTo(byteArrayOf(1, 2, 3, 4, 5))
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testForEachVisitorCopiesShortReads() {
+        val queueFile = QueueFile(file)
+        // Larger than the buffer ElementInputStream.copy goes through.
+        val a = ByteArray(20000) { it.toByte() }
+        val b = byteArrayOf(1, 2, 3)
+        queueFile.add(a)
+        queueFile.add(b)
+
+        val direct = ByteArrayOutputStream()
+        val wrapped = ByteArrayOutputStream()
+        var first = true
+        val elementVisitor = BatchQueue.ElementVisitor { input, _ ->
+            if (first) {
+                // Like a decrypting stream, hands out at most 7 bytes per read.
+                val shortReads = object : FilterInputStream(input) {
+                    override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+                        return super.read(buffer, offset, minOf(length, 7))
+                    }
+                }
+                BatchQueue.ElementInputStream.copy(shortReads, wrapped)
+            } else {
+                BatchQueue.ElementInputStream.copy(input, direct)
+            }
+            first = false
+            true
+        }
+        assertThat(queueFile.forEach(elementVisitor)).isEqualTo(2)
+        assertThat(wrapped.toByteArray()).isEqualTo(a)
+        assertThat(direct.toByteArray()).isEqualTo(b)
+    }
+
     @Test
     @Throws(IOException::class)
     fun testForEachCanAbortEarly() {
@@ -675,6 +861,82 @@ class QueueFileTest {
         assertThat(iteration.get()).isEqualTo(1)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun removeWithCursorDoesNotReadRemovedHeaders() {
+        val queueFile = QueueFile(file)
+        for (i in 0 until 10) {
+            queueFile.add(byteArrayOf(i.toByte(), i.toByte()))
+        }
+        val cursor = BatchQueue.Cursor()
+        val visited = AtomicInteger()
+        queueFile.forEach(BatchQueue.ElementVisitor { _, _ -> visited.getAndIncrement() < 4 }, cursor)
+        assertThat(cursor.count()).isEqualTo(4)
+
+        // Corrupt the headers of the 2nd to 4th elements. Only the cursor can skip past them.
+        for (i in 1 until 4) {
+            queueFile.raf.seek((HEADER_LENGTH + i * (Element.HEADER_LENGTH + 2)).toLong())
+            queueFile.raf.writeInt(Int.MAX_VALUE)
+        }
+        queueFile.remove(4, cursor)
+
+        assertThat(queueFile.size()).isEqualTo(6)
+        assertThat(queueFile.peek()).isEqualTo(byteArrayOf(4, 4))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun removeWithCursorAfterEarlierRemovals() {
+        val queueFile = QueueFile(file)
+        for (i in 0 until 10) {
+            queueFile.add(byteArrayOf(i.toByte()))
+        }
+        // A batch of 3 elements, after 2 elements that belong to another batch.
+        val cursor = BatchQueue.Cursor()
+        val visited = AtomicInteger()
+        queueFile.forEach(BatchQueue.ElementVisitor { _, _ -> visited.getAndIncrement() < 5 }, cursor)
+
+        queueFile.remove(2)
+        queueFile.add(byteArrayOf(10))
+        queueFile.remove(3, cursor)
+        assertThat(queueFile.peek()).isEqualTo(byteArrayOf(5))
+
+        // The cursor no longer matches the queue, so this removes the eldest element instead.
+        queueFile.remove(1, cursor)
+        assertThat(queueFile.peek()).isEqualTo(byteArrayOf(6))
+        assertThat(queueFile.size()).isEqualTo(5)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun lazyEraseLeavesRemovedDataForCompaction() {
+        val queue = QueueFile(file)
+        queue.setEraseLazily(true)
+        val firstStuff = values[127]
+        queue.add(firstStuff)
+        queue.add(values[253])
+
+        queue.remove()
+        assertThat(queue.peek()).isEqualTo(values[253])
+        assertThat(queue.needsCompaction()).isTrue()
+
+        val data = ByteArray(firstStuff!!.size)
+        queue.raf.seek((HEADER_LENGTH + Element.HEADER_LENGTH).toLong())
+        queue.raf.readFully(data, 0, firstStuff.size)
+        assertThat(data).isEqualTo(firstStuff)
+
+        // Compaction erases a step at a time.
+        assertThat(queue.compact(64)).isTrue()
+        assertThat(queue.compact(1024)).isFalse()
+        assertThat(queue.needsCompaction()).isFalse()
+
+        queue.raf.seek(HEADER_LENGTH.toLong())
+        val erased = ByteArray(Element.HEADER_LENGTH + firstStuff.size)
+        queue.raf.readFully(erased)
+        assertThat(erased).isEqualTo(ByteArray(erased.size))
+        assertThat(queue.peek()).isEqualTo(values[253])
+    }
+
     /**
      * Exercise a bug where wrapped elements were getting corrupted when the QueueFile was forced to
      * expand in size and a portion of the final Element had been wrapped into space at the beginning
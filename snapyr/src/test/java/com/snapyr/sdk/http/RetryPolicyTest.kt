@@ -0,0 +1,129 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.http
+
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class RetryPolicyTest {
+
+    private fun fixedRandom(value: Double): Random {
+        return object : Random() {
+            override fun nextDouble(): Double = value
+        }
+    }
+
+    @Test
+    fun backoffDoublesWithJitter() {
+        val policy = RetryPolicy(fixedRandom(1.0))
+        assertThat(policy.isBackingOff).isFalse()
+
+        policy.onBatchFailed(10)
+        assertThat(policy.isBackingOff).isTrue()
+        assertThat(policy.retryDelay(1000)).isEqualTo(1000)
+        policy.onBatchFailed(10)
+        assertThat(policy.retryDelay(1000)).isEqualTo(2000)
+        policy.onBatchFailed(10)
+        assertThat(policy.retryDelay(1000)).isEqualTo(4000)
+
+        val lowest = RetryPolicy(fixedRandom(0.0))
+        lowest.onBatchFailed(10)
+        lowest.onBatchFailed(10)
+        lowest.onBatchFailed(10)
+        assertThat(lowest.retryDelay(1000)).isEqualTo(2000)
+    }
+
+    @Test
+    fun backoffIsBounded() {
+        val policy = RetryPolicy(fixedRandom(1.0))
+        for (i in 0 until 40) {
+            policy.onBatchFailed(10)
+        }
+        assertThat(policy.retryDelay(1000)).isEqualTo(RetryPolicy.MAX_BACKOFF_MILLIS)
+    }
+
+    @Test
+    fun retryAfterOverridesShorterBackoff() {
+        val policy = RetryPolicy(fixedRandom(1.0))
+        policy.onBatchFailed(10)
+        assertThat(policy.isRetryAfterPending).isFalse()
+        policy.onRetryAfter(TimeUnit.SECONDS.toMillis(120))
+
+        assertThat(policy.isRetryAfterPending).isTrue()
+        assertThat(policy.retryAfterDelay()).isGreaterThan(TimeUnit.SECONDS.toMillis(110))
+        assertThat(policy.retryDelay(1000)).isGreaterThan(TimeUnit.SECONDS.toMillis(110))
+
+        policy.onBatchRemoved()
+        assertThat(policy.isRetryAfterPending).isFalse()
+        assertThat(policy.retryAfterDelay()).isEqualTo(0)
+        policy.onBatchFailed(10)
+        assertThat(policy.retryDelay(1000)).isEqualTo(1000)
+    }
+
+    @Test
+    fun retryAfterIsBounded() {
+        val policy = RetryPolicy(fixedRandom(1.0))
+        policy.onBatchFailed(10)
+        policy.onRetryAfter(TimeUnit.DAYS.toMillis(7))
+
+        assertThat(policy.retryDelay(1000)).isLessThanOrEqualTo(RetryPolicy.MAX_RETRY_AFTER_MILLIS)
+    }
+
+    @Test
+    fun repeatedFailuresShrinkBatches() {
+        val policy = RetryPolicy(fixedRandom(1.0))
+        assertThat(policy.maxBatchPayloads()).isEqualTo(RetryPolicy.UNLIMITED)
+
+        policy.onBatchFailed(100)
+        assertThat(policy.maxBatchPayloads()).isEqualTo(RetryPolicy.UNLIMITED)
+        policy.onBatchFailed(100)
+        assertThat(policy.maxBatchPayloads()).isEqualTo(50)
+        policy.onBatchFailed(50)
+        assertThat(policy.maxBatchPayloads()).isEqualTo(25)
+
+        policy.onBatchRemoved()
+        assertThat(policy.isBackingOff).isFalse()
+        assertThat(policy.maxBatchPayloads()).isEqualTo(50)
+        for (i in 0 until 5) {
+            policy.onBatchRemoved()
+        }
+        assertThat(policy.maxBatchPayloads()).isEqualTo(RetryPolicy.UNLIMITED)
+    }
+
+    @Test
+    fun parsesRetryAfter() {
+        val now = 1_000_000_000_000L
+        assertThat(RetryPolicy.parseRetryAfter(null, now)).isEqualTo(-1)
+        assertThat(RetryPolicy.parseRetryAfter("garbage", now)).isEqualTo(-1)
+        assertThat(RetryPolicy.parseRetryAfter("-5", now)).isEqualTo(-1)
+        assertThat(RetryPolicy.parseRetryAfter(" 30 ", now)).isEqualTo(30_000)
+        // 2001-09-09T01:47:00Z, 20 seconds after now.
+        assertThat(RetryPolicy.parseRetryAfter("Sun, 09 Sep 2001 01:47:00 GMT", now))
+            .isEqualTo(20_000)
+        assertThat(RetryPolicy.parseRetryAfter("Sun, 09 Sep 2001 01:00:00 GMT", now))
+            .isEqualTo(0)
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.snapyr.sdk.internal
+
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Compares formatting timestamps with arithmetic to formatting them with a calendar. Skipped unless
+ * run with `-Dsnapyr.benchmark=true`.
+ */
+class Iso8601Benchmark {
+
+    @Before
+    fun setUp() {
+        assumeTrue(java.lang.Boolean.getBoolean("snapyr.benchmark"))
+    }
+
+    @Test
+    fun format() {
+        val date = NanoDate()
+        val bytes = ByteArray(Utils.ISO8601_MAX_LENGTH)
+
+        val calendar = measure { Iso8601Utils.formatWithCalendar(date).length }
+        val arithmetic = measure { Iso8601Utils.format(date).length }
+        val toBytes = measure { Iso8601Utils.format(date.time, bytes) }
+        val calendarNanos = measure { Iso8601Utils.formatNanosWithCalendar(date).length }
+        val arithmeticNanos = measure { Iso8601Utils.formatNanos(date).length }
+
+        println("Iso8601Benchmark: calendar %.0f ns/timestamp".format(calendar))
+        println("Iso8601Benchmark: arithmetic %.0f ns/timestamp".format(arithmetic))
+        println("Iso8601Benchmark: arithmetic to bytes %.0f ns/timestamp".format(toBytes))
+        println("Iso8601Benchmark: calendar nanos %.0f ns/timestamp".format(calendarNanos))
+        println("Iso8601Benchmark: arithmetic nanos %.0f ns/timestamp".format(arithmeticNanos))
+    }
+
+    /** Returns the average nanoseconds per call. */
+    private fun measure(format: () -> Int): Double {
+        var sink = 0
+        repeat(WARMUP) { sink += format() }
+        val start = System.nanoTime()
+        repeat(ITERATIONS) { sink += format() }
+        val elapsed = System.nanoTime() - start
+        assumeTrue(sink > 0)
+        return elapsed.toDouble() / ITERATIONS
+    }
+
+    companion object {
+        private const val WARMUP = 100_000
+        private const val ITERATIONS = 1_000_000
+    }
+}
@@ -27,6 +27,7 @@ import java.text.ParseException
 import java.util.Calendar
 import java.util.Date
 import java.util.GregorianCalendar
+import java.util.Random
 import java.util.TimeZone
 import java.util.concurrent.TimeUnit
 import org.assertj.core.api.Assertions.assertThat
@@ -80,6 +81,44 @@ class Iso8601UtilsTest {
         assertThat(Iso8601Utils.formatNanos(dateWithNano)).isEqualTo("2007-08-15T19:51:45.345554387Z")
     }
 
+    @Test
+    fun formatNanosPadsFraction() {
+        assertThat(Iso8601Utils.formatNanos(NanoDate(1187207505000005387L)))
+            .isEqualTo("2007-08-15T19:51:45.000005387Z")
+        assertThat(Iso8601Utils.formatNanos(Date(1187207505005L)))
+            .isEqualTo("2007-08-15T19:51:45.005000000Z")
+    }
+
+    @Test
+    fun formatMatchesCalendar() {
+        val random = Random(0)
+        val bytes = ByteArray(Utils.ISO8601_MAX_LENGTH)
+        for (i in 0 until 10_000) {
+            // Includes dates before 1970 and after 9999, which are formatted with a calendar.
+            val millis = (random.nextDouble() * 2.6e14).toLong() - 1e13.toLong()
+            val date = Date(millis)
+            val expected = Iso8601Utils.formatWithCalendar(date)
+            assertThat(Iso8601Utils.format(date)).isEqualTo(expected)
+            val length = Iso8601Utils.format(millis, bytes)
+            assertThat(String(bytes, 0, length, Charsets.US_ASCII)).isEqualTo(expected)
+            assertThat(Iso8601Utils.formatNanos(date))
+                .isEqualTo(Iso8601Utils.formatNanosWithCalendar(date))
+        }
+    }
+
+    @Test
+    fun formatNanosMatchesCalendar() {
+        val random = Random(0)
+        for (i in 0 until 10_000) {
+            // Nanoseconds since the epoch only fit in a Long between 1938 and 2262.
+            val millis = (random.nextDouble() * 1.02e13).toLong() - 1e12.toLong()
+            val date = NanoDate(millis * 1_000_000 + random.nextInt(1_000_000))
+            assertThat(Iso8601Utils.format(date)).isEqualTo(Iso8601Utils.formatWithCalendar(date))
+            assertThat(Iso8601Utils.formatNanos(date))
+                .isEqualTo(Iso8601Utils.formatNanosWithCalendar(date))
+        }
+    }
+
     @Test
     fun parse() {
         assertThat(Iso8601Utils.parse("2007-08-13T19:51:23.789Z")).isEqualTo(date)